@@ -28,5 +28,83 @@ public class DedupConfigBean {
 	 */
 	public DocumentSchemaBean doc_schema_override() { return doc_schema_override; }
 	
+	/** If set (and >0) then up to this many recently resolved deduplication keys are remembered across batches, and keys found there are not looked up again
+	 *  (Only applies to the "leave", "update" and "overwrite" policies. Note that keys are remembered from the objects emitted by this stage, so should only
+	 *   be used if those objects are written into the deduplication context) 
+	 * @return
+	 */
+	public Long key_cache_max_size() { return key_cache_max_size; }
+	
+	/** How long (in seconds) a remembered key is trusted before it is looked up again (default: 300s, see key_cache_max_size)
+	 * @return
+	 */
+	public Long key_cache_max_age_secs() { return key_cache_max_age_secs; }
+	
+	/** The max number of keys looked up in a single deduplication query (default: 1000) - larger batches are split into multiple queries
+	 * @return
+	 */
+	public Integer lookup_chunk_size() { return lookup_chunk_size; }
+	
+	/** The max number of deduplication queries (see lookup_chunk_size) in flight at once for a batch (default: 4)
+	 * @return
+	 */
+	public Integer lookup_max_concurrency() { return lookup_max_concurrency; }
+	
+	/** If set, the max number of incoming records that are deduplicated in memory at once (default: unlimited) - larger batches are written to disk in key-sorted runs
+	 *  and then deduplicated a (key-complete) working set at a time, with the same results (except that the objects are then emitted in key order rather than arrival order)
+	 * @return
+	 */
+	public Long max_working_set_size() { return max_working_set_size; }
+	
+	/** The directory in which the key-sorted runs (see max_working_set_size) are written (default: the system temp directory)
+	 * @return
+	 */
+	public String spill_dir() { return spill_dir; }
+	
+	/** The max number of stored objects deleted by deduplication (eg with delete_unhandled_duplicates) in a single bulk delete request (default: 1000)
+	 * @return
+	 */
+	public Integer delete_batch_size() { return delete_batch_size; }
+	
+	/** The max number of bulk delete requests (see delete_batch_size) outstanding at once - deduplication waits for one to complete before sending more (default: 4)
+	 * @return
+	 */
+	public Integer delete_max_in_flight() { return delete_max_in_flight; }
+	
+	/** How long the end of the stage waits for outstanding delete requests to complete (default: 60s)
+	 * @return
+	 */
+	public Long delete_completion_timeout_secs() { return delete_completion_timeout_secs; }
+	
+	/** If set, new records only match stored objects whose timestamps are within this many seconds of their own (default: no window, matches all stored objects)
+	 *  - for feeds whose duplicates only occur close together in time. The window is applied in the lookup query, and bounds the age of the key cache
+	 *  (New records without a timestamp are checked against all stored objects, stored objects without a timestamp never match)
+	 * @return
+	 */
+	public Long time_window_secs() { return time_window_secs; }
+	
+	/** If the deduplication context contains more than one bucket, whether to look up each bucket's store in parallel (default: true)
+	 *  - if false, the lookups go through a single service across all the buckets
+	 * @return
+	 */
+	public Boolean parallel_context_lookups() { return parallel_context_lookups; }
+	
+	/** With parallel_context_lookups, the max time each store's lookup can take before the batch fails (default: 60s)
+	 * @return
+	 */
+	public Long context_lookup_timeout_secs() { return context_lookup_timeout_secs; }
+	
 	private DocumentSchemaBean doc_schema_override;
+	private Long key_cache_max_size;
+	private Long key_cache_max_age_secs;
+	private Integer lookup_chunk_size;
+	private Integer lookup_max_concurrency;
+	private Long max_working_set_size;
+	private String spill_dir;
+	private Integer delete_batch_size;
+	private Integer delete_max_in_flight;
+	private Long delete_completion_timeout_secs;
+	private Long time_window_secs;
+	private Boolean parallel_context_lookups;
+	private Long context_lookup_timeout_secs;
 }
@@ -823,9 +823,10 @@ public class AnalyticsContext implements IAnalyticsContext, Serializable {
 													.map(f -> f.getPath().toUri().getPath()) // (remove the hdfs:// bit, which seems to be breaking with HA)
 													;										
 										
-										return TimeSliceDirUtils.filterTimedDirectories(
-													TimeSliceDirUtils.annotateTimedDirectories(paths), 
-													TimeSliceDirUtils.getQueryTimeRange(cfg, new Date()))
+										// (the index only parses the time slices added since the last job over this bucket)
+										return TimeSliceDirUtils.getTimeSliceIndex(base_path)
+													.refresh(paths)
+													.select(TimeSliceDirUtils.getQueryTimeRange(cfg, new Date()))
 													.map(s -> s + "/*")
 													.collect(Collectors.toList())
 													;
@@ -1221,7 +1222,8 @@ public class AnalyticsContext implements IAnalyticsContext, Serializable {
 		if (!this_bucket.full_name().equals(_mutable_state.bucket.get().full_name())) {
 			return externalEmit(this_bucket, job, obj_json);
 		}
-		_mutable_state.has_unflushed_data = this._multi_writer.get().batchWrite(obj_json);
+		// (handed straight to the writer, the batch subservices do the buffering - so the output stays in step with the copy sent to the topic below)
+		_mutable_state.has_unflushed_data = this._multi_writer.get().batchWrite(Collections.singletonList(obj_json));
 		
 		final String topic = _distributed_services.generateTopicName(this_bucket.full_name(), ICoreDistributedServices.QUEUE_END_NAME);
 		if (_distributed_services.doesTopicExist(topic)) {
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/** Batches up the ids of stored objects that deduplication has decided to delete into bulk delete-by-id requests, with a bounded number
+ *  of requests in flight at once (adding more ids blocks until a request completes)
+ *  Completed requests are counted as they are acknowledged, so nothing needs to be kept per request
+ * @author Alex
+ */
+public class DedupDeletePipeline {
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	protected final Function<List<Object>, CompletableFuture<Long>> _bulk_deleter;
+	protected final int _batch_size;
+	protected final int _max_in_flight;
+	protected final Semaphore _in_flight;
+
+	protected ArrayList<Object> _mutable_pending;
+
+	protected final AtomicLong _requests = new AtomicLong();
+	protected final AtomicLong _requested_ids = new AtomicLong();
+	protected final AtomicLong _acknowledged_requests = new AtomicLong();
+	protected final AtomicLong _acknowledged_deletes = new AtomicLong();
+	protected final AtomicLong _failed_requests = new AtomicLong();
+	protected final AtomicLong _failed_ids = new AtomicLong();
+
+	/** User c'tor
+	 * @param bulk_deleter - deletes a list of ids, returning the number deleted (eg crud.deleteObjectsBySpec(CrudUtils.allOf().withAny(_id, ids)))
+	 * @param batch_size - the max number of ids in a single delete request
+	 * @param max_in_flight - the max number of delete requests outstanding at once
+	 */
+	public DedupDeletePipeline(final Function<List<Object>, CompletableFuture<Long>> bulk_deleter, final int batch_size, final int max_in_flight) {
+		_bulk_deleter = bulk_deleter;
+		_batch_size = batch_size;
+		_max_in_flight = max_in_flight;
+		_in_flight = new Semaphore(max_in_flight);
+		_mutable_pending = new ArrayList<>(batch_size);
+	}
+
+	/** Queues ids for deletion, sending off any full batches
+	 * @param ids - the _ids of the objects to delete
+	 * @throws InterruptedException
+	 */
+	public void add(final Collection<Object> ids) throws InterruptedException {
+		for (Object id: ids) {
+			_mutable_pending.add(id);
+			if (_mutable_pending.size() >= _batch_size) {
+				send();
+			}
+		}
+	}
+
+	/** Sends off any queued ids without waiting for the requests to complete (called at the end of each object batch, so that
+	 *  replaced objects don't stay visible until the job ends)
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		if (!_mutable_pending.isEmpty()) {
+			send();
+		}
+	}
+
+	/** Sends off any queued ids and waits for all outstanding requests to complete
+	 * @param timeout
+	 * @param unit
+	 * @return true if all the requests completed within the timeout (successfully or not - see the stats)
+	 * @throws InterruptedException
+	 */
+	public boolean complete(final long timeout, final TimeUnit unit) throws InterruptedException {
+		flush();
+		if (_in_flight.tryAcquire(_max_in_flight, timeout, unit)) {
+			_in_flight.release(_max_in_flight);
+			return true;
+		}
+		else return false;
+	}
+
+	/** Sends the queued ids off as a single request, once there's room
+	 * @throws InterruptedException
+	 */
+	protected void send() throws InterruptedException {
+		final ArrayList<Object> ids = _mutable_pending;
+		_mutable_pending = new ArrayList<>(_batch_size);
+
+		_in_flight.acquire();
+		_requests.incrementAndGet();
+		_requested_ids.addAndGet(ids.size());
+		try {
+			_bulk_deleter.apply(ids).whenComplete((deleted, err) -> onAcknowledged(ids.size(), deleted, err));
+		}
+		catch (Throwable t) { // (errors thrown before the request was even made)
+			onAcknowledged(ids.size(), null, t);
+		}
+	}
+
+	/** Updates the counters and frees up the slot when a request completes
+	 * @param num_ids
+	 * @param deleted
+	 * @param err
+	 */
+	protected void onAcknowledged(final int num_ids, final Long deleted, final Throwable err) {
+		if (null == err) {
+			_acknowledged_requests.incrementAndGet();
+			_acknowledged_deletes.addAndGet(null == deleted ? 0L : deleted);
+		}
+		else {
+			_failed_requests.incrementAndGet();
+			_failed_ids.addAndGet(num_ids);
+		}
+		_in_flight.release();
+	}
+
+	// Stats
+
+	/** The number of delete requests sent
+	 * @return
+	 */
+	public long requests() { return _requests.get(); }
+
+	/** The number of ids sent for deletion
+	 * @return
+	 */
+	public long requestedIds() { return _requested_ids.get(); }
+
+	/** The number of delete requests that have completed successfully
+	 * @return
+	 */
+	public long acknowledgedRequests() { return _acknowledged_requests.get(); }
+
+	/** The number of objects that the completed requests reported as deleted
+	 * @return
+	 */
+	public long acknowledgedDeletes() { return _acknowledged_deletes.get(); }
+
+	/** The number of delete requests that failed
+	 * @return
+	 */
+	public long failedRequests() { return _failed_requests.get(); }
+
+	/** The number of ids in the delete requests that failed
+	 * @return
+	 */
+	public long failedIds() { return _failed_ids.get(); }
+
+	/** The number of delete requests currently outstanding
+	 * @return
+	 */
+	public int inFlight() { return _max_in_flight - _in_flight.availablePermits(); }
+}
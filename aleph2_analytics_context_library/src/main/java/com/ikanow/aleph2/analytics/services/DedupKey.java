@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+/** A deduplication key (the value or field/value object extracted by DeduplicationService.getKeyFieldsAgain)
+ *  The JSON key is retained for the lifetime of the key (it's needed for building lookup queries and for the custom handlers, so shouldn't be mutated)
+ *  - single field keys with a scalar value are compared on the value's text (plus whether it's a string), with no serialization or hashing
+ *  - other keys are normalized into their serialized form plus a 128b digest of it - the digest is used for hashing and (in the first instance) for equality, 
+ *    the bytes are only compared if the digests match, so a digest collision can never merge 2 different keys
+ * @author Alex
+ */
+public class DedupKey {
+	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	protected final static HashFunction _hash = Hashing.murmur3_128();
+
+	protected final JsonNode _key;
+	protected final String _scalar_key; // (null unless the key is a scalar)
+	protected final long _digest_hi;
+	protected final long _digest_lo;
+	protected final byte[] _serialized_key; // (null if the key is a scalar)
+
+	/** Creates a key from the JSON extracted from a new or stored record
+	 * @param key - the key JSON
+	 * @return
+	 */
+	public static DedupKey of(final JsonNode key) {
+		if (key.isValueNode()) { // (single scalar field, the value is its own key)
+			return new DedupKey(key, key.asText());
+		}
+		try {
+			final byte[] serialized_key = _mapper.writeValueAsBytes(key);
+			final ByteBuffer digest = ByteBuffer.wrap(_hash.hashBytes(serialized_key).asBytes());
+			return new DedupKey(key, digest.getLong(), digest.getLong(), serialized_key);
+		}
+		catch (JsonProcessingException e) { // (can't happen for a JsonNode)
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** User c'tor - scalar keys
+	 * @param key
+	 * @param scalar_key
+	 */
+	protected DedupKey(final JsonNode key, final String scalar_key) {
+		_key = key;
+		_scalar_key = scalar_key;
+		_digest_hi = 0L;
+		_digest_lo = scalar_key.hashCode();
+		_serialized_key = null;
+	}
+
+	/** User c'tor - other keys
+	 * @param key
+	 * @param digest_hi
+	 * @param digest_lo
+	 * @param serialized_key
+	 */
+	protected DedupKey(final JsonNode key, final long digest_hi, final long digest_lo, final byte[] serialized_key) {
+		_key = key;
+		_scalar_key = null;
+		_digest_hi = digest_hi;
+		_digest_lo = digest_lo;
+		_serialized_key = serialized_key;
+	}
+
+	/** The JSON key (not copied, so mustn't be mutated)
+	 * @return
+	 */
+	public JsonNode getKey() {
+		return _key;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return (int) (_digest_lo ^ (_digest_lo >>> 32));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object other) {
+		if (this == other) return true;
+		if (!(other instanceof DedupKey)) return false;
+		final DedupKey other_key = (DedupKey) other;
+		if (null != _scalar_key) { // (eg 1 and 1L are the same key, 1 and "1" aren't - as for the serialized form)
+			return _scalar_key.equals(other_key._scalar_key) && (_key.isTextual() == other_key._key.isTextual());
+		}
+		return (null == other_key._scalar_key) && (_digest_lo == other_key._digest_lo) && (_digest_hi == other_key._digest_hi)
+				&& Arrays.equals(_serialized_key, other_key._serialized_key); // (collision-safe fallback)
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return _key.toString();
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ikanow.aleph2.data_model.objects.data_import.AnnotationBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.JsonUtils;
+
+/** A bounded cache of recently resolved deduplication keys, kept across batches for the lifetime of the deduplication stage
+ *  Each key maps to a minimal copy (_id and timestamp) of the stored object that it is known to resolve to - either from a previous lookup
+ *  or from the object that was emitted for that key - so that the key doesn't have to be looked up again
+ *  (Size bounded LRU-ish eviction and a max age, so if something other than this stage changes the store then the worst case is that a stale entry is used until it expires)
+ *  This is an exact cache rather than a probabilistic one (eg a Bloom filter): a hit has to return the stored object's _id and timestamp, which a membership test can't,
+ *  and a miss still needs a lookup since the store is also written by other stages/runs - so a false positive would silently drop a new object, for no saving on misses
+ *  Memory is bounded by max_size entries, each holding the DedupKey (the key JSON, plus its serialized form for non-scalar keys) and a 2 field object, ie typically a few hundred bytes
+ * @author Alex
+ */
+public class DedupKeyCache {
+	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	public static final long DEFAULT_MAX_AGE_SECS = 300L;
+
+	protected final Cache<DedupKey, JsonNode> _cache;
+	protected final String _timestamp_field;
+	protected final boolean _id_required;
+
+	/** User c'tor
+	 * @param max_size - the max number of keys to remember
+	 * @param max_age_secs - how long a key is remembered for after it was last resolved
+	 * @param timestamp_field - the timestamp field that needs to be retained from the stored objects
+	 * @param id_required - if true then keys are only remembered when the _id of the stored object is known (ie for all policies except "leave")
+	 */
+	public DedupKeyCache(final long max_size, final long max_age_secs, final String timestamp_field, final boolean id_required) {
+		_cache = CacheBuilder.newBuilder().maximumSize(max_size).expireAfterWrite(max_age_secs, TimeUnit.SECONDS).build();
+		_timestamp_field = timestamp_field;
+		_id_required = id_required;
+	}
+
+	/** Returns the minimal stored objects of all the keys that are currently remembered
+	 * @param keys - the keys to check
+	 * @return a map of key to the (minimal) stored object (keys that aren't remembered are not present)
+	 */
+	public Map<DedupKey, JsonNode> getKnown(final Collection<DedupKey> keys) {
+		return _cache.getAllPresent(keys);
+	}
+
+	/** Remembers the stored object that a key resolved to (eg after the new object was discarded)
+	 * @param key - the dedup key
+	 * @param stored_obj - the stored object (only the _id and timestamp are retained)
+	 */
+	public void onResolved(final DedupKey key, final JsonNode stored_obj) {
+		put(key, Optional.ofNullable(stored_obj.get(AnnotationBean._ID)), stored_obj);
+	}
+
+	/** Remembers an object emitted by the deduplication stage as the stored object for its key
+	 * @param key - the dedup key
+	 * @param emitted_obj - the object that was emitted
+	 * @param mutations - any mutations that were applied when it was emitted (eg the _id of an object being overwritten)
+	 */
+	public void onEmitted(final DedupKey key, final JsonNode emitted_obj, final ObjectNode mutations) {
+		put(key,
+			Optional.ofNullable(mutations.get(AnnotationBean._ID)).map(Optional::of).orElseGet(() -> Optional.ofNullable(emitted_obj.get(AnnotationBean._ID))),
+			emitted_obj);
+	}
+
+	/** Forgets a key if the object it resolved to has been deleted
+	 * @param key - the dedup key
+	 * @param deleted_ids - the _ids of the objects that were deleted
+	 */
+	public void onDeleted(final DedupKey key, final Collection<JsonNode> deleted_ids) {
+		if (!deleted_ids.isEmpty()) {
+			Optional.ofNullable(_cache.getIfPresent(key))
+				.map(stored_obj -> stored_obj.get(AnnotationBean._ID))
+				.filter(id -> deleted_ids.contains(id))
+				.ifPresent(__ -> _cache.invalidate(key));
+		}
+	}
+
+	/** The number of keys currently remembered (approximate)
+	 * @return
+	 */
+	public long size() {
+		return _cache.size();
+	}
+
+	/** Builds the minimal stored object and caches it (or forgets the key if it can't be used)
+	 * @param key
+	 * @param maybe_id
+	 * @param obj
+	 */
+	protected void put(final DedupKey key, final Optional<JsonNode> maybe_id, final JsonNode obj) {
+		final Optional<JsonNode> id = maybe_id.filter(j -> !j.isNull());
+		if (_id_required && !id.isPresent()) {
+			_cache.invalidate(key);
+		}
+		else {
+			final ObjectNode minimal_obj = _mapper.createObjectNode();
+			id.ifPresent(j -> minimal_obj.set(AnnotationBean._ID, j));
+			JsonUtils.getProperty(_timestamp_field, obj).ifPresent(ts -> setNestedProperty(minimal_obj, _timestamp_field, ts));
+			_cache.put(key, minimal_obj);
+		}
+	}
+
+	/** Utility to set a (possibly nested, using dot notation) field in an object, creating any intermediate objects
+	 * @param mutable_obj
+	 * @param path
+	 * @param val
+	 */
+	protected static void setNestedProperty(final ObjectNode mutable_obj, final String path, final JsonNode val) {
+		final String[] components = path.split("[.]");
+		ObjectNode mutable_curr = mutable_obj;
+		for (int i = 0; i < components.length - 1; ++i) {
+			mutable_curr = mutable_curr.with(components[i]);
+		}
+		mutable_curr.set(components[components.length - 1], val);
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Iterators;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Runs the deduplication lookups against each of the stores in a multi-bucket deduplication context in parallel (rather than via a single
+ *  combined service), each with its own timeout, then merges the results in the order of the stores (so that the policies see the stored
+ *  objects in the same order as from the combined service)
+ *  If any store fails or times out then so does the lookup - deduplicating against partial results would let duplicates through
+ * @author Alex
+ */
+public class DedupMultiContextLookup {
+	public static final long DEFAULT_TIMEOUT_SECS = 60L;
+
+	protected static final ScheduledExecutorService _timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "DedupMultiContextLookup-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	protected final List<Tuple2<String, ICrudService<JsonNode>>> _stores;
+	protected final long _timeout_ms;
+
+	/** User c'tor
+	 * @param stores - (name, read service) for each of the stores in the deduplication context
+	 * @param timeout_ms - the max time to wait for each store's results
+	 */
+	public DedupMultiContextLookup(final List<Tuple2<String, ICrudService<JsonNode>>> stores, final long timeout_ms) {
+		_stores = stores;
+		_timeout_ms = timeout_ms;
+	}
+
+	/** Returns the stored objects matching the query from all the stores
+	 * @param query - the dedup query
+	 * @param field_list - the fields to include or exclude
+	 * @param include - whether the fields are included or excluded
+	 * @return a future containing the merged results (in store order)
+	 */
+	public CompletableFuture<Iterator<JsonNode>> getObjectsBySpec(final QueryComponent<JsonNode> query, final List<String> field_list, final boolean include) {
+		final List<CompletableFuture<Iterator<JsonNode>>> per_store = _stores.stream()
+				.map(store -> withTimeout(store._1(), store._2().getObjectsBySpec(query, field_list, include).thenApply(cursor -> cursor.iterator()), _timeout_ms))
+				.collect(Collectors.toList());
+
+		return CompletableFuture.allOf(per_store.stream().toArray(CompletableFuture[]::new))
+				.thenApply(__ -> Iterators.concat(per_store.stream().map(f -> f.join()).iterator()));
+	}
+
+	/** Fails a future if it hasn't completed within the timeout
+	 * @param store_name - for the error message
+	 * @param future
+	 * @param timeout_ms
+	 * @return a future that completes with the original, or fails with a TimeoutException
+	 */
+	protected static <T> CompletableFuture<T> withTimeout(final String store_name, final CompletableFuture<T> future, final long timeout_ms) {
+		final CompletableFuture<T> ret_val = new CompletableFuture<>();
+		final ScheduledFuture<?> timeout = _timeouts.schedule(() ->
+			ret_val.completeExceptionally(new TimeoutException(ErrorUtils.get("Deduplication lookup against {0} timed out after {1}ms", store_name, Long.toString(timeout_ms))))
+			, timeout_ms, TimeUnit.MILLISECONDS);
+
+		future.whenComplete((res, err) -> {
+			timeout.cancel(false);
+			if (null == err) ret_val.complete(res);
+			else ret_val.completeExceptionally(err);
+		});
+		return ret_val;
+	}
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Splits a stream of (key, record) pairs into "working sets" that are deduplicated one at a time, so that the incoming side of the
+ *  deduplication doesn't have to fit in memory
+ *  If the stream fits within the max size then it is passed on as a single working set (ie the same as not using this class), otherwise
+ *  it is written to disk in key-sorted runs of at most the max size, which are then merged back into working sets - each key's records
+ *  are always all in the same working set (and in their original order), so the results are the same as processing the whole stream at once
+ *  - except that once spilled, the working sets (and so the objects emitted by the deduplication) are in key order, not arrival order
+ *  At most MAX_MERGE_FAN_IN runs are open at once - if more were spilled, they are first merged into fewer, longer runs in as many passes as needed
+ *  (Note the input name of spilled records is not retained, the JSON, content, and injected flag are)
+ * @author Alex
+ */
+public class DedupSpillableWorkingSet {
+	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	public static final int MAX_MERGE_FAN_IN = 64;
+
+	/** Splits the keyed records into working sets of (roughly) the max size and passes them to the handler
+	 * @param keyed_records - the (key, (id, record)) pairs to deduplicate
+	 * @param max_size - the max number of records in a working set (a working set can exceed this if a single key has more records than this)
+	 * @param spill_dir - the directory in which the runs are written (deleted once the handler has been called for every working set)
+	 * @param handler - called on each working set (in arrival order if nothing was spilled, else in key order)
+	 * @return the number of runs that were spilled to disk (0 if everything fitted in memory)
+	 * @throws IOException
+	 */
+	public static int forEachWorkingSet(final Iterator<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> keyed_records,
+			final long max_size, final File spill_dir,
+			final Consumer<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> handler) throws IOException
+	{
+		return forEachWorkingSet(keyed_records, max_size, MAX_MERGE_FAN_IN, spill_dir, handler);
+	}
+
+	/** Splits the keyed records into working sets of (roughly) the max size and passes them to the handler - with a configurable max number of runs open at once
+	 * @param keyed_records - the (key, (id, record)) pairs to deduplicate
+	 * @param max_size - the max number of records in a working set (a working set can exceed this if a single key has more records than this)
+	 * @param max_fan_in - the max number of runs that are merged (ie open) at once
+	 * @param spill_dir - the directory in which the runs are written (deleted once the handler has been called for every working set)
+	 * @param handler - called on each working set (in arrival order if nothing was spilled, else in key order)
+	 * @return the number of runs that were spilled to disk (0 if everything fitted in memory)
+	 * @throws IOException
+	 */
+	protected static int forEachWorkingSet(final Iterator<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> keyed_records,
+			final long max_size, final int max_fan_in, final File spill_dir,
+			final Consumer<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> handler) throws IOException
+	{
+		final ArrayList<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> mutable_buffer = new ArrayList<>();
+		fillBuffer(keyed_records, max_size, mutable_buffer);
+
+		if (!keyed_records.hasNext()) { // (it all fits)
+			if (!mutable_buffer.isEmpty()) handler.accept(mutable_buffer);
+			return 0;
+		}
+
+		final LinkedList<File> mutable_runs = new LinkedList<>();
+		try {
+			// Write out the key sorted runs
+
+			while (!mutable_buffer.isEmpty()) {
+				mutable_runs.add(writeRun(mutable_buffer, spill_dir));
+				mutable_buffer.clear();
+				fillBuffer(keyed_records, max_size, mutable_buffer);
+			}
+
+			final int spilled_runs = mutable_runs.size();
+
+			// If there are too many runs to have open at once, merge them into fewer longer ones
+			// (consecutive runs, so records with the same key stay in order)
+
+			List<File> runs = new ArrayList<>(mutable_runs);
+			while (runs.size() > max_fan_in) {
+				final List<File> merged_runs = new ArrayList<>();
+				for (List<File> group: Lists.partition(runs, Math.max(2, max_fan_in))) {
+					if (1 == group.size()) {
+						merged_runs.add(group.get(0));
+					}
+					else {
+						final File merged_run = mergeRuns(group, spill_dir);
+						mutable_runs.add(merged_run);
+						merged_runs.add(merged_run);
+						group.forEach(run -> run.delete());
+					}
+				}
+				runs = merged_runs;
+			}
+
+			// Merge them back, grouping by key
+
+			try (RunMerger merger = new RunMerger(runs)) {
+				ArrayList<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> mutable_working_set = new ArrayList<>();
+				String last_key = null;
+				while (merger.hasNext()) {
+					final Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> head = merger.next();
+
+					if (!head._1().equals(last_key) && (mutable_working_set.size() >= max_size)) { // (only split between keys)
+						handler.accept(mutable_working_set);
+						mutable_working_set = new ArrayList<>();
+					}
+					mutable_working_set.add(head._2());
+					last_key = head._1();
+				}
+				if (!mutable_working_set.isEmpty()) handler.accept(mutable_working_set);
+			}
+			return spilled_runs;
+		}
+		finally {
+			mutable_runs.forEach(run -> run.delete());
+		}
+	}
+
+	/** Reads up to max_size records into the buffer
+	 * @param keyed_records
+	 * @param max_size
+	 * @param mutable_buffer
+	 */
+	protected static void fillBuffer(final Iterator<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> keyed_records, final long max_size,
+			final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> mutable_buffer)
+	{
+		while ((mutable_buffer.size() < max_size) && keyed_records.hasNext()) {
+			mutable_buffer.add(keyed_records.next());
+		}
+	}
+
+	/** Sorts the records by key (stable, so records with the same key stay in order) and writes them to a temp file
+	 * @param records
+	 * @param spill_dir
+	 * @return the run file
+	 * @throws IOException
+	 */
+	protected static File writeRun(final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records, final File spill_dir) throws IOException {
+		final File run = File.createTempFile("aleph2_dedup_", ".run", spill_dir);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+			records.stream()
+				.map(t2 -> Tuples._2T(t2._1().toString(), t2))
+				.sorted(Comparator.comparing(t2 -> t2._1()))
+				.forEach(Lambdas.wrap_consumer_u(t2 -> writeRecord(out, t2._1(), t2._2()._2()._1(), t2._2()._2()._2())));
+		}
+		catch (IOException | RuntimeException e) {
+			run.delete();
+			throw e;
+		}
+		return run;
+	}
+
+	/** Merges runs into a single (key sorted) run
+	 * @param runs - in order, ties go to the earlier run
+	 * @param spill_dir
+	 * @return the merged run file
+	 * @throws IOException
+	 */
+	protected static File mergeRuns(final List<File> runs, final File spill_dir) throws IOException {
+		final File merged_run = File.createTempFile("aleph2_dedup_", ".run", spill_dir);
+		try (RunMerger merger = new RunMerger(runs); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged_run)))) {
+			while (merger.hasNext()) {
+				final Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> head = merger.next();
+				writeRecord(out, head._1(), head._2()._2()._1(), head._2()._2()._2());
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			merged_run.delete();
+			throw e;
+		}
+		return merged_run;
+	}
+
+	/** Writes a single (key, id, record) - length prefixed so the JSON can be any size
+	 * @param out
+	 * @param key
+	 * @param id
+	 * @param record
+	 * @throws IOException
+	 */
+	protected static void writeRecord(final DataOutputStream out, final String key, final long id, final IBatchRecord record) throws IOException {
+		final Optional<ByteArrayOutputStream> content = record.getContent();
+		out.writeLong(id);
+		out.writeBoolean(record.injected());
+		out.writeBoolean(content.isPresent());
+		writeBytes(out, key.getBytes("UTF-8"));
+		writeBytes(out, _mapper.writeValueAsBytes(record.getJson()));
+		if (content.isPresent()) writeBytes(out, content.get().toByteArray());
+	}
+
+	/** Reads a single record written by writeRecord
+	 * @param in
+	 * @return (key string, (key, (id, record))), or null if the end of the run has been reached
+	 * @throws IOException
+	 */
+	protected static Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> readRecord(final DataInputStream in) throws IOException {
+		final long id;
+		try {
+			id = in.readLong();
+		}
+		catch (EOFException e) {
+			return null;
+		}
+		final boolean injected = in.readBoolean();
+		final boolean has_content = in.readBoolean();
+		final String key = new String(readBytes(in), "UTF-8");
+		final JsonNode json = _mapper.readTree(readBytes(in));
+		final IBatchRecord record;
+		if (has_content) {
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			content.write(readBytes(in));
+			record = injected ? new BatchRecordUtils.InjectedBatchRecord(json, content) : new BatchRecordUtils.BatchRecord(json, content);
+		}
+		else {
+			record = injected ? new BatchRecordUtils.InjectedJsonBatchRecord(json) : new BatchRecordUtils.JsonBatchRecord(json);
+		}
+		return Tuples._2T(key, Tuples._2T(_mapper.readTree(key), Tuples._2T(id, record)));
+	}
+
+	protected static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static byte[] readBytes(final DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/** Iterates over a run file, one record ahead
+	 * @author Alex
+	 */
+	protected static class RunReader implements AutoCloseable {
+		protected final DataInputStream _in;
+		protected final int _index;
+		protected Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> _head;
+
+		protected RunReader(final File run, final int index) throws IOException {
+			_in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+			_index = index;
+			next();
+		}
+
+		/** Moves on to the next record
+		 * @return false if the run is exhausted
+		 */
+		protected boolean next() {
+			try {
+				_head = readRecord(_in);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null != _head;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_in.close();
+		}
+	}
+
+	/** Iterates over the records of a set of runs in key order (ties go to the earlier run, preserving record order)
+	 * @author Alex
+	 */
+	protected static class RunMerger implements Iterator<Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>>, AutoCloseable {
+		protected final ArrayList<RunReader> _readers;
+		protected final PriorityQueue<RunReader> _heads;
+
+		protected RunMerger(final List<File> runs) throws IOException {
+			_readers = new ArrayList<>(runs.size());
+			try {
+				for (File run: runs) _readers.add(new RunReader(run, _readers.size()));
+			}
+			catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+			_heads = new PriorityQueue<>(Math.max(1, _readers.size()),
+					Comparator.<RunReader, String>comparing(r -> r._head._1()).thenComparing(r -> r._index));
+			_readers.stream().filter(r -> null != r._head).forEach(r -> _heads.add(r));
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !_heads.isEmpty();
+		}
+
+		@Override
+		public Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> next() {
+			final RunReader reader = _heads.poll();
+			if (null == reader) throw new NoSuchElementException();
+			final Tuple2<String, Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> head = reader._head;
+			if (reader.next()) _heads.add(reader);
+			return head;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (RunReader reader: _readers) reader.close();
+		}
+	}
+}
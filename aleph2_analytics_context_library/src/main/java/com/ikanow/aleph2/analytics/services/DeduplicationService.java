@@ -15,6 +15,8 @@
  *******************************************************************************/
 package com.ikanow.aleph2.analytics.services;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -22,12 +24,17 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.LongSummaryStatistics;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
@@ -43,6 +50,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.ikanow.aleph2.analytics.data_model.DedupConfigBean;
 import com.ikanow.aleph2.analytics.utils.ErrorUtils;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
@@ -105,16 +113,34 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		
 	protected final SetOnce<IBucketLogger> _logger = new SetOnce<>();
 	
+	protected final SetOnce<DedupKeyCache> _key_cache = new SetOnce<>(); // (optional, remembers recently resolved keys across batches)
+	
+	public static final int DEFAULT_LOOKUP_CHUNK_SIZE = 1000;
+	public static final int DEFAULT_LOOKUP_MAX_CONCURRENCY = 4;
+	protected final SetOnce<Integer> _lookup_chunk_size = new SetOnce<>();
+	protected final SetOnce<Integer> _lookup_max_concurrency = new SetOnce<>();
+	protected final SetOnce<Long> _max_working_set_size = new SetOnce<>(); // (if not set then the entire batch is deduplicated in memory)
+	protected final SetOnce<File> _spill_dir = new SetOnce<>(); // (if not set then the system temp dir)
+	protected final SetOnce<Long> _time_window_secs = new SetOnce<>(); // (if not set then new records are checked against all the stored objects)
+	protected final SetOnce<DedupMultiContextLookup> _multi_context_lookup = new SetOnce<>(); // (if not set then lookups go via _dedup_context)
+	
 	public static class MutableStats {
 		int nonduplicate_keys = 0;		
 		int duplicates_incoming = 0;
 		int duplicates_existing = 0;
 		int duplicate_keys = 0;
 		int deleted = 0;
+		int key_cache_hits = 0;
+		int spilled_runs = 0;
+		int delete_requests = 0;
+		int deletes_acknowledged = 0;
+		int delete_failures = 0;
 	}
 	protected final MutableStats _mutable_stats = new MutableStats();
 	
-	protected final LinkedList<CompletableFuture<Long>> mutable_uncompleted_deletes = new LinkedList<>();
+	public static final long DEFAULT_DELETE_COMPLETION_TIMEOUT_SECS = 60L;
+	protected final SetOnce<DedupDeletePipeline> _delete_pipeline = new SetOnce<>();
+	protected final SetOnce<Long> _delete_completion_timeout_secs = new SetOnce<>();
 	
 	//TODO (ALEPH-20): move this into the ES service
 	public static class ElasticsearchTechnologyOverride {
@@ -240,10 +266,13 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		final Validation<String, Tuple2<Optional<Class<? extends IUnderlyingService>>, Optional<String>>> service_to_use = getDataService(_doc_schema.get());					
 		
 		// Get secured data service -> CRUD for id checking and deletion
-		final Optional<ICrudService<JsonNode>> maybe_read_crud =				
+		final Optional<IDataServiceProvider.IGenericDataService> maybe_data_service =
 			context.getServiceContext().getService(service_to_use.success()._1().get(), service_to_use.success()._2())
 					.map(ds -> ((IDataServiceProvider)ds).secured(context.getServiceContext(), new AuthorizationBean(bucket.owner_id())))
-					.flatMap(ds -> ds.getDataService())
+					.flatMap(ds -> ds.getDataService());
+		
+		final Optional<ICrudService<JsonNode>> maybe_read_crud =				
+			maybe_data_service
 					.flatMap(ds -> 
 						_doc_schema.get().delete_unhandled_duplicates() || _doc_schema.get().allow_manual_deletion()
 							? ds.getUpdatableCrudService(JsonNode.class, Arrays.asList(context_holder), Optional.empty())
@@ -253,6 +282,40 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			;
 		
 		maybe_read_crud.ifPresent(read_crud -> _dedup_context.set(read_crud));
+		maybe_read_crud.ifPresent(read_crud -> _delete_pipeline.set(
+				new DedupDeletePipeline(ids -> read_crud.deleteObjectsBySpec(CrudUtils.allOf().withAny(AnnotationBean._ID, ids)),
+						Optional.ofNullable(dedup_config.delete_batch_size()).filter(n -> n > 0).orElse(DedupDeletePipeline.DEFAULT_BATCH_SIZE),
+						Optional.ofNullable(dedup_config.delete_max_in_flight()).filter(n -> n > 0).orElse(DedupDeletePipeline.DEFAULT_MAX_IN_FLIGHT))));
+		_delete_completion_timeout_secs.set(Optional.ofNullable(dedup_config.delete_completion_timeout_secs()).orElse(DEFAULT_DELETE_COMPLETION_TIMEOUT_SECS));
+		
+		// If the context spans multiple buckets, then (by default) look each one up separately, in parallel
+		Optional.ofNullable(doc_schema.deduplication_contexts())
+			.filter(contexts -> contexts.size() > 1)
+			.filter(__ -> Optional.ofNullable(dedup_config.parallel_context_lookups()).orElse(true))
+			.ifPresent(contexts -> maybe_data_service.ifPresent(ds -> 
+				_multi_context_lookup.set(new DedupMultiContextLookup(
+						contexts.stream()
+							.map(bucket_path -> Tuples._2T(bucket_path, 
+									ds.getReadableCrudService(JsonNode.class, 
+											Arrays.asList(BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::multi_bucket_children, ImmutableSet.of(bucket_path)).done().get()),
+											Optional.empty())))
+							.filter(store -> {
+								if (!store._2().isPresent()) { // (nothing in this context can be found, so warn since its duplicates will get through)
+									_logger.optional().ifPresent(l -> l.log(Level.WARN, 
+											ErrorUtils.lazyBuildMessage(false, 
+													() -> "DeduplicationService" + (_is_system_dedup_stage.get() ? "" : ("." + _control.get().name())),
+													() -> (_is_system_dedup_stage.get() ? "system" : _control.get().name()) + ".onStageInitialize", 
+													() -> null, 
+													() -> ErrorUtils.get("No readable data service for deduplication context {0}, its duplicates will not be detected", store._1()), 
+													() -> null)
+													));
+								}
+								return store._2().isPresent();
+							})
+							.<Tuple2<String, ICrudService<JsonNode>>>map(store -> Tuples._2T(store._1(), (ICrudService<JsonNode>)store._2().get()))
+							.collect(Collectors.toList())
+						,
+						1000L*Optional.ofNullable(dedup_config.context_lookup_timeout_secs()).filter(n -> n > 0).orElse(DedupMultiContextLookup.DEFAULT_TIMEOUT_SECS)))));
 		
 		//TODO (ALEPH-20): move this into the DB (See related top level comment)
 		final ElasticsearchTechnologyOverride tech_override = 
@@ -269,6 +332,22 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		_dedup_fields.set(Optional.ofNullable(_doc_schema.get().deduplication_fields()).orElse(Arrays.asList(AnnotationBean._ID)));
 		_policy.set(Optional.ofNullable( _doc_schema.get().deduplication_policy()).orElse(DeduplicationPolicy.leave));
 		
+		_lookup_chunk_size.set(Optional.ofNullable(dedup_config.lookup_chunk_size()).filter(n -> n > 0).orElse(DEFAULT_LOOKUP_CHUNK_SIZE));
+		_lookup_max_concurrency.set(Optional.ofNullable(dedup_config.lookup_max_concurrency()).filter(n -> n > 0).orElse(DEFAULT_LOOKUP_MAX_CONCURRENCY));
+		Optional.ofNullable(dedup_config.max_working_set_size()).filter(n -> n > 0).ifPresent(n -> _max_working_set_size.set(n));
+		Optional.ofNullable(dedup_config.spill_dir()).ifPresent(dir -> _spill_dir.set(new File(dir)));
+		Optional.ofNullable(dedup_config.time_window_secs()).filter(n -> n > 0).ifPresent(n -> _time_window_secs.set(n));
+		
+		// (the key cache can only be used when the stage - not a custom module - decides what is emitted)
+		if (!isCustom(_policy.get()) && !_doc_schema.get().custom_finalize_all_objects()) {
+			Optional.ofNullable(dedup_config.key_cache_max_size()).filter(max_size -> max_size > 0).ifPresent(max_size -> 
+				_key_cache.set(new DedupKeyCache(max_size, 
+									Math.min(Optional.ofNullable(dedup_config.key_cache_max_age_secs()).orElse(DedupKeyCache.DEFAULT_MAX_AGE_SECS), 
+												_time_window_secs.optional().orElse(Long.MAX_VALUE)), // (no point remembering keys for longer than the window)
+									_timestamp_field.get(),
+									DeduplicationPolicy.leave != _policy.get())));
+		}
+		
 		if ((DeduplicationPolicy.custom == _policy.get()) || (DeduplicationPolicy.custom_update == _policy.get())) {
 						
 			Optional<EnrichmentControlMetadataBean> custom_config =  
@@ -300,33 +379,44 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			return;
 		}		
 		
-		// Create big query
+		// Extract the keys
 		
-		final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> fieldinfo_dedupquery_keyfields = 
-				getDedupQuery(batch, _dedup_fields.get(), _db_mapper.get());
-
-		// Get duplicate results
+		final Either<String, List<String>> key_fields = getKeyFields(_dedup_fields.get());
 		
-		final Tuple2<List<String>, Boolean> fields_include = getIncludeFields(_policy.get(), _dedup_fields.get(), _timestamp_field.get());
-
-		final CompletableFuture<Iterator<JsonNode>> dedup_res =
-				fieldinfo_dedupquery_keyfields._2().isEmpty()
-				? 
-				CompletableFuture.completedFuture(Collections.<JsonNode>emptyList().iterator())
-				: 
-				_dedup_context.get().getObjectsBySpec(fieldinfo_dedupquery_keyfields._1(), fields_include._1(), fields_include._2()).thenApply(cursor -> cursor.iterator());
-
-		// Wait for it to finsh
+		try {
+			if (_max_working_set_size.isSet()) { // (bounded memory - larger batches get split into key-complete working sets via disk)
+				final Iterator<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> keyed_records = batch
+						.map(x -> getKeyFieldsAgain(x._2().getJson(), key_fields).map(y -> Tuples._2T(y, x)).orElse(null))
+						.filter(x -> null != x)
+						.iterator();
+				
+				_mutable_stats.spilled_runs += Lambdas.wrap_u(() -> DedupSpillableWorkingSet.forEachWorkingSet(keyed_records, _max_working_set_size.get(), _spill_dir.optional().orElse(null), 
+						field_info -> handleWorkingSet(field_info, key_fields))).get();
+			}
+			else {
+				handleWorkingSet(extractKeyFieldOrFields(batch, key_fields), key_fields);
+			}
+		}
+		finally { // (send off this batch's deletes now rather than when the stage completes, which for a streaming job might be never)
+			_delete_pipeline.optional().ifPresent(Lambdas.wrap_consumer_u(pipeline -> pipeline.flush()));
+		}
+	}
+	
+	/** Deduplicates a set of incoming records, all the records for a given key must be in the same working set
+	 * @param field_info - the (key, (id, record)) pairs to deduplicate
+	 * @param key_fields - the field-or-fields that form the key (see getKeyFields)
+	 */
+	protected void handleWorkingSet(final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info, final Either<String, List<String>> key_fields) {
 		
-			//(create handy results structure if so)
-			final LinkedHashMap<JsonNode, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map =				
-					fieldinfo_dedupquery_keyfields._2().stream().collect(						
+			//(create handy results structure)
+			final LinkedHashMap<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map =				
+					field_info.stream().collect(						
 							Collector.of(
-								() -> new LinkedHashMap<JsonNode, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>>(), 
+								() -> new LinkedHashMap<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>>(), 
 								(acc, t2) -> {
 									// (ie only the first element is added, duplicate elements are removed)
 									final Tuple3<Long, IBatchRecord, ObjectNode> t3 = Tuples._3T(t2._2()._1(), t2._2()._2(), _mapper.createObjectNode());
-									acc.compute(t2._1(), (k, v) -> {
+									acc.compute(DedupKey.of(t2._1()), (k, v) -> {
 										final LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>> new_list = 
 												(null == v)
 												? new LinkedList<>()
@@ -339,25 +429,124 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 									map1.putAll(map2);
 									return map1;
 								}));						
+		
+		// If time windowed, the time range (around the new records' timestamps) that stored objects must be in to match, per key
+		
+		final Optional<Map<DedupKey, Optional<Tuple2<Long, Long>>>> key_time_windows = _time_window_secs.optional().map(window_secs -> 
+				mutable_obj_map.entrySet().stream().collect(Collectors.toMap(kv -> kv.getKey(), kv -> getTimeWindow(_timestamp_field.get(), 1000L*window_secs, kv.getValue()))));
+		
+		// Any recently resolved keys don't need to be looked up
+			
+		final Map<DedupKey, JsonNode> cached_matches = _key_cache.optional()
+				.map(cache -> cache.getKnown(mutable_obj_map.keySet()))
+				.map(known -> key_time_windows.<Map<DedupKey, JsonNode>>map(windows -> // (remembered keys outside the time window have to be looked up again)
+						known.entrySet().stream()
+							.filter(kv -> isInTimeWindow(_timestamp_field.get(), windows.get(kv.getKey()), kv.getValue()))
+							.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue())))
+						.orElse(known))
+				.orElse(Collections.emptyMap());
+		_mutable_stats.key_cache_hits += cached_matches.size();
+		
+		final List<DedupKey> keys_to_lookup = cached_matches.isEmpty()
+				? new ArrayList<>(mutable_obj_map.keySet())
+				: mutable_obj_map.keySet().stream().filter(key -> !cached_matches.containsKey(key)).collect(Collectors.toList());
+		
+		// Get duplicate results
+		
+		final Tuple2<List<String>, Boolean> fields_include = Optional.of(getIncludeFields(_policy.get(), _dedup_fields.get(), _timestamp_field.get()))
+				.map(t2 -> (key_time_windows.isPresent() && t2._2() && !t2._1().contains(_timestamp_field.get())) // (need the timestamp to apply the window)
+						? Tuples._2T(Stream.concat(t2._1().stream(), Stream.of(_timestamp_field.get())).collect(Collectors.toList()), t2._2())
+						: t2)
+				.get();
 				
 		//TODO (ALEPH-20): add timestamps to annotation
 		//TODO (ALEPH-20): support different timestamp fields for the different buckets
 		//TODO (ALEPH-20): really need to support >1 current enrichment job 
 		//                 ^^(Really really longer term you should be able to decide what objects you want and what you don't  <- NOTE: don't remember what i meant here)
-				
-		final Iterator<JsonNode> cursor = dedup_res.join();
 		
+		// (the recently resolved keys can be handled straight away)
+		if (!cached_matches.isEmpty()) {
+			handleMatches(cached_matches.keySet(), 
+					cached_matches.entrySet().stream().map(kv -> Tuples._2T(Optional.of(kv.getKey()), kv.getValue())), 
+					mutable_obj_map);
+		}
+		
+		// Look up the remaining keys in bounded chunks, with a few chunks in flight at once, and handle each chunk as soon as its results return
+		
+		final Predicate<Tuple2<Optional<DedupKey>, JsonNode>> is_in_time_window = t2 -> 
+				key_time_windows.map(windows -> t2._1().map(key -> isInTimeWindow(_timestamp_field.get(), windows.get(key), t2._2())).orElse(true)).orElse(true);
+		
+		final Iterator<List<DedupKey>> chunks = Lists.partition(keys_to_lookup, _lookup_chunk_size.get()).iterator();
+		final LinkedBlockingQueue<Tuple2<List<DedupKey>, Validation<Throwable, Iterator<JsonNode>>>> completed_lookups = new LinkedBlockingQueue<>();
+		final Consumer<List<DedupKey>> lookup = chunk -> {
+			final QueryComponent<JsonNode> query = getDedupQuery(chunk.stream().map(DedupKey::getKey).collect(Collectors.toList()), key_fields, _db_mapper.get());
+			
+			// (custom_update: the lookup only returns the fields needed to decide, the full records that the custom module needs are then fetched as part of the same chunk)
+			final Optional<Map<DedupKey, JsonNode>> latest_new_records = Optional.of(_policy.get())
+					.filter(policy -> DeduplicationPolicy.custom_update == policy)
+					.map(__ -> chunk.stream().collect(Collectors.toMap(key -> key, key -> mutable_obj_map.get(key).peekLast()._2().getJson())));
+			
+			lookup(
+					key_time_windows
+						.flatMap(windows -> getTimeWindow(chunk.stream().map(key -> windows.get(key))))
+						.<QueryComponent<JsonNode>>map(window -> addTimeWindow(query, _db_mapper.get().apply(_timestamp_field.get()), window))
+						.orElse(query)
+					, fields_include._1(), fields_include._2())
+				.thenCompose(cursor -> latest_new_records
+											.map(new_records -> fetchFullRecords(cursor, new_records, key_fields, is_in_time_window))
+											.orElseGet(() -> CompletableFuture.completedFuture(cursor)))
+				.whenComplete((cursor, err) -> completed_lookups.add(Tuples._2T(chunk, (null == err) ? Validation.success(cursor) : Validation.fail(err))));
+		};
+		
+		int in_flight = 0;
+		for (; (in_flight < _lookup_max_concurrency.get()) && chunks.hasNext(); ++in_flight) {
+			lookup.accept(chunks.next());
+		}
+		for (; in_flight > 0; --in_flight) {
+			// Wait for the next one to finish
+			
+			final Tuple2<List<DedupKey>, Validation<Throwable, Iterator<JsonNode>>> chunk_results = Lambdas.wrap_u(() -> completed_lookups.take()).get();
+			if (chunk_results._2().isFail()) {
+				throw new CompletionException(chunk_results._2().fail());
+			}
+			if (chunks.hasNext()) { // (keep the window full while this chunk is handled)
+				lookup.accept(chunks.next());
+				++in_flight;
+			}
+			
+			// (key, stored object) pairs
+			final Stream<Tuple2<Optional<DedupKey>, JsonNode>> key_matches =
+					Optionals.streamOf(chunk_results._2().success(), false).map(ret_obj -> Tuples._2T(getKeyFieldsAgain(ret_obj, key_fields).map(DedupKey::of), ret_obj))
+						.filter(is_in_time_window)
+						;
+			
+			handleMatches(chunk_results._1(), key_matches, mutable_obj_map);
+		}
+	}
+	
+	/** Handles the results of the lookup for a set of keys: decides what to do with the matching stored objects, then emits (and removes from the map)
+	 *  the new objects for those keys that haven't been discarded
+	 * @param keys - the keys that were looked up
+	 * @param key_matches - (key, stored object) pairs for the stored objects that matched those keys
+	 * @param mutable_obj_map - the map of keys to new objects
+	 */
+	protected void handleMatches(final Collection<DedupKey> keys, 
+			final Stream<Tuple2<Optional<DedupKey>, JsonNode>> key_matches,
+			final Map<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map)
+	{
 		// Handle the results
 		
 		final Stream<JsonNode> records_to_delete = Lambdas.get(() -> {
 			if (isCustom(_doc_schema.get().deduplication_policy()) || _doc_schema.get().delete_unhandled_duplicates()) {
-				return Optionals.streamOf(cursor, true)
-							.collect(Collectors.groupingBy(ret_obj -> getKeyFieldsAgain(ret_obj, fieldinfo_dedupquery_keyfields._3())))
+				final Map<Optional<DedupKey>, List<JsonNode>> grouped_matches = 
+						key_matches.collect(Collectors.groupingBy(t2 -> t2._1(), Collectors.mapping(t2 -> t2._2(), Collectors.toList())));
+				
+				return grouped_matches
 							.entrySet()
 							.stream()
 							.<JsonNode>flatMap(kv -> {
 								
-								final Optional<JsonNode> maybe_key = kv.getKey();
+								final Optional<DedupKey> maybe_key = kv.getKey();
 								final Optional<LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> matching_records = maybe_key.map(key -> mutable_obj_map.get(key));
 								
 								// Stats:
@@ -369,16 +558,19 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 								//System.out.println("?? " + kv.getValue().size() + " vs " + maybe_key + " vs " + matching_records.map(x -> Integer.toString(x.size())).orElse("(no match)"));
 								
 								return matching_records.<Stream<JsonNode>>map(records -> 
-									handleDuplicateRecord(_doc_schema.get(), _custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())),
-															_timestamp_field.get(), records, kv.getValue(), maybe_key.get(), mutable_obj_map))
+									updateKeyCache(_key_cache.optional(), maybe_key.get(), kv.getValue(),
+										handleDuplicateRecord(_doc_schema.get(), _custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())),
+															_timestamp_field.get(), records, kv.getValue(), maybe_key.get(), mutable_obj_map),
+										mutable_obj_map))
 															.orElse(Stream.empty());
 							})
 							;
 			}
 			else {
-				Optionals.streamOf(cursor, true)
-					.forEach(ret_obj -> {
-						final Optional<JsonNode> maybe_key = getKeyFieldsAgain(ret_obj, fieldinfo_dedupquery_keyfields._3());
+				key_matches
+					.forEach(key_ret_obj -> {
+						final Optional<DedupKey> maybe_key = key_ret_obj._1();
+						final JsonNode ret_obj = key_ret_obj._2();
 						final Optional<LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> matching_records = maybe_key.map(key -> mutable_obj_map.get(key)); 
 		
 						//DEBUG
@@ -390,8 +582,10 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 						_mutable_stats.duplicates_incoming += matching_records.map(l -> l.size()).orElse(0);
 						
 						matching_records.ifPresent(records -> 
-							handleDuplicateRecord(_doc_schema.get(), _custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())),
-													_timestamp_field.get(), records, Arrays.asList(ret_obj), maybe_key.get(), mutable_obj_map));
+							updateKeyCache(_key_cache.optional(), maybe_key.get(), Arrays.asList(ret_obj),
+								handleDuplicateRecord(_doc_schema.get(), _custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())),
+													_timestamp_field.get(), records, Arrays.asList(ret_obj), maybe_key.get(), mutable_obj_map),
+								mutable_obj_map));
 					});		
 				return Stream.<JsonNode>empty();
 			}
@@ -403,36 +597,168 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 				.collect(Collectors.toList())
 				;
 		
-		if (!ids.isEmpty()) { // fire a bulk deletion request
-			mutable_uncompleted_deletes.add(_dedup_context.get().deleteObjectsBySpec(CrudUtils.allOf().withAny(AnnotationBean._ID, ids)));
+		if (!ids.isEmpty()) { // queue for bulk deletion (blocks if too many deletion requests are already outstanding)
+			Lambdas.wrap_runnable_u(() -> _delete_pipeline.get().add(ids)).run();
 			
 			_mutable_stats.deleted += ids.size();
+		}
+		
+		final boolean custom_finalize_all_objects = Optional.ofNullable(_doc_schema.get().custom_finalize_all_objects()).orElse(false);
+		
+		keys.stream().forEach(key -> Optional.ofNullable(mutable_obj_map.remove(key)).ifPresent(records -> {
+			_mutable_stats.nonduplicate_keys++;
 			
-			//(quickly see if we can reduce the number of outstanding requests)
-			final Iterator<CompletableFuture<Long>> it = mutable_uncompleted_deletes.iterator();
-			while (it.hasNext()) {
-				final CompletableFuture<Long> cf = it.next();
-				if (cf.isDone()) {
-					it.remove();
-				}
-				else break; // ie stop as soon as we hit one that isn't complete)
+			if (custom_finalize_all_objects) {
+				handleCustomDeduplication(_custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())), 
+											records, Collections.emptyList(), key.getKey());
 			}
-		}
+			else { // Just emit the last element of each grouped object set
+				final Tuple3<Long, IBatchRecord, ObjectNode> t = records.peekLast();
+				_context.get().emitImmutableObject(t._1(), t._2().getJson(), Optional.of(t._3()), Optional.empty(), Optional.empty());
+				_key_cache.optional().ifPresent(cache -> cache.onEmitted(key, t._2().getJson(), t._3()));
+			}
+		}));
+	}
+
+
+	/** Looks up the stored objects matching a dedup query - in parallel across the stores if the deduplication context spans multiple buckets
+	 *  (see DedupMultiContextLookup), else via the single deduplication context service
+	 * @param query - the dedup query
+	 * @param field_list - the fields to include or exclude
+	 * @param include - whether the fields are included or excluded
+	 * @return a future containing the matching stored objects
+	 */
+	protected CompletableFuture<Iterator<JsonNode>> lookup(final QueryComponent<JsonNode> query, final List<String> field_list, final boolean include) {
+		return _multi_context_lookup.optional()
+				.map(multi_lookup -> multi_lookup.getObjectsBySpec(query, field_list, include))
+				.orElseGet(() -> _dedup_context.get().getObjectsBySpec(query, field_list, include).thenApply(cursor -> cursor.iterator()));
+	}
+	
+	/** For custom_update, replaces the (projected) stored objects of the keys that are going to be passed to the custom module with the full 
+	 *  stored objects - fetched in one query, without blocking (ie as part of the chunk's lookup)
+	 * @param stored_objects - the (projected) stored objects returned from the lookup
+	 * @param latest_new_records - key -> the latest new record for that key
+	 * @param key_fields - the field-or-fields that form the key (see getKeyFields)
+	 * @param is_in_time_window - filters out the stored objects that don't match (see handleWorkingSet)
+	 * @return a future containing the stored objects, full where needed
+	 */
+	protected CompletableFuture<Iterator<JsonNode>> fetchFullRecords(final Iterator<JsonNode> stored_objects, 
+			final Map<DedupKey, JsonNode> latest_new_records,
+			final Either<String, List<String>> key_fields,
+			final Predicate<Tuple2<Optional<DedupKey>, JsonNode>> is_in_time_window)
+	{
+		final List<Tuple2<Optional<DedupKey>, JsonNode>> key_matches = Optionals.streamOf(stored_objects, false)
+				.map(ret_obj -> Tuples._2T(getKeyFieldsAgain(ret_obj, key_fields).map(DedupKey::of), ret_obj))
+				.collect(Collectors.toList());
 		
-		_mutable_stats.nonduplicate_keys += mutable_obj_map.size();			
+		// (custom_update only calls the module if the new record is newer than the first matching stored one, see handleDuplicateRecord)
+		final Set<DedupKey> needs_full_records = key_matches.stream()
+				.filter(is_in_time_window)
+				.filter(t2 -> t2._1().isPresent())
+				.collect(Collectors.toMap(t2 -> t2._1().get(), t2 -> t2._2(), (j1, j2) -> j1))
+				.entrySet().stream()
+				.filter(kv -> Optional.ofNullable(latest_new_records.get(kv.getKey())).filter(new_record -> newRecordUpdatesOld(_timestamp_field.get(), new_record, kv.getValue())).isPresent())
+				.map(kv -> kv.getKey())
+				.collect(Collectors.toSet());
 		
-		if (Optional.ofNullable(_doc_schema.get().custom_finalize_all_objects()).orElse(false)) {
-			mutable_obj_map.entrySet().stream()
-				.forEach(kv -> handleCustomDeduplication(_custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())), 
-															kv.getValue(), Collections.emptyList(), kv.getKey()))
-				;			
+		final List<Object> ids = key_matches.stream()
+				.filter(t2 -> t2._1().filter(key -> needs_full_records.contains(key)).isPresent())
+				.map(t2 -> t2._2().get(AnnotationBean._ID))
+				.filter(j -> null != j)
+				.map(j -> jsonToObject(j))
+				.filter(j -> null != j)
+				.distinct()
+				.collect(Collectors.toList());
+		
+		if (ids.isEmpty()) {
+			return CompletableFuture.completedFuture(key_matches.stream().map(t2 -> t2._2()).iterator());
 		}
-		else { // Just emit the last element of each grouped object set
-			mutable_obj_map.values().stream()
-				.map(t -> t.peekLast())
-				.forEach(t -> _context.get().emitImmutableObject(t._1(), t._2().getJson(), Optional.of(t._3()), Optional.empty(), Optional.empty()))
-				;
+		return lookup(CrudUtils.allOf().withAny(AnnotationBean._ID, ids).limit(Integer.MAX_VALUE), Arrays.asList(), false)
+				.thenApply(full_cursor -> {
+					final Map<JsonNode, JsonNode> full_records = Optionals.streamOf(full_cursor, false)
+							.filter(j -> j.has(AnnotationBean._ID))
+							.collect(Collectors.toMap(j -> j.get(AnnotationBean._ID), j -> j, (j1, j2) -> j1));
+					
+					return key_matches.stream()
+							.map(t2 -> t2._2())
+							.map(j -> Optional.ofNullable(j.get(AnnotationBean._ID)).map(id -> full_records.get(id)).orElse(j))
+							.iterator();
+				});
+	}
+	
+	/** Returns the time range that stored objects must be in to match a set of new records (their timestamps, widened by the window)
+	 * @param timestamp_field
+	 * @param window_ms - the time window (either side of the new records' timestamps)
+	 * @param new_records - the new records for a key
+	 * @return the (min, max) time range, or empty if any of the new records doesn't have a timestamp (in which case it matches all stored objects)
+	 */
+	protected static Optional<Tuple2<Long, Long>> getTimeWindow(final String timestamp_field, final long window_ms, final Collection<Tuple3<Long, IBatchRecord, ObjectNode>> new_records) {
+		final List<Optional<Long>> timestamps = new_records.stream()
+				.map(t3 -> JsonUtils.getProperty(timestamp_field, t3._2().getJson()).flatMap(ts -> getTimestampFromJsonNode(ts)))
+				.collect(Collectors.toList());
+		
+		if (timestamps.isEmpty() || timestamps.stream().anyMatch(ts -> !ts.isPresent())) {
+			return Optional.empty();
 		}
+		final LongSummaryStatistics stats = timestamps.stream().mapToLong(ts -> ts.get()).summaryStatistics();
+		return Optional.of(Tuples._2T(stats.getMin() - window_ms, stats.getMax() + window_ms));
+	}
+	
+	/** Combines the time ranges of a set of keys (eg to push down into the query for a chunk of keys)
+	 * @param windows - the time ranges of the keys (see getTimeWindow)
+	 * @return the overall range, or empty if any of the keys don't have a range
+	 */
+	protected static Optional<Tuple2<Long, Long>> getTimeWindow(final Stream<Optional<Tuple2<Long, Long>>> windows) {
+		return windows.reduce(Optional.of(Tuples._2T(Long.MAX_VALUE, Long.MIN_VALUE)), 
+				(acc, window) -> acc.flatMap(a -> window.map(w -> Tuples._2T(Math.min(a._1(), w._1()), Math.max(a._2(), w._2())))),
+				(acc1, acc2) -> acc1 //(not possible because not parallel())
+				)
+				.filter(w -> w._1() <= w._2());
+	}
+	
+	/** Checks whether a stored object is within a key's time range
+	 * @param timestamp_field
+	 * @param window - the time range of the key (see getTimeWindow), if empty then everything is in range
+	 * @param stored_obj
+	 * @return true if the stored object can match - stored objects without a timestamp never match when a time range is applied
+	 */
+	protected static boolean isInTimeWindow(final String timestamp_field, final Optional<Tuple2<Long, Long>> window, final JsonNode stored_obj) {
+		return window.map(w -> JsonUtils.getProperty(timestamp_field, stored_obj).flatMap(ts -> getTimestampFromJsonNode(ts)).filter(ts -> (ts >= w._1()) && (ts <= w._2())).isPresent())
+					.orElse(true);
+	}
+	
+	/** Restricts a dedup query to a time range
+	 * @param query - the dedup query (see getDedupQuery)
+	 * @param timestamp_field - the (DB) timestamp field
+	 * @param window - the (min, max) time range
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static QueryComponent<JsonNode> addTimeWindow(final QueryComponent<JsonNode> query, final String timestamp_field, final Tuple2<Long, Long> window) {
+		return CrudUtils.allOf(query, CrudUtils.allOf().rangeIn(timestamp_field, window._1(), false, window._2(), false)).limit(Integer.MAX_VALUE);
+	}
+	
+	/** Keeps the recently-seen key cache (if enabled) up to date once a key with matching stored objects has been handled
+	 * @param maybe_cache - the key cache, if enabled 
+	 * @param key - the dedup key
+	 * @param old_records - the matching stored objects
+	 * @param ids_to_delete - the ids of the stored objects to delete (as returned from handleDuplicateRecord)
+	 * @param mutable_obj_map - the map of keys to new objects (if the key is no longer present then the new object has been discarded)
+	 * @return the ids to delete (materialized if the cache is enabled)
+	 */
+	protected static Stream<JsonNode> updateKeyCache(final Optional<DedupKeyCache> maybe_cache, final DedupKey key, 
+			final List<JsonNode> old_records, final Stream<JsonNode> ids_to_delete,
+			final Map<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map)
+	{
+		return maybe_cache.map(cache -> {
+			final List<JsonNode> ids = ids_to_delete.collect(Collectors.toList());
+			if (!mutable_obj_map.containsKey(key)) { // (else the new object will be emitted, and the key cached then)
+				old_records.stream().findFirst().ifPresent(old_record -> cache.onResolved(key, old_record));
+			}
+			cache.onDeleted(key, ids);
+			return ids.stream();
+		})
+		.orElse(ids_to_delete);
 	}
 
 	/**Tidiness util (converts a long/int/double/float/stirng jsonnode value to its atomic type
@@ -481,8 +807,8 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			final String timestamp_field,
 			final LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>> new_records, 
 			final List<JsonNode> old_records,
-			final JsonNode key,
-			final Map<JsonNode, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map
+			final DedupKey key,
+			final Map<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map
 			)
 	{
 		return Patterns.match(config.deduplication_policy()).<Stream<JsonNode>>andReturn()
@@ -514,7 +840,7 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 					final JsonNode old_record = old_records.stream().findFirst().get();
 					if (newRecordUpdatesOld(timestamp_field, last_record._2().getJson(), old_record)) {
 						mutable_obj_map.remove(key); // (since the "final step" logic is responsible for calling the update code)
-						return handleCustomDeduplication(custom_handler, new_records, old_records, key);
+						return handleCustomDeduplication(custom_handler, new_records, old_records, key.getKey());
 					}
 					else {
 						mutable_obj_map.remove(key); //(drop new record)
@@ -523,7 +849,7 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 				})
 				.otherwise(__ -> {
 					mutable_obj_map.remove(key); // (since the "final step" logic is responsible for calling the update code)		
-					return handleCustomDeduplication(custom_handler, new_records, old_records, key);
+					return handleCustomDeduplication(custom_handler, new_records, old_records, key.getKey());
 				});
 	}
 	
@@ -538,7 +864,8 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 				.when(p -> p == DeduplicationPolicy.leave, __ -> Tuples._2T(Arrays.asList(AnnotationBean._ID), true))
 				.when(p -> p == DeduplicationPolicy.update, __ -> Tuples._2T(Arrays.asList(AnnotationBean._ID, timestamp_field), true))
 				.when(p -> p == DeduplicationPolicy.overwrite, __ -> Tuples._2T(Arrays.asList(AnnotationBean._ID), true))
-				.otherwise(__ -> Tuples._2T(Arrays.asList(), false))
+				.when(p -> p == DeduplicationPolicy.custom_update, __ -> Tuples._2T(Arrays.asList(AnnotationBean._ID, timestamp_field), true)) // (the full records are then fetched only for the keys passed to the custom module, see fetchFullRecords)
+				.otherwise(__ -> Tuples._2T(Arrays.asList(), false)) // (custom: the module gets every match, so just return the full records)
 			)
 			.map(t2 -> t2._2() 
 					? Tuples._2T(Stream.concat(t2._1().stream(), dedup_fields.stream()).collect(Collectors.toList()), t2._2())
@@ -652,42 +979,68 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			final Function<String, String> db_field_mapper
 	)
 	{
-		if (1 == dedup_fields.size()) { // this is a simpler case
-			final String key_field = dedup_fields.stream().findFirst().get();
-			final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = extractKeyField(batch, key_field);
-			return Tuples._3T(
-					CrudUtils.allOf().withAny(db_field_mapper.apply(key_field), field_info.stream().map(t2 -> JsonUtils.jacksonToJava(t2._1())).collect(Collectors.toList())).limit(Integer.MAX_VALUE)
-					,
-					field_info
-					,
-					getKeyFields(dedup_fields)
-					);
-		}
-		else {
-			final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = extractKeyFields(batch, dedup_fields);
-			
-			final Stream<QueryComponent<JsonNode>> elements =
-				field_info.stream()
-					.map(t2 -> {
-						return Optionals.streamOf(t2._1().fields(), false)
-						 	.reduce(CrudUtils.allOf(),
-						 			(acc, kv) -> acc.when(db_field_mapper.apply(kv.getKey()), JsonUtils.jacksonToJava(kv.getValue())),
-						 			(acc1, acc2) -> acc1 // (not possible because not parallel()
-						 			)
-						 	;
-					})
-					;
-			
-			final QueryComponent<JsonNode> query_dedup = 
-					Optional.of(CrudUtils.anyOf(elements).limit(Integer.MAX_VALUE))
-							//(consider putting a sort in here? I haven't so far because it seems like a lot of work when mostly there will just be a single object
-							// for each batch so we're doing a lot of sorting completely unnecessarily
-							// ... the downside is that if there are a large number of duplicates then the memory usage could get painful if they're not sorted...)
-							.get()
+		final Either<String, List<String>> key_fields = getKeyFields(dedup_fields);
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = extractKeyFieldOrFields(batch, key_fields);
+		
+		return Tuples._3T(
+				getDedupQuery(field_info.stream().map(t2 -> t2._1()).collect(Collectors.toList()), key_fields, db_field_mapper)
+				,
+				field_info
+				,
+				key_fields
+				);
+	}
+	
+	/** Creates the query for a set of keys
+	 * @param keys - the keys (single values or objects of field/value, depending on key_fields) to look up
+	 * @param key_fields - the field-or-fields that form the key (see getKeyFields)
+	 * @param db_field_mapper - allows the fields to be transformed (see above)
+	 * @return the query to apply
+	 */
+	protected static QueryComponent<JsonNode> getDedupQuery(
+			final Collection<JsonNode> keys, 
+			final Either<String, List<String>> key_fields,
+			final Function<String, String> db_field_mapper
+	)
+	{
+		return key_fields.<QueryComponent<JsonNode>>either(
+				key_field -> // this is a simpler case
+					CrudUtils.allOf().withAny(db_field_mapper.apply(key_field), keys.stream().map(key -> JsonUtils.jacksonToJava(key)).collect(Collectors.toList())).limit(Integer.MAX_VALUE)
+				,
+				__ -> {
+					final Stream<QueryComponent<JsonNode>> elements =
+						keys.stream()
+							.map(key -> {
+								return Optionals.streamOf(key.fields(), false)
+								 	.reduce(CrudUtils.allOf(),
+								 			(acc, kv) -> acc.when(db_field_mapper.apply(kv.getKey()), JsonUtils.jacksonToJava(kv.getValue())),
+								 			(acc1, acc2) -> acc1 // (not possible because not parallel()
+								 			)
+								 	;
+							})
 							;
-			
-			return Tuples._3T(query_dedup, field_info, getKeyFields(dedup_fields));
-		}		
+					
+					return Optional.of(CrudUtils.anyOf(elements).limit(Integer.MAX_VALUE))
+								//(consider putting a sort in here? I haven't so far because it seems like a lot of work when mostly there will just be a single object
+								// for each batch so we're doing a lot of sorting completely unnecessarily
+								// ... the downside is that if there are a large number of duplicates then the memory usage could get painful if they're not sorted...)
+								.get()
+								;
+				});
+	}
+	
+	/** Utility to find the key for each of a stream of objects from single/multiple fields
+	 * @param in - stream of JSON objects
+	 * @param key_field_or_fields
+	 * @return
+	 */
+	protected static List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> extractKeyFieldOrFields(final Stream<Tuple2<Long, IBatchRecord>> in, final Either<String, List<String>> key_field_or_fields) {
+		return key_field_or_fields.either(
+				key_field -> extractKeyField(in, key_field)
+				,
+				key_fields -> extractKeyFields(in, key_fields)
+				)
+				;
 	}
 	
 	/** Utility to find fragments of a json object from single/multiple fields
@@ -766,21 +1119,11 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		final Supplier<String> subsystem_builder = () -> (_is_system_dedup_stage.get() ? "" : ("." + _control.get().name() + Optional.ofNullable("no_name")));
 		final Supplier<String> command_builder = () -> (_is_system_dedup_stage.get() ? "system" : _control.get().name() + Optional.ofNullable("no_name"));
 		
-		_logger.optional().ifPresent(l -> l.log(Level.DEBUG,
-				ErrorUtils.lazyBuildMessage(true, 
-						() -> "DeduplicationService" + subsystem_builder.get(),
-						() -> command_builder.get() + ".onStageComplete", 
-						() -> null, 
-						() -> ErrorUtils.get("Job {0} completed deduplication: nondup_keys={1}, dup_keys={2}, dups_inc={3}, dups_db={4}, del={5}",
-								command_builder.get(),
-								Integer.toString(_mutable_stats.nonduplicate_keys), Integer.toString(_mutable_stats.duplicate_keys), Integer.toString(_mutable_stats.duplicates_incoming), Integer.toString(_mutable_stats.duplicates_existing),
-								Integer.toString(_mutable_stats.deleted)), 
-						() -> (Map<String, Object>)_mapper.convertValue(_mutable_stats, Map.class))
-						));
-		
-		if (!mutable_uncompleted_deletes.isEmpty()) {
+		_delete_pipeline.optional().ifPresent(pipeline -> {
 			try {
-				CompletableFuture.allOf(mutable_uncompleted_deletes.stream().toArray(CompletableFuture[]::new)).get(60, TimeUnit.SECONDS);
+				if (!pipeline.complete(_delete_completion_timeout_secs.get(), TimeUnit.SECONDS)) {
+					throw new RuntimeException(ErrorUtils.get("timed out with {0} requests outstanding", Integer.toString(pipeline.inFlight())));
+				}
 			}
 			catch (Exception e) {
 				_logger.optional().ifPresent(l -> l.log(Level.ERROR, 
@@ -792,7 +1135,23 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 								() -> null)
 								));
 			}
-		}
+			_mutable_stats.delete_requests = (int) pipeline.requests();
+			_mutable_stats.deletes_acknowledged = (int) pipeline.acknowledgedDeletes();
+			_mutable_stats.delete_failures = (int) pipeline.failedIds();
+		});
+		
+		_logger.optional().ifPresent(l -> l.log(Level.DEBUG,
+				ErrorUtils.lazyBuildMessage(true, 
+						() -> "DeduplicationService" + subsystem_builder.get(),
+						() -> command_builder.get() + ".onStageComplete", 
+						() -> null, 
+						() -> ErrorUtils.get("Job {0} completed deduplication: nondup_keys={1}, dup_keys={2}, dups_inc={3}, dups_db={4}, del={5}, del_acked={6}, del_failed={7}",
+								command_builder.get(),
+								Integer.toString(_mutable_stats.nonduplicate_keys), Integer.toString(_mutable_stats.duplicate_keys), Integer.toString(_mutable_stats.duplicates_incoming), Integer.toString(_mutable_stats.duplicates_existing),
+								Integer.toString(_mutable_stats.deleted), Integer.toString(_mutable_stats.deletes_acknowledged), Integer.toString(_mutable_stats.delete_failures)), 
+						() -> (Map<String, Object>)_mapper.convertValue(_mutable_stats, Map.class))
+						));
+		
 		_logger.optional().ifPresent(Lambdas.wrap_consumer_u(l -> l.flush().get(60, TimeUnit.SECONDS)));
 	}
 
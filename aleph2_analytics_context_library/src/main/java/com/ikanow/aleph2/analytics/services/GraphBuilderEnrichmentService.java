@@ -16,11 +16,17 @@
 
 package com.ikanow.aleph2.analytics.services;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import scala.Tuple2;
 
@@ -90,18 +96,19 @@ public class GraphBuilderEnrichmentService implements IEnrichmentBatchModule {
 	public void onObjectBatch(Stream<Tuple2<Long, IBatchRecord>> batch,
 			Optional<Integer> batch_size, Optional<JsonNode> grouping_key)
 	{
-		if (_enabled.get()) { // Also process +annoying hack to ensure the stream is also emitted normally
+		final Consumer<Tuple2<Long, IBatchRecord>> passthrough = 
+				t2 -> _context.get().emitImmutableObject(t2._1(), t2._2().getJson(), Optional.empty(), Optional.empty(), grouping_key);
+		
+		if (_enabled.get() && _delegate.isSet()) { // Graph builder and passthrough both need the batch, so make it replayable
+			final ReplayableStream<Tuple2<Long, IBatchRecord>> replayable_batch = new ReplayableStream<>(batch);
+			
+			_delegate.get().onObjectBatch(replayable_batch.stream(), batch_size, grouping_key);
 			
-			_delegate.optional().ifPresent(delegate -> delegate.onObjectBatch(
-					batch.peek(t2 -> _context.get().emitImmutableObject(t2._1(), t2._2().getJson(), Optional.empty(), Optional.empty(), grouping_key)), 
-					batch_size, grouping_key));
+			replayable_batch.stream().forEach(passthrough);
 		}
-		try { // Passthrough if the stream hasn't been processed (ie not enabled), else harmless error
-			batch.forEach(t2 -> _context.get().emitImmutableObject(t2._1(), t2._2().getJson(), Optional.empty(), Optional.empty(), grouping_key));			
+		else { // Passthrough only, no need to cache anything
+			batch.forEach(passthrough);
 		}
-		catch (IllegalStateException e) {
-			// just means the stream was already processed, ie the above peek worked, ie we're good
-		} 
 	}
 
 	/* (non-Javadoc)
@@ -129,4 +136,59 @@ public class GraphBuilderEnrichmentService implements IEnrichmentBatchModule {
 		return _delegate.optional().map(delegate -> delegate.validateModule(context, bucket, control)).orElse(Collections.emptyList());
 	}
 	
+	/** Wraps a (single use) stream so that it can be iterated over multiple times
+	 *  Elements are only pulled from the underlying stream (and cached) the first time any of the replays reaches them,
+	 *  so a replay that stops early (or a consumer that ignores the stream altogether) doesn't force the whole batch into memory
+	 *  (Not thread safe - intended for the sequential consumers of a single batch)
+	 * @author Alex
+	 *
+	 * @param <T> - the element type of the stream
+	 */
+	public static class ReplayableStream<T> {
+		protected final Iterator<T> _source;
+		protected final ArrayList<T> _cache = new ArrayList<>();
+		
+		/** Wraps the stream - the stream should not be used by the caller after this
+		 * @param source - the stream to make replayable
+		 */
+		public ReplayableStream(final Stream<T> source) {
+			_source = source.iterator();
+		}
+		
+		/** Returns a new stream starting from the first element of the underlying stream
+		 * @return
+		 */
+		public Stream<T> stream() {
+			final Iterator<T> it = new Iterator<T>() {
+				int _index = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return (_index < _cache.size()) || _source.hasNext();
+				}
+
+				@Override
+				public T next() {
+					if (_index < _cache.size()) {
+						return _cache.get(_index++);
+					}
+					else { // (throws NoSuchElementException if the underlying stream is exhausted)
+						final T t = _source.next();
+						_cache.add(t);
+						_index++;
+						return t;
+					}
+				}				
+			};
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+		}
+		
+		/** The number of elements pulled from the underlying stream so far
+		 * @return
+		 */
+		public int materializedSize() {
+			return _cache.size();
+		}
+	}
+	
 }
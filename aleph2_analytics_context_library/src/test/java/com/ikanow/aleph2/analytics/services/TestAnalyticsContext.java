@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -55,6 +56,7 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.analytics.services.AnalyticsContext.State;
 import com.ikanow.aleph2.analytics.utils.ErrorUtils;
+import com.ikanow.aleph2.core.shared.services.MultiDataService;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsAccessContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
@@ -456,6 +458,28 @@ public class TestAnalyticsContext {
 //		}
 	}
 	
+	@Test
+	public void test_emitObject() throws IOException {
+		_logger.info("run test_emitObject");
+		
+		final AnalyticsContext test_context = _app_injector.getInstance(AnalyticsContext.class);
+		final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/emit").done().get();
+		test_context.setBucket(test_bucket);
+		
+		// A single emit is handed to the writer straight away, ie without a later emit or flush
+		final List<JsonNode> written = new ArrayList<>();
+		test_context._multi_writer.set(new MultiDataService(test_bucket, test_context._service_context, Optional.empty(), Optional.empty()) {
+			@Override
+			public boolean batchWrite(final List<JsonNode> obj_jsons) {
+				written.addAll(obj_jsons);
+				return true;
+			}
+		});
+		final JsonNode obj = _mapper.readTree("{\"test\":\"emit\"}");
+		assertTrue(test_context.emitObject(Optional.empty(), BeanTemplateUtils.build(AnalyticThreadJobBean.class).done().get(), Either.left(obj), Optional.empty()).isSuccess());
+		assertEquals(Arrays.asList(obj), written);
+	}
+	
 	public static class TestBean {}	
 	
 	@Test
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class TestDedupDeletePipeline {
+
+	@Test
+	public void test_batchingAndCounters() throws InterruptedException {
+		final List<List<Object>> requests = new ArrayList<>();
+		final List<CompletableFuture<Long>> futures = new ArrayList<>();
+
+		final DedupDeletePipeline under_test = new DedupDeletePipeline(ids -> {
+			requests.add(ids);
+			final CompletableFuture<Long> f = new CompletableFuture<>();
+			futures.add(f);
+			return f;
+		}, 3, 2);
+
+		// Batches up ids
+		under_test.add(Arrays.asList("a", "b"));
+		assertEquals(0, requests.size());
+		under_test.add(Arrays.asList("c", "d"));
+		assertEquals(1, requests.size());
+		assertEquals(Arrays.asList("a", "b", "c"), requests.get(0));
+		assertEquals(1, under_test.inFlight());
+
+		// Acknowledged incrementally
+		futures.get(0).complete(3L);
+		assertEquals(0, under_test.inFlight());
+		assertEquals(1L, under_test.acknowledgedRequests());
+		assertEquals(3L, under_test.acknowledgedDeletes());
+
+		under_test.add(Arrays.asList("e", "f", "g", "h", "i"));
+		assertEquals(3, requests.size());
+		assertEquals(2, under_test.inFlight());
+
+		// Failures
+		futures.get(1).completeExceptionally(new RuntimeException("test"));
+		assertEquals(1L, under_test.failedRequests());
+		assertEquals(3L, under_test.failedIds());
+
+		// Times out if requests don't complete
+		under_test.add(Arrays.asList("j"));
+		assertEquals(3, requests.size());
+		assertFalse(under_test.complete(100L, TimeUnit.MILLISECONDS));
+		assertEquals(4, requests.size()); // (the remaining id was sent)
+		assertEquals(Arrays.asList("j"), requests.get(3));
+
+		futures.get(2).complete(3L);
+		futures.get(3).complete(1L);
+		assertTrue(under_test.complete(100L, TimeUnit.MILLISECONDS));
+
+		assertEquals(4L, under_test.requests());
+		assertEquals(10L, under_test.requestedIds());
+		assertEquals(3L, under_test.acknowledgedRequests());
+		assertEquals(7L, under_test.acknowledgedDeletes());
+		assertEquals(0, under_test.inFlight());
+	}
+
+	@Test
+	public void test_flush() throws InterruptedException {
+		final List<List<Object>> requests = new ArrayList<>();
+		final DedupDeletePipeline under_test = new DedupDeletePipeline(ids -> {
+			requests.add(ids);
+			return CompletableFuture.completedFuture((long) ids.size());
+		}, 10, 2);
+
+		// Partial batches are sent by flush, without waiting for stage completion
+		under_test.add(Arrays.asList("a", "b"));
+		assertEquals(0, requests.size());
+		under_test.flush();
+		assertEquals(1, requests.size());
+		assertEquals(Arrays.asList("a", "b"), requests.get(0));
+		assertEquals(2L, under_test.acknowledgedDeletes());
+
+		// (nothing to send)
+		under_test.flush();
+		assertEquals(1, requests.size());
+		assertTrue(under_test.complete(100L, TimeUnit.MILLISECONDS));
+		assertEquals(1, requests.size());
+	}
+
+	@Test
+	public void test_boundedInFlight() throws InterruptedException {
+		final List<CompletableFuture<Long>> futures = new ArrayList<>();
+		final DedupDeletePipeline under_test = new DedupDeletePipeline(ids -> {
+			final CompletableFuture<Long> f = CompletableFuture.supplyAsync(() -> {
+				try { Thread.sleep(50L); } catch (InterruptedException e) {}
+				return (long) ids.size();
+			});
+			synchronized (futures) { futures.add(f); }
+			return f;
+		}, 1, 2);
+
+		// Adding blocks until there's room, so never more than 2 outstanding
+		under_test.add(IntStream.range(0, 6).boxed().collect(Collectors.toList()));
+		assertTrue(under_test.inFlight() <= 2);
+		synchronized (futures) {
+			assertTrue(futures.stream().filter(f -> !f.isDone()).count() <= 2);
+		}
+		assertTrue(under_test.complete(10L, TimeUnit.SECONDS));
+		assertEquals(6L, under_test.acknowledgedDeletes());
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestDedupKey {
+	protected static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@Test
+	public void test_dedupKey() {
+		// Single field keys
+		{
+			final DedupKey key1 = DedupKey.of(new TextNode("test"));
+			final DedupKey key2 = DedupKey.of(new TextNode("test"));
+			final DedupKey key3 = DedupKey.of(new TextNode("test2"));
+
+			assertEquals(key1, key2);
+			assertEquals(key1.hashCode(), key2.hashCode());
+			assertNotEquals(key1, key3);
+			assertNotEquals(key1, new TextNode("test"));
+			assertEquals(new TextNode("test"), key1.getKey());
+			assertEquals("\"test\"", key1.toString());
+		}
+		// Single field keys - other scalars (compared as per their serialized form)
+		{
+			final TextNode text = new TextNode("1");
+			final DedupKey key1 = DedupKey.of(new IntNode(1));
+			final DedupKey key2 = DedupKey.of(new LongNode(1L));
+			final DedupKey key3 = DedupKey.of(text);
+
+			assertEquals(key1, key2);
+			assertEquals(key1.hashCode(), key2.hashCode());
+			assertNotEquals(key1, key3);
+			assertNotEquals(key3, key1);
+			assertSame(text, key3.getKey());
+		}
+		// Multi field keys (eg from a new and a stored record)
+		{
+			final ObjectNode obj1 = _mapper.createObjectNode();
+			obj1.put("field_1", "a");
+			obj1.with("nested").put("nested_1", 1L);
+			final ObjectNode obj2 = _mapper.createObjectNode();
+			obj2.put("field_1", "a");
+			obj2.with("nested").put("nested_1", 1L);
+			final ObjectNode obj3 = _mapper.createObjectNode();
+			obj3.put("field_1", "a");
+			obj3.with("nested").put("nested_1", 2L);
+
+			assertEquals(DedupKey.of(obj1), DedupKey.of(obj2));
+			assertEquals(DedupKey.of(obj1).hashCode(), DedupKey.of(obj2).hashCode());
+			assertNotEquals(DedupKey.of(obj1), DedupKey.of(obj3));
+			assertNotEquals(DedupKey.of(obj1), DedupKey.of(new TextNode("a")));
+			assertSame(obj1, DedupKey.of(obj1).getKey());
+		}
+		// Collision-safe: same digest, different keys
+		{
+			final DedupKey key1 = new DedupKey(_mapper.createArrayNode().add("test1"), 1L, 2L, "[\"test1\"]".getBytes());
+			final DedupKey key2 = new DedupKey(_mapper.createArrayNode().add("test2"), 1L, 2L, "[\"test2\"]".getBytes());
+			assertEquals(key1.hashCode(), key2.hashCode());
+			assertNotEquals(key1, key2);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestDedupKeyCache {
+	protected static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@Test
+	public void test_keyCache_idRequired() {
+		final DedupKeyCache under_test = new DedupKeyCache(100L, 300L, "nested.ts", true);
+
+		final DedupKey key1 = DedupKey.of(new TextNode("key1"));
+		final DedupKey key2 = DedupKey.of(new TextNode("key2"));
+		final DedupKey key3 = DedupKey.of(new TextNode("key3"));
+
+		// From a lookup:
+		final ObjectNode stored_obj = _mapper.createObjectNode();
+		stored_obj.put("_id", "id1");
+		stored_obj.put("other", "ignore_me");
+		stored_obj.with("nested").put("ts", 1000L);
+		under_test.onResolved(key1, stored_obj);
+
+		// From an emit, _id from the mutations
+		final ObjectNode emitted_obj = _mapper.createObjectNode();
+		emitted_obj.put("_id", "not_this_id");
+		emitted_obj.with("nested").put("ts", 2000L);
+		final ObjectNode mutations = _mapper.createObjectNode();
+		mutations.put("_id", "id2");
+		under_test.onEmitted(key2, emitted_obj, mutations);
+
+		// From an emit, no _id - so not cached
+		under_test.onEmitted(key3, _mapper.createObjectNode(), _mapper.createObjectNode());
+
+		final Map<DedupKey, JsonNode> res = under_test.getKnown(Arrays.asList(key1, key2, key3));
+		assertEquals(2, res.size());
+		assertEquals("{\"_id\":\"id1\",\"nested\":{\"ts\":1000}}", res.get(key1).toString());
+		assertEquals("{\"_id\":\"id2\",\"nested\":{\"ts\":2000}}", res.get(key2).toString());
+
+		// Deletes - only invalidate if the id matches
+		under_test.onDeleted(key1, Arrays.asList(new TextNode("id_other")));
+		under_test.onDeleted(key1, Collections.emptyList());
+		assertEquals(2, under_test.getKnown(Arrays.asList(key1, key2, key3)).size());
+		under_test.onDeleted(key1, Arrays.asList(new TextNode("id_other"), new TextNode("id1")));
+		assertEquals(Arrays.asList(key2), Arrays.asList(under_test.getKnown(Arrays.asList(key1, key2, key3)).keySet().toArray()));
+
+		// Overwriting with an unusable object invalidates
+		under_test.onResolved(key2, _mapper.createObjectNode());
+		assertEquals(0, under_test.getKnown(Arrays.asList(key1, key2, key3)).size());
+	}
+
+	@Test
+	public void test_keyCache_idNotRequired() {
+		final DedupKeyCache under_test = new DedupKeyCache(2L, 300L, "ts", false);
+
+		final DedupKey key1 = DedupKey.of(new TextNode("key1"));
+		final DedupKey key2 = DedupKey.of(new TextNode("key2"));
+		final DedupKey key3 = DedupKey.of(new TextNode("key3"));
+
+		under_test.onEmitted(key1, _mapper.createObjectNode(), _mapper.createObjectNode());
+		assertEquals("{}", under_test.getKnown(Arrays.asList(key1)).get(key1).toString());
+
+		// Check is bounded
+		under_test.onEmitted(key2, _mapper.createObjectNode(), _mapper.createObjectNode());
+		under_test.onEmitted(key3, _mapper.createObjectNode(), _mapper.createObjectNode());
+		assertEquals(2L, under_test.size());
+	}
+}
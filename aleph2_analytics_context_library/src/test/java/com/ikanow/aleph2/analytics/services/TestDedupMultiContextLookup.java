@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.ImmutableList;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
+import com.ikanow.aleph2.data_model.objects.shared.AnnotationBean;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+
+public class TestDedupMultiContextLookup {
+
+	@SuppressWarnings("unchecked")
+	protected static ICrudService<JsonNode> getStore(final CompletableFuture<Cursor<JsonNode>> result) {
+		final ICrudService<JsonNode> crud = Mockito.mock(ICrudService.class);
+		Mockito.when(crud.getObjectsBySpec(Matchers.any(QueryComponent.class), Matchers.anyListOf(String.class), Matchers.anyBoolean())).thenReturn(result);
+		return crud;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static CompletableFuture<Cursor<JsonNode>> getResults(final String... values) {
+		final Cursor<JsonNode> cursor = Mockito.mock(Cursor.class);
+		Mockito.when(cursor.iterator()).thenReturn(Arrays.<JsonNode>stream(values).map(TextNode::new).collect(Collectors.<JsonNode>toList()).iterator());
+		return CompletableFuture.completedFuture(cursor);
+	}
+
+	@Test
+	public void test_mergeInStoreOrder() {
+		final CompletableFuture<Cursor<JsonNode>> slow_results = new CompletableFuture<>();
+
+		final DedupMultiContextLookup under_test = new DedupMultiContextLookup(
+				ImmutableList.<Tuple2<String, ICrudService<JsonNode>>>of(
+						Tuples._2T("/test/1", getStore(slow_results)),
+						Tuples._2T("/test/2", getStore(getResults("c", "d"))),
+						Tuples._2T("/test/3", getStore(getResults()))
+						)
+				, 10000L);
+
+		final CompletableFuture<Iterator<JsonNode>> f = under_test.getObjectsBySpec(CrudUtils.allOf().when(AnnotationBean._ID, "a"), Collections.emptyList(), true);
+
+		// Issued in parallel, so waiting on the first store
+		assertFalse(f.isDone());
+		slow_results.complete(getResults("a", "b").join());
+
+		final List<String> results = Optionals.streamOf(f.join(), false).map(j -> j.asText()).collect(Collectors.toList());
+		assertEquals(Arrays.asList("a", "b", "c", "d"), results);
+	}
+
+	@Test
+	public void test_timeoutsAndErrors() {
+		// Timeout
+		{
+			final DedupMultiContextLookup under_test = new DedupMultiContextLookup(
+					ImmutableList.<Tuple2<String, ICrudService<JsonNode>>>of(
+							Tuples._2T("/test/1", getStore(getResults("a"))),
+							Tuples._2T("/test/2", getStore(new CompletableFuture<>()))
+							)
+					, 100L);
+
+			try {
+				under_test.getObjectsBySpec(CrudUtils.allOf().when(AnnotationBean._ID, "a"), Collections.emptyList(), true).join();
+				fail("Should have timed out");
+			}
+			catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+				assertTrue(e.getCause().getMessage().contains("/test/2"));
+			}
+		}
+		// Error
+		{
+			final CompletableFuture<Cursor<JsonNode>> error = new CompletableFuture<>();
+			error.completeExceptionally(new RuntimeException("test"));
+			final DedupMultiContextLookup under_test = new DedupMultiContextLookup(
+					ImmutableList.<Tuple2<String, ICrudService<JsonNode>>>of(
+							Tuples._2T("/test/1", getStore(error)),
+							Tuples._2T("/test/2", getStore(getResults("b")))
+							)
+					, 10000L);
+
+			try {
+				under_test.getObjectsBySpec(CrudUtils.allOf().when(AnnotationBean._ID, "a"), Collections.emptyList(), true).join();
+				fail("Should have errored");
+			}
+			catch (CompletionException e) {
+				assertEquals("test", e.getCause().getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void test_withTimeout() {
+		final CompletableFuture<String> completes = new CompletableFuture<>();
+		final CompletableFuture<String> f1 = DedupMultiContextLookup.withTimeout("test", completes, 10000L);
+		completes.complete("done");
+		assertEquals("done", f1.join());
+
+		final CompletableFuture<String> f2 = DedupMultiContextLookup.withTimeout("test", new CompletableFuture<>(), 50L);
+		try {
+			f2.join();
+			fail("Should have timed out");
+		}
+		catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+}
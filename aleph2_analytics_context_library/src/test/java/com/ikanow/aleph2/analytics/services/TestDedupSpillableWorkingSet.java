@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestDedupSpillableWorkingSet {
+	protected static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@Test
+	public void test_fitsInMemory() throws IOException {
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records = getRecords(5, 2);
+		final List<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> working_sets = new ArrayList<>();
+
+		assertEquals(0, DedupSpillableWorkingSet.forEachWorkingSet(records.iterator(), 5L, null, ws -> working_sets.add(new ArrayList<>(ws))));
+		assertEquals(1, working_sets.size());
+		assertEquals(records, working_sets.get(0)); // (same objects, not spilled)
+
+		// Empty
+		assertEquals(0, DedupSpillableWorkingSet.forEachWorkingSet(records.subList(0, 0).iterator(), 5L, null, ws -> fail("not called")));
+	}
+
+	@Test
+	public void test_spilled() throws IOException {
+		final File spill_dir = Files.createTempDirectory("test_dedup_spill").toFile();
+
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records = getRecords(20, 7);
+		final List<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> working_sets = new ArrayList<>();
+
+		assertEquals(5, DedupSpillableWorkingSet.forEachWorkingSet(records.iterator(), 4L, spill_dir, ws -> {
+			assertEquals(5, spill_dir.list().length); // (runs are still present while being merged)
+			working_sets.add(new ArrayList<>(ws));
+		}));
+		assertEquals(0, spill_dir.list().length); // (runs cleaned up)
+		spill_dir.delete();
+
+		checkWorkingSets(records, working_sets, 7, 4);
+	}
+
+	@Test
+	public void test_spilledMergePasses() throws IOException {
+		final File spill_dir = Files.createTempDirectory("test_dedup_spill").toFile();
+
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records = getRecords(20, 7);
+		final List<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> working_sets = new ArrayList<>();
+
+		// 10 runs, merged 3 at a time: 10 -> 4 -> 2
+		assertEquals(10, DedupSpillableWorkingSet.forEachWorkingSet(records.iterator(), 2L, 3, spill_dir, ws -> {
+			assertEquals(2, spill_dir.list().length); // (only the runs being merged are left)
+			working_sets.add(new ArrayList<>(ws));
+		}));
+		assertEquals(0, spill_dir.list().length); // (runs cleaned up)
+		spill_dir.delete();
+
+		checkWorkingSets(records, working_sets, 7, 2);
+	}
+
+	/** Checks that the working sets contain all the records, split between keys and in key order
+	 * @param records
+	 * @param working_sets
+	 * @param num_keys
+	 * @param max_size
+	 */
+	protected static void checkWorkingSets(final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records, final List<List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>> working_sets,
+			final int num_keys, final int max_size)
+	{
+		// Every record is present exactly once
+		assertEquals(records.size(), working_sets.stream().mapToInt(ws -> ws.size()).sum());
+
+		// Each working set is key complete and at least the max size (except the last)
+		final List<List<String>> keys_per_set = working_sets.stream().map(ws -> ws.stream().map(t2 -> t2._1().asText()).distinct().collect(Collectors.toList())).collect(Collectors.toList());
+		assertEquals(num_keys, keys_per_set.stream().mapToInt(l -> l.size()).sum());
+		IntStream.range(0, working_sets.size() - 1).forEach(i -> assertTrue(working_sets.get(i).size() >= max_size));
+
+		// Once spilled, the working sets are in key order (not arrival order)
+		final List<String> keys = keys_per_set.stream().flatMap(l -> l.stream()).collect(Collectors.toList());
+		assertEquals(keys.stream().sorted().collect(Collectors.toList()), keys);
+
+		// Within a key, the records are in their original order, and are the same as the originals
+		working_sets.stream().flatMap(ws -> ws.stream())
+			.collect(Collectors.groupingBy(t2 -> t2._1().asText()))
+			.forEach((key, l) -> {
+				final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> orig = records.stream().filter(t2 -> t2._1().asText().equals(key)).collect(Collectors.toList());
+				assertEquals(orig.stream().map(t2 -> t2._2()._1()).collect(Collectors.toList()), l.stream().map(t2 -> t2._2()._1()).collect(Collectors.toList()));
+				assertEquals(orig.stream().map(t2 -> t2._2()._2().getJson()).collect(Collectors.toList()), l.stream().map(t2 -> t2._2()._2().getJson()).collect(Collectors.toList()));
+				assertEquals(orig.stream().map(t2 -> t2._2()._2().injected()).collect(Collectors.toList()), l.stream().map(t2 -> t2._2()._2().injected()).collect(Collectors.toList()));
+				assertEquals(orig.stream().map(t2 -> t2._2()._2().getContent().map(c -> c.toString())).collect(Collectors.toList()),
+						l.stream().map(t2 -> t2._2()._2().getContent().map(c -> c.toString())).collect(Collectors.toList()));
+			});
+	}
+
+	/** Creates a set of records with keys "key0".."key(num_keys-1)" interleaved
+	 * @param num_records
+	 * @param num_keys
+	 * @return
+	 */
+	protected static List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> getRecords(final int num_records, final int num_keys) {
+		return IntStream.range(0, num_records).boxed().map(i -> {
+			final ObjectNode obj = _mapper.createObjectNode();
+			obj.put("index", i);
+			obj.put("key", "key" + (i % num_keys));
+			final IBatchRecord record = getRecord(i, obj);
+			return Tuples._2T((JsonNode) new TextNode(obj.get("key").asText()), Tuples._2T((long) i, record));
+		})
+		.collect(Collectors.toList());
+	}
+
+	/** Creates a record of each of the different types
+	 * @param i
+	 * @param obj
+	 * @return
+	 */
+	protected static IBatchRecord getRecord(final int i, final JsonNode obj) {
+		switch (i % 4) {
+			case 0: return new BatchRecordUtils.JsonBatchRecord(obj);
+			case 1: return new BatchRecordUtils.InjectedJsonBatchRecord(obj);
+			case 2: {
+				final ByteArrayOutputStream content = new ByteArrayOutputStream();
+				content.write(i);
+				return new BatchRecordUtils.BatchRecord(obj, content);
+			}
+			default: return new BatchRecordUtils.InjectedBatchRecord(obj, new ByteArrayOutputStream());
+		}
+	}
+
+	@Test
+	public void test_largeKey() throws IOException {
+		// A single key larger than the max size still ends up in a single working set
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> records =
+				IntStream.range(0, 10).boxed().map(i -> Tuples._2T((JsonNode) new TextNode(i < 8 ? "big" : "small" + i), Tuples._2T((long) i, (IBatchRecord) new BatchRecordUtils.JsonBatchRecord(new TextNode("" + i)))))
+					.collect(Collectors.toList());
+		final List<Integer> sizes = new ArrayList<>();
+		DedupSpillableWorkingSet.forEachWorkingSet(records.iterator(), 3L, null, ws -> sizes.add(ws.size()));
+		assertEquals(Arrays.asList(8, 2), sizes);
+	}
+}
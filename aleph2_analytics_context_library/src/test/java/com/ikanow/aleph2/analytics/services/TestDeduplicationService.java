@@ -26,9 +26,11 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -70,6 +72,7 @@ import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Tuples;
@@ -552,7 +555,96 @@ public class TestDeduplicationService {
 			
 			assertEquals(0, res._2().size());
 		}
+		// query from a set of keys (eg after the recently-seen keys have been removed)
+		{
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=(none) op=all_of element=(none) extra={field_1=[(any_of,([test2a],null))]})", 
+					DeduplicationService.getDedupQuery(Arrays.asList(new TextNode("test2a")), Either.left("field_1"), f -> f).toString());
+			
+			final ObjectNode key = _mapper.createObjectNode();
+			key.put("field_1", "test2a");
+			key.put("nested.nested_1", "nested2");
+			assertEquals("(MultiQueryComponent: limit=2147483647 sort=(none) op=any_of elements=(SingleQueryComponent: limit=(none) sort=(none) op=all_of element=(none) extra={field_1=[(equals,(test2a,null))], nested.nested_1=[(equals,(nested2,null))]}))", 
+					DeduplicationService.getDedupQuery(Arrays.asList(key), Either.right(Arrays.asList("field_1", "nested.nested_1")), f -> f).toString());
+		}
+		
+	}
+	
+	@Test
+	public void test_updateKeyCache() {
+		final DedupKeyCache cache = new DedupKeyCache(100L, 300L, "@timestamp", true);
+		
+		final DedupKey key = DedupKey.of(new TextNode("url"));
+		
+		final ObjectNode old_json1 = _mapper.createObjectNode();
+		old_json1.put("_id", "old_record1");
+		old_json1.put("@timestamp", 0L);
+		final ObjectNode old_json2 = _mapper.createObjectNode();
+		old_json2.put("_id", "old_record2");
+		old_json2.put("@timestamp", 0L);
+		
+		final LinkedHashMap<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map = new LinkedHashMap<>();
+		
+		// No cache - just passes the stream through
+		assertEquals(Arrays.asList(new TextNode("old_record2")), 
+				DeduplicationService.updateKeyCache(Optional.empty(), key, Arrays.asList(old_json1, old_json2), Stream.of(new TextNode("old_record2")), mutable_obj_map).collect(Collectors.toList()));
+		
+		// New record dropped, first old record remembered
+		assertEquals(Arrays.asList(new TextNode("old_record2")), 
+				DeduplicationService.updateKeyCache(Optional.of(cache), key, Arrays.asList(old_json1, old_json2), Stream.of(new TextNode("old_record2")), mutable_obj_map).collect(Collectors.toList()));
+		assertEquals("{\"_id\":\"old_record1\",\"@timestamp\":0}", cache.getKnown(Arrays.asList(key)).get(key).toString());
+		
+		// Remembered record deleted
+		DeduplicationService.updateKeyCache(Optional.of(cache), key, Arrays.asList(old_json1), Stream.of(new TextNode("old_record1")), mutable_obj_map).count();
+		assertEquals(0, cache.getKnown(Arrays.asList(key)).size());
+		
+		// New record will be emitted, so nothing remembered yet
+		mutable_obj_map.put(key, new LinkedList<>());
+		DeduplicationService.updateKeyCache(Optional.of(cache), key, Arrays.asList(old_json1), Stream.empty(), mutable_obj_map).count();
+		assertEquals(0, cache.getKnown(Arrays.asList(key)).size());
+	}
+	
+	@Test
+	public void test_timeWindow() {
+		final String ts_field = "@timestamp";
+		
+		final Function<Long, Tuple3<Long, IBatchRecord, ObjectNode>> new_record = ts -> {
+			final ObjectNode obj = _mapper.createObjectNode();
+			if (null != ts) obj.put(ts_field, ts);
+			return Tuples._3T(0L, new BatchRecordUtils.JsonBatchRecord(obj), _mapper.createObjectNode());
+		};
+		final Function<Long, JsonNode> stored_obj = ts -> {
+			final ObjectNode obj = _mapper.createObjectNode();
+			if (null != ts) obj.put(ts_field, ts);
+			return obj;
+		};
+		
+		// Window around new records
 		
+		final Optional<Tuple2<Long, Long>> window1 = DeduplicationService.getTimeWindow(ts_field, 100L, Arrays.asList(new_record.apply(1000L), new_record.apply(2000L)));
+		assertEquals(Optional.of(Tuples._2T(900L, 2100L)), window1);
+		assertEquals(Optional.empty(), DeduplicationService.getTimeWindow(ts_field, 100L, Arrays.asList(new_record.apply(1000L), new_record.apply(null))));
+		
+		// Combined windows
+		
+		final Optional<Tuple2<Long, Long>> window2 = DeduplicationService.getTimeWindow(ts_field, 100L, Arrays.asList(new_record.apply(5000L)));
+		assertEquals(Optional.of(Tuples._2T(900L, 5100L)), DeduplicationService.getTimeWindow(Stream.of(window1, window2)));
+		assertEquals(Optional.empty(), DeduplicationService.getTimeWindow(Stream.of(window1, Optional.empty())));
+		assertEquals(Optional.empty(), DeduplicationService.getTimeWindow(Stream.empty()));
+		
+		// Matching
+		
+		assertTrue(DeduplicationService.isInTimeWindow(ts_field, window1, stored_obj.apply(900L)));
+		assertTrue(DeduplicationService.isInTimeWindow(ts_field, window1, stored_obj.apply(2100L)));
+		assertFalse(DeduplicationService.isInTimeWindow(ts_field, window1, stored_obj.apply(899L)));
+		assertFalse(DeduplicationService.isInTimeWindow(ts_field, window1, stored_obj.apply(null)));
+		assertTrue(DeduplicationService.isInTimeWindow(ts_field, Optional.empty(), stored_obj.apply(null)));
+		
+		// Query
+		
+		final QueryComponent<JsonNode> query = DeduplicationService.getDedupQuery(Arrays.asList(new TextNode("a")), Either.left("url"), f -> f);
+		assertEquals("(MultiQueryComponent: limit=2147483647 sort=(none) op=all_of elements=" + query.toString() 
+				+ ";(SingleQueryComponent: limit=(none) sort=(none) op=all_of element=(none) extra={@timestamp=[(range_closed_closed,(900,2100))]}))", 
+				DeduplicationService.addTimeWindow(query, ts_field, window1.get()).toString());
 	}
 	
 	public static class TimeTestBean {
@@ -722,8 +814,8 @@ public class TestDeduplicationService {
 		assertEquals(true, DeduplicationService.getIncludeFields(DeduplicationPolicy.overwrite, fields, ts_field)._2());
 		assertEquals(Arrays.asList(), DeduplicationService.getIncludeFields(DeduplicationPolicy.custom, fields, ts_field)._1());
 		assertEquals(false, DeduplicationService.getIncludeFields(DeduplicationPolicy.custom, fields, ts_field)._2());
-		assertEquals(Arrays.asList(), DeduplicationService.getIncludeFields(DeduplicationPolicy.custom_update, fields, ts_field)._1());
-		assertEquals(false, DeduplicationService.getIncludeFields(DeduplicationPolicy.custom_update, fields, ts_field)._2());
+		assertEquals(Arrays.asList("_id", "@timestamp", "test1", "test2"), DeduplicationService.getIncludeFields(DeduplicationPolicy.custom_update, fields, ts_field)._1());
+		assertEquals(true, DeduplicationService.getIncludeFields(DeduplicationPolicy.custom_update, fields, ts_field)._2());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -757,9 +849,9 @@ public class TestDeduplicationService {
 		
 		new_record._2().getContent(); //(code coverage!)
 		
-		final TextNode key = new TextNode("url");
+		final DedupKey key = DedupKey.of(new TextNode("url"));
 		
-		LinkedHashMap<JsonNode, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map = new LinkedHashMap<>();
+		LinkedHashMap<DedupKey, LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> mutable_obj_map = new LinkedHashMap<>();
 		
 		final LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>> new_records = Stream.of(new_record).collect(Collectors.toCollection(LinkedList::new));
 		final LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>> new_records_but_same_time = Stream.of(new_record_but_same_time).collect(Collectors.toCollection(LinkedList::new));
@@ -768,8 +860,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -799,8 +891,8 @@ public class TestDeduplicationService {
 		final Consumer<Boolean> test_time_updates = delete_unhandled -> {
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -840,8 +932,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
 			_called_batch.set(0);
@@ -871,8 +963,8 @@ public class TestDeduplicationService {
 		final Consumer<Boolean> test_overwrites = delete_unhandled -> {
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -911,8 +1003,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -943,8 +1035,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -975,8 +1067,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -1007,8 +1099,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -1039,8 +1131,8 @@ public class TestDeduplicationService {
 		{
 			//(reset)
 			mutable_obj_map.clear();
-			mutable_obj_map.put(new TextNode("never_changed"), new_records);
-			mutable_obj_map.put(new TextNode("url"), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("never_changed")), new_records);
+			mutable_obj_map.put(DedupKey.of(new TextNode("url")), new_records);
 			assertEquals(2, mutable_obj_map.size());
 			new_record._3().removeAll();
 			new_record_but_same_time._3().removeAll();
@@ -1189,6 +1281,28 @@ public class TestDeduplicationService {
 			// Should have called emit "num_write_records" times (50% of them are duplicates)
 			Mockito.verify(enrich_context, Mockito.times(num_write_records)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
 		}
+		// TEST 1e: LEAVE, MULTI-FIELD, MULTI-BUCKET CONTEXT, SMALL LOOKUP CHUNKS, SPILLED WORKING SETS
+		{
+			final IEnrichmentModuleContext enrich_context = getMockEnrichmentContext();
+			
+			final DataBucketBean write_bucket = addTimestampField(ts_field, getDocBucket("/test/dedup/write/e",
+					BeanTemplateUtils.build(DataSchemaBean.DocumentSchemaBean.class)
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_policy, DeduplicationPolicy.leave)
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_contexts, Arrays.asList("/dedup/*"))
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_fields, Arrays.asList("dup_field", "dup"))
+					.done().get()
+					));
+			
+			// Test
+			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, 
+					ImmutableMap.<String, Object>of("lookup_chunk_size", 7, "lookup_max_concurrency", 2, "max_working_set_size", 100));			
+			
+			// Things to check:
+			
+			// Should have called emit "num_write_records" times (50% of them are duplicates)
+			Mockito.verify(enrich_context, Mockito.times(num_write_records)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
+		}
 		
 		// Test 2: OVERWRITE
 		
@@ -1736,9 +1850,22 @@ public class TestDeduplicationService {
 					.done().get()
 					));
 			
+			final IDataWriteService<JsonNode> store1 = getDataStore("/dedup/context1");
+			final IDataWriteService<JsonNode> store2 = getDataStore("/dedup/context2");
+			
 			// Test
 			
-			test_puttingItAllTogether_runTest(write_bucket, enrich_context);			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, null, () -> {
+				// (fewer deletes than a full delete batch, but they're sent at the end of the object batch, not when the stage completes)
+				for (int i = 0; i < 40; ++i) {
+					Lambdas.wrap_runnable_u(() -> Thread.sleep(250L)).run();
+					if ((store1.countObjects().join() +
+							store2.countObjects().join()) <= num_write_records) {
+						break;
+					}
+				}
+				assertEquals(num_write_records, store1.countObjects().join() + store2.countObjects().join());
+			});
 			
 			// Things to check:
 			
@@ -1746,9 +1873,6 @@ public class TestDeduplicationService {
 			Mockito.verify(enrich_context, Mockito.times(2*num_write_records)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
 	
 			// Check deleted all the extra duplicates
-			final IDataWriteService<JsonNode> store1 = getDataStore("/dedup/context1");
-			final IDataWriteService<JsonNode> store2 = getDataStore("/dedup/context2");
-			
 			for (int i = 0; i < 40; ++i) {
 				Thread.sleep(250L);
 				if ((store1.countObjects().join() +
@@ -1924,6 +2048,14 @@ public class TestDeduplicationService {
 	}
 	
 	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context) {
+		test_puttingItAllTogether_runTest(write_bucket, enrich_context, null);
+	}
+	
+	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context, final Map<String, Object> config) {
+		test_puttingItAllTogether_runTest(write_bucket, enrich_context, config, () -> {});
+	}
+	
+	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context, final Map<String, Object> config, final Runnable before_complete) {
 		// OK now create a new batch of objects
 		
 		List<Tuple2<Long, IBatchRecord>> imcoming_objects = IntStream.rangeClosed(1, 2*num_write_records).boxed().map(i -> {
@@ -1947,6 +2079,7 @@ public class TestDeduplicationService {
 		
 		final EnrichmentControlMetadataBean control = BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
 					.with(EnrichmentControlMetadataBean::name, "custom_test")
+					.with(EnrichmentControlMetadataBean::config, config)
 				.done().get();		
 		
 		// Initialize
@@ -1957,6 +2090,8 @@ public class TestDeduplicationService {
 		
 		test_module.onObjectBatch(imcoming_objects.stream(), Optional.empty(), Optional.empty());
 		
+		before_complete.run();
+		
 		// (Finish)
 		test_module.onStageComplete(true);
 	}
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.junit.Test;
@@ -286,4 +287,31 @@ public class TestGraphBuilderEnrichmentService {
 		}
 		
 	}
+	
+	@Test
+	public void test_replayableStream() {
+		final AtomicInteger pull_counter = new AtomicInteger(0);
+		
+		// Lazy: nothing is pulled until a replay gets there
+		{
+			final GraphBuilderEnrichmentService.ReplayableStream<Integer> under_test = 
+					new GraphBuilderEnrichmentService.ReplayableStream<>(Stream.of(1, 2, 3, 4).peek(__ -> pull_counter.incrementAndGet()));
+			
+			assertEquals(0, under_test.materializedSize());
+			assertEquals(Arrays.asList(1, 2), under_test.stream().limit(2).collect(Collectors.toList()));
+			assertEquals(2, under_test.materializedSize());
+			
+			// Replays see the whole stream, each element is pulled from the underlying stream once
+			assertEquals(Arrays.asList(1, 2, 3, 4), under_test.stream().collect(Collectors.toList()));
+			assertEquals(Arrays.asList(1, 2, 3, 4), under_test.stream().collect(Collectors.toList()));
+			assertEquals(4, under_test.materializedSize());
+			assertEquals(4, pull_counter.getAndSet(0));
+		}
+		// Empty stream
+		{
+			final GraphBuilderEnrichmentService.ReplayableStream<Integer> under_test = new GraphBuilderEnrichmentService.ReplayableStream<>(Stream.empty());
+			assertEquals(0L, under_test.stream().count());
+			assertEquals(0L, under_test.stream().count());
+		}
+	}
 }
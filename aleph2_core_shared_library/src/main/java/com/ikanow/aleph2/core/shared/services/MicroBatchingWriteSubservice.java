@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.core.shared.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Provides the batch subservice interface for data services that don't have one, by collecting objects into batches
+ *  (bounded by number, size and time) and writing each batch with a single storeObjects call
+ *  The number of storeObjects requests outstanding at once is bounded by the "write_threads" batch property - adding objects blocks until there's room
+ *  Failed requests are logged (at most every ERROR_LOG_INTERVAL_MS), counted (getFailedObjects), and fail the next flushOutput future
+ * @author Alex
+ *
+ * @param <O> - the object type
+ */
+public class MicroBatchingWriteSubservice<O> implements IDataWriteService.IBatchSubservice<O> {
+	private static final Logger _logger = LogManager.getLogger();
+
+	public static final int DEFAULT_MAX_OBJECTS = 1000;
+	public static final long DEFAULT_SIZE_KB = 10L*1024L;
+	public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(500L); // (short, since every data service without a batch subservice is wrapped)
+	public static final int DEFAULT_WRITE_THREADS = 2;
+	public static final long ERROR_LOG_INTERVAL_MS = 60L*1000L;
+
+	// (shared across all the adapters, only ever does non-blocking work)
+	protected static final ScheduledExecutorService _flush_timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "MicroBatchingWriteSubservice-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	final protected IDataWriteService<O> _crud_service;
+	final protected Optional<Function<O, Long>> _size_of;
+
+	protected volatile int _max_objects = DEFAULT_MAX_OBJECTS;
+	protected volatile long _max_bytes = DEFAULT_SIZE_KB*1024L;
+	protected volatile long _flush_interval_ms = DEFAULT_FLUSH_INTERVAL.toMillis();
+	protected volatile Semaphore _in_flight = new Semaphore(DEFAULT_WRITE_THREADS);
+
+	final protected ReentrantLock _lock = new ReentrantLock();
+	// (all guarded by _lock)
+	protected ArrayList<O> _mutable_batch = new ArrayList<>();
+	protected Optional<Boolean> _mutable_batch_replace = Optional.empty();
+	protected long _mutable_batch_bytes = 0L;
+	protected ScheduledFuture<?> _mutable_timer = null;
+
+	final protected Set<CompletableFuture<?>> _outstanding = ConcurrentHashMap.newKeySet();
+	final protected AtomicLong _batches_written = new AtomicLong();
+	final protected AtomicLong _failed_objects = new AtomicLong();
+	final protected AtomicLong _last_error_log_time = new AtomicLong();
+	final protected AtomicReference<Throwable> _unreported_error = new AtomicReference<>(); // (the first error since the last flushOutput)
+
+	/** User c'tor
+	 * @param crud_service - the data service to write the batches to
+	 * @param size_of - optionally, an estimate of each object's size in bytes (if not present, the size_kb batch property is ignored)
+	 */
+	public MicroBatchingWriteSubservice(final IDataWriteService<O> crud_service, final Optional<Function<O, Long>> size_of) {
+		_crud_service = crud_service;
+		_size_of = size_of;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#setBatchProperties(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+		_max_objects = max_objects.filter(n -> n > 0).orElse(DEFAULT_MAX_OBJECTS);
+		_max_bytes = 1024L*size_kb.filter(n -> n > 0).orElse(DEFAULT_SIZE_KB);
+		_flush_interval_ms = flush_interval.filter(d -> !d.isNegative() && !d.isZero()).orElse(DEFAULT_FLUSH_INTERVAL).toMillis();
+		_in_flight = new Semaphore(write_threads.filter(n -> n > 0).orElse(DEFAULT_WRITE_THREADS)); // (requests already in flight release the old one)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List, boolean)
+	 */
+	@Override
+	public void storeObjects(final List<O> new_objects, final boolean replace_if_present) {
+		sendAll(addToBatch(new_objects, Optional.of(replace_if_present)));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object, boolean)
+	 */
+	@Override
+	public void storeObject(final O new_object, final boolean replace_if_present) {
+		sendAll(addToBatch(Collections.singletonList(new_object), Optional.of(replace_if_present)));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
+	 */
+	@Override
+	public void storeObjects(final List<O> new_objects) {
+		sendAll(addToBatch(new_objects, Optional.empty()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object)
+	 */
+	@Override
+	public void storeObject(final O new_object) {
+		sendAll(addToBatch(Collections.singletonList(new_object), Optional.empty()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#flushOutput()
+	 */
+	@Override
+	public CompletableFuture<?> flushOutput() {
+		final List<PendingBatch<O>> last_batch;
+		_lock.lock();
+		try {
+			last_batch = _mutable_batch.isEmpty() ? Collections.emptyList() : Collections.singletonList(takeBatch());
+		}
+		finally {
+			_lock.unlock();
+		}
+		sendAll(last_batch);
+		
+		return CompletableFuture.allOf(_outstanding.stream().toArray(CompletableFuture[]::new))
+				.thenRun(() -> {
+					final Throwable error = _unreported_error.getAndSet(null);
+					if (null != error) {
+						throw new CompletionException(error);
+					}
+				});
+	}
+
+	/** The number of storeObjects requests made so far
+	 * @return
+	 */
+	public long getBatchesWritten() {
+		return _batches_written.get();
+	}
+
+	/** The number of objects in storeObjects requests that failed
+	 * @return
+	 */
+	public long getFailedObjects() {
+		return _failed_objects.get();
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** A batch that's been taken off the current batch but not necessarily sent yet
+	 * @param <O> - the object type
+	 */
+	protected static class PendingBatch<O> {
+		protected PendingBatch(final List<O> objects, final Optional<Boolean> replace_if_present) {
+			_objects = objects;
+			_replace_if_present = replace_if_present;
+		}
+		protected final List<O> _objects;
+		protected final Optional<Boolean> _replace_if_present; // (empty if not specified)
+		protected final CompletableFuture<Void> _done = new CompletableFuture<>(); // (completes once the request's outcome has been recorded, so flushOutput sees any error)
+	}
+	
+	/** Adds a list of objects to the current batch, under a single lock
+	 * @param new_objects
+	 * @param replace_if_present - (empty if not specified - a batch only ever contains objects with the same setting)
+	 * @return the batches that filled up, to be sent (via sendAll) once the lock has been released
+	 */
+	protected List<PendingBatch<O>> addToBatch(final List<O> new_objects, final Optional<Boolean> replace_if_present) {
+		final List<PendingBatch<O>> full_batches = new ArrayList<>();
+		_lock.lock();
+		try {
+			for (O new_object: new_objects) {
+				if (!_mutable_batch.isEmpty() && !_mutable_batch_replace.equals(replace_if_present)) {
+					full_batches.add(takeBatch());
+				}
+				_mutable_batch_replace = replace_if_present;
+				_mutable_batch.add(new_object);
+				if (_size_of.isPresent()) {
+					_mutable_batch_bytes += _size_of.get().apply(new_object);
+				}
+
+				if ((_mutable_batch.size() >= _max_objects) || (_size_of.isPresent() && (_mutable_batch_bytes >= _max_bytes))) {
+					full_batches.add(takeBatch());
+				}
+				else if (null == _mutable_timer) {
+					_mutable_timer = _flush_timer.schedule(this::onFlushInterval, _flush_interval_ms, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		finally {
+			_lock.unlock();
+		}
+		return full_batches;
+	}
+
+	/** Sends off the batch once the flush interval has passed (without blocking the shared timer - if busy, tries again later)
+	 */
+	protected void onFlushInterval() {
+		if (_lock.tryLock()) {
+			final Semaphore in_flight = _in_flight;
+			final PendingBatch<O> batch;
+			try {
+				_mutable_timer = null;
+				if (_mutable_batch.isEmpty()) {
+					return;
+				}
+				else if (!in_flight.tryAcquire()) { // (no room for another request, so try again after the flush interval)
+					_mutable_timer = _flush_timer.schedule(this::onFlushInterval, _flush_interval_ms, TimeUnit.MILLISECONDS);
+					return;
+				}
+				batch = takeBatch();
+			}
+			finally {
+				_lock.unlock();
+			}
+			send(batch, in_flight);
+		}
+		else {
+			_flush_timer.schedule(this::onFlushInterval, Math.max(1L, _flush_interval_ms/10L), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Takes the current batch, replacing it with an empty one (must hold _lock)
+	 *  (the batch counts as outstanding from here, so flushOutput waits for it even before it's sent)
+	 * @return
+	 */
+	protected PendingBatch<O> takeBatch() {
+		if (null != _mutable_timer) {
+			_mutable_timer.cancel(false);
+			_mutable_timer = null;
+		}
+		final PendingBatch<O> batch = new PendingBatch<>(_mutable_batch, _mutable_batch_replace);
+		_outstanding.add(batch._done);
+		_mutable_batch = new ArrayList<>();
+		_mutable_batch_bytes = 0L;
+		return batch;
+	}
+
+	/** Sends batches to the data service, waiting for there to be room for each request (mustn't hold _lock, so other callers can keep adding objects meanwhile)
+	 * @param batches
+	 */
+	protected void sendAll(final List<PendingBatch<O>> batches) {
+		for (PendingBatch<O> batch: batches) {
+			final Semaphore in_flight = _in_flight;
+			in_flight.acquireUninterruptibly();
+			send(batch, in_flight);
+		}
+	}
+
+	/** Sends a batch to the data service
+	 * @param batch
+	 * @param in_flight - the semaphore a permit has been acquired from, released once the request completes
+	 */
+	protected void send(final PendingBatch<O> batch, final Semaphore in_flight) {
+		_batches_written.incrementAndGet();
+		storeBatch(batch._objects, batch._replace_if_present).whenComplete((__, err) -> {
+			if (null != err) {
+				onError(err, batch._objects.size());
+			}
+			_outstanding.remove(batch._done);
+			in_flight.release();
+			batch._done.complete(null);
+		});
+	}
+	
+	/** Counts and logs (at most every ERROR_LOG_INTERVAL_MS) a failed request, and keeps the error for the next flushOutput
+	 * @param err
+	 * @param num_objects
+	 */
+	protected void onError(final Throwable err, final int num_objects) {
+		final long failed = _failed_objects.addAndGet(num_objects);
+		_unreported_error.compareAndSet(null, err);
+		
+		final long now = System.currentTimeMillis();
+		final long last_logged = _last_error_log_time.get();
+		if (((now - last_logged) >= ERROR_LOG_INTERVAL_MS) && _last_error_log_time.compareAndSet(last_logged, now)) {
+			_logger.error(ErrorUtils.getLongForm("Error writing batch of {1} object(s) ({2} failed objects so far): {0}", err, Integer.toString(num_objects), Long.toString(failed)));
+		}
+	}
+
+	/** Writes a batch to the data service
+	 * @param batch
+	 * @param replace_if_present - (empty if not specified)
+	 * @return the data service's future, or a failed future if the request couldn't be made
+	 */
+	protected CompletableFuture<?> storeBatch(final List<O> batch, final Optional<Boolean> replace_if_present) {
+		try {
+			return replace_if_present.isPresent()
+					? _crud_service.storeObjects(batch, replace_if_present.get())
+					: _crud_service.storeObjects(batch);
+		}
+		catch (Throwable t) { // (errors thrown before the request was even made)
+			final CompletableFuture<?> error = new CompletableFuture<>();
+			error.completeExceptionally(t);
+			return error;
+		}
+	}
+}
@@ -16,19 +16,31 @@
 
 package com.ikanow.aleph2.core.shared.services;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 
 
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import scala.Tuple2;
 
 
@@ -46,15 +58,19 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 
+import fj.Unit;
+
 /** This wraps a set of data services so that a set of simple commands can be applied sensibly to all the services within
  *  (including cases where multiple services have the same implementation)
  * @author Alex
  *
  */
 public class MultiDataService {
+	private static final Logger _logger = LogManager.getLogger();
 
 	final protected Multimap<IDataServiceProvider, String> _services;
 	final protected Multimap<IDataWriteService.IBatchSubservice<JsonNode>, String> _batches = LinkedHashMultimap.create();
@@ -79,6 +95,36 @@ public class MultiDataService {
 	protected IDataWriteService<JsonNode> _crud_storage_service;
 	protected IDataWriteService.IBatchSubservice<JsonNode> _batch_storage_service;				
 
+	/** What batchWrite does when a data service's writer queue is full
+	 */
+	public enum QueueFullPolicy { 
+		/** Wait for the writer to catch up (the default) */
+		block, 
+		/** Drop the object for that data service only (see getShedCount) */
+		shed 
+	}
+	public static final int DEFAULT_WRITER_QUEUE_SIZE = 5000;
+	public static final long ERROR_LOG_INTERVAL_MS = 60L*1000L; // (write errors are logged at most this often per writer)
+	
+	// (shared across all the writers, each writer only has a drain task running while it has objects queued)
+	protected static final ExecutorService _writer_executor = Executors.newCachedThreadPool(runnable -> {
+		final Thread thread = new Thread(runnable, "MultiDataService-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/** Writes single objects or lists of objects to a data service (via its batch subservice if it has one)
+	 */
+	protected static interface DataWriter {
+		void write(final JsonNode obj_json);
+		void write(final List<JsonNode> obj_jsons);
+	}
+	
+	// (one per data service writer, in the order batchWrite used to write them)
+	protected List<Tuple2<String, DataWriter>> _writers;
+	// (if there's more than one writer, each has its own queue so that an object is handed to all of them at once - else null and the writer is called directly)
+	protected List<WriterQueue> _writer_queues;
+
 	/** Wrapper for standard user c'tor - full version
 	 * @param bucket
 	 * @param context
@@ -131,6 +177,7 @@ public class MultiDataService {
 		_crud_storage_service = t2._1();
 		_batch_storage_service = t2._2();
 		storeWriters(t2, Arrays.asList(transient_storage_service));
+		buildWriters();
 	}	
 	
 	/** User c'tor - standard case
@@ -143,7 +190,7 @@ public class MultiDataService {
 		// Insert or overwrite mode:
 		_doc_write_mode = getWriteMode(bucket);
 		
-		_services = DataServiceUtils.selectDataServices(bucket.data_schema(), context);
+		_services = DataServiceUtils.getRoutingPlan(bucket, context).services(); // (only resolved again if the bucket's schema has changed)
 
 		_services.asMap().entrySet().stream().forEach(kv -> {
 			final Set<String> vals = kv.getValue().stream().collect(Collectors.toSet());
@@ -194,6 +241,7 @@ public class MultiDataService {
 				storeWriters(t2, vals);
 			}
 		});		
+		buildWriters();
 	}
 	
 	/** Utility for write mode
@@ -221,6 +269,73 @@ public class MultiDataService {
 		if (null != t2._1()) _all_cruds.putAll(t2._1(), vals);
 	}
 
+	/** Builds the list of writers (preferring the batch service to the (slow) CRUD service), and - if there's more than one - their queues
+	 */
+	protected void buildWriters() {
+		_writers = Stream.of(
+				Tuples._2T(DataSchemaBean.SearchIndexSchemaBean.name, getWriter(_batch_index_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.DocumentSchemaBean.name, getWriter(_batch_doc_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.DataWarehouseSchemaBean.name, getWriter(_batch_data_warehouse_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.GraphSchemaBean.name, getWriter(_batch_graph_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.ColumnarSchemaBean.name, getWriter(_batch_columnar_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.TemporalSchemaBean.name, getWriter(_batch_temporal_service, Optional.of(_doc_write_mode))),
+				Tuples._2T(DataSchemaBean.StorageSchemaBean.name, getWriter(_batch_storage_service, Optional.empty()))
+				)
+				.filter(name_writer -> null != name_writer._2())
+				.collect(Collectors.toList());
+		
+		_writer_queues = (_writers.size() > 1)
+				? _writers.stream().map(name_writer -> new WriterQueue(name_writer._1(), name_writer._2(), DEFAULT_WRITER_QUEUE_SIZE)).collect(Collectors.toList())
+				: null;
+	}
+	
+	/** Utility to get a writer from the batch service (services without their own batch subservice are micro-batched, see getWriters)
+	 * @param batch_service - the batch service, if there is one (else null) 
+	 * @param doc_write_mode - the insert/overwrite mode (storage doesn't have one)
+	 * @return the writer, or null if there are no services 
+	 */
+	protected static DataWriter getWriter(final IDataWriteService.IBatchSubservice<JsonNode> batch_service, final Optional<Boolean> doc_write_mode) {
+		if (null != batch_service) {
+			return new DataWriter() {
+				public void write(final JsonNode obj_json) {
+					if (doc_write_mode.isPresent()) batch_service.storeObject(obj_json, doc_write_mode.get());
+					else batch_service.storeObject(obj_json);
+				}
+				public void write(final List<JsonNode> obj_jsons) {
+					if (doc_write_mode.isPresent()) batch_service.storeObjects(obj_jsons, doc_write_mode.get());
+					else batch_service.storeObjects(obj_jsons);
+				}
+			};
+		}
+		else return null;
+	}
+	
+	/** Sets what batchWrite does when the writer queue of a data service is full (defaults to QueueFullPolicy.block)
+	 *  (only applies to buckets with more than one data service writer, else the single writer is called directly)
+	 * @param service_name - the data schema name of the service (eg DataSchemaBean.SearchIndexSchemaBean.name)
+	 * @param policy - block or shed
+	 * @return this, for chaining
+	 */
+	public MultiDataService setQueueFullPolicy(final String service_name, final QueueFullPolicy policy) {
+		Optionals.ofNullable(_writer_queues).stream().filter(q -> q._service_name.equals(service_name)).forEach(q -> q._policy = policy);
+		return this;
+	}
+	
+	/** Returns the number of objects that were not written to a data service because its queue was full (with QueueFullPolicy.shed)
+	 * @return
+	 */
+	public long getShedCount() {
+		return Optionals.ofNullable(_writer_queues).stream().mapToLong(q -> q._shed.get()).sum();
+	}
+	
+	/** Returns the number of queued objects that errored when they were handed to their data service
+	 *  (the errors are also logged, and fail the next drainWriteQueues/flushBatchOutput future)
+	 * @return
+	 */
+	public long getWriteErrorCount() {
+		return Optionals.ofNullable(_writer_queues).stream().mapToLong(q -> q._errors.get()).sum();
+	}
+	
 	/** Returns a list of batch data writers
 	 * @return
 	 */
@@ -249,79 +364,201 @@ public class MultiDataService {
 		return Collections.unmodifiableCollection(_services.keySet());
 	}
 
-	/** Returns a completable future for when all batches are flushed
+	/** Returns a completable future for when all the writer queues have drained and then all batches are flushed
 	 * @return
 	 */
 	public CompletableFuture<?> flushBatchOutput() {
-		return CompletableFuture.allOf(getBatchWriters().stream().map(batch -> batch.flushOutput()).toArray(CompletableFuture[]::new));
+		return drainWriteQueues().thenCompose(__ -> CompletableFuture.allOf(getBatchWriters().stream().map(batch -> batch.flushOutput()).toArray(CompletableFuture[]::new)));
+	}
+	
+	/** Returns a completable future for when all the objects passed to batchWrite so far have been handed to their data services
+	 *  (completes exceptionally if any of them errored since the last time this was called)
+	 * @return
+	 */
+	public CompletableFuture<?> drainWriteQueues() {
+		return (null == _writer_queues)
+				? CompletableFuture.completedFuture(Unit.unit())
+				: CompletableFuture.allOf(_writer_queues.stream().map(q -> q.drained()).toArray(CompletableFuture[]::new));
 	}
 	
 	/** Output a JSON object decomposed as per the schema
+	 *  (if there is more than one data service, this just queues the object for each of them - see QueueFullPolicy, drainWriteQueues)
+	 *  The object is shared between the data services, which only read it - so it mustn't be modified after it's been written
 	 * @param obj_json
 	 * @return
 	 */
 	public boolean batchWrite(final JsonNode obj_json) {
-		boolean mutable_written = false;
-		
-		if (_batch_index_service!= null) {
-			mutable_written = true;
-			_batch_index_service.storeObject(obj_json, _doc_write_mode);
+		if (null != _writer_queues) {
+			try {
+				final List<JsonNode> shared = Collections.singletonList(obj_json);
+				for (WriterQueue q: _writer_queues) {
+					q.add(shared);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		else {
+			for (Tuple2<String, DataWriter> name_writer: _writers) {
+				name_writer._2().write(obj_json);
+			}
+		}
+		return !_writers.isEmpty();
+	}
+	
+	/** Output a list of JSON objects decomposed as per the schema - each data service is handed the whole list (eg IBatchSubservice.storeObjects), 
+	 *  which is much more efficient than calling batchWrite per object
+	 *  The objects are shared between the data services, which only read them - so they mustn't be modified after they've been written
+	 * @param obj_jsons
+	 * @return
+	 */
+	public boolean batchWrite(final List<JsonNode> obj_jsons) {
+		if (obj_jsons.isEmpty()) {
+			return !_writers.isEmpty();
 		}
-		else if (_crud_index_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_index_service.storeObject(obj_json, _doc_write_mode);
+		else if (null != _writer_queues) {
+			try {
+				// (the writers run in parallel after this returns, so they share a read-only copy of the list - the caller can reuse its own)
+				final List<JsonNode> shared = Collections.unmodifiableList(new ArrayList<>(obj_jsons));
+				for (WriterQueue q: _writer_queues) {
+					q.add(shared);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
 		}
-		if (_batch_doc_service!= null) {
-			mutable_written = true;
-			_batch_doc_service.storeObject(obj_json, _doc_write_mode);
+		else {
+			for (Tuple2<String, DataWriter> name_writer: _writers) {
+				name_writer._2().write(obj_jsons);
+			}
 		}
-		else if (_crud_doc_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_doc_service.storeObject(obj_json, _doc_write_mode);
-		}				
-		if (_batch_data_warehouse_service!= null) {
-			mutable_written = true;
-			_batch_data_warehouse_service.storeObject(obj_json, _doc_write_mode);
+		return !_writers.isEmpty();
+	}
+	
+	/** A data service writer with its own bounded queue (of single objects or lists of objects), drained on the shared writer executor
+	 *  (at most one drain task runs per writer, so objects are written in the order they were queued)
+	 * @author Alex
+	 */
+	protected static class WriterQueue {
+		final protected String _service_name;
+		final protected DataWriter _writer;
+		final protected LinkedBlockingQueue<List<JsonNode>> _queue;
+		protected volatile QueueFullPolicy _policy = QueueFullPolicy.block;
+		
+		final protected AtomicBoolean _draining = new AtomicBoolean(false);
+		final protected AtomicLong _pending = new AtomicLong(); // (queue entries not yet written)
+		final protected AtomicLong _shed = new AtomicLong();
+		final protected AtomicLong _errors = new AtomicLong();
+		final protected AtomicLong _last_error_log_time = new AtomicLong();
+		final protected AtomicReference<Throwable> _unreported_error = new AtomicReference<>(); // (the first error since the last drained future)
+		final protected List<CompletableFuture<Unit>> _mutable_drain_waiters = new ArrayList<>(); // (guarded by this)
+		
+		/** User c'tor
+		 * @param service_name
+		 * @param writer
+		 * @param max_queue_size - the max number of (single object or list) entries
+		 */
+		protected WriterQueue(final String service_name, final DataWriter writer, final int max_queue_size) {
+			_service_name = service_name;
+			_writer = writer;
+			_queue = new LinkedBlockingQueue<>(max_queue_size);
 		}
-		else if (_crud_data_warehouse_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_data_warehouse_service.storeObject(obj_json, _doc_write_mode);
-		}		
-		if (_batch_graph_service!= null) {
-			mutable_written = true;
-			_batch_graph_service.storeObject(obj_json, _doc_write_mode);
+		
+		/** Queues an object or list of objects for writing, blocking or shedding if the queue is full
+		 * @param obj_jsons
+		 * @throws InterruptedException
+		 */
+		protected void add(final List<JsonNode> obj_jsons) throws InterruptedException {
+			_pending.incrementAndGet();
+			if (QueueFullPolicy.shed == _policy) {
+				if (!_queue.offer(obj_jsons)) {
+					_shed.addAndGet(obj_jsons.size());
+					onDone();
+					return;
+				}
+			}
+			else {
+				_queue.put(obj_jsons);
+			}
+			if (_draining.compareAndSet(false, true)) {
+				_writer_executor.execute(this::drain);
+			}
 		}
-		else if (_crud_graph_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_graph_service.storeObject(obj_json, _doc_write_mode);
-		}		
-		if (_batch_columnar_service!= null) {
-			mutable_written = true;
-			_batch_columnar_service.storeObject(obj_json, _doc_write_mode);
+		
+		/** Writes objects until the queue is empty 
+		 */
+		protected void drain() {
+			do {
+				for (List<JsonNode> obj_jsons = _queue.poll(); null != obj_jsons; obj_jsons = _queue.poll()) {
+					try {
+						if (1 == obj_jsons.size()) _writer.write(obj_jsons.get(0));
+						else _writer.write(obj_jsons);
+					}
+					catch (Throwable t) { // (don't let one bad object stop the writer)
+						onError(t, obj_jsons.size());
+					}
+					onDone();
+				}
+				_draining.set(false);
+			}
+			while (!_queue.isEmpty() && _draining.compareAndSet(false, true)); // (in case an object was queued after the last poll)
 		}
-		else if (_crud_columnar_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_columnar_service.storeObject(obj_json, _doc_write_mode);
-		}		
-		if (_batch_temporal_service!= null) {
-			mutable_written = true;
-			_batch_temporal_service.storeObject(obj_json, _doc_write_mode);
+		
+		/** Records a write error, to be reported by the next drained future, and logs it (at most every ERROR_LOG_INTERVAL_MS)
+		 * @param t
+		 * @param num_objects
+		 */
+		protected void onError(final Throwable t, final int num_objects) {
+			final long errors = _errors.incrementAndGet();
+			_unreported_error.compareAndSet(null, t);
+			
+			final long now = System.currentTimeMillis();
+			final long last_logged = _last_error_log_time.get();
+			if (((now - last_logged) >= ERROR_LOG_INTERVAL_MS) && _last_error_log_time.compareAndSet(last_logged, now)) {
+				_logger.error(ErrorUtils.getLongForm("Error writing {1} object(s) to {2} ({3} errors so far): {0}", t, Integer.toString(num_objects), _service_name, Long.toString(errors)));
+			}
 		}
-		else if (_crud_temporal_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_temporal_service.storeObject(obj_json, _doc_write_mode);
-		}		
 		
-		if (_batch_storage_service!= null) {
-			mutable_written = true;
-			_batch_storage_service.storeObject(obj_json);
+		/** Called when a queued object has been written or shed
+		 */
+		protected void onDone() {
+			if (0 == _pending.decrementAndGet()) {
+				synchronized (this) {
+					if (0 == _pending.get()) { // (else more has been queued since, so the next one to finish will do this)
+						if (!_mutable_drain_waiters.isEmpty()) {
+							final Throwable error = _unreported_error.getAndSet(null);
+							_mutable_drain_waiters.forEach(f -> { if (null == error) f.complete(Unit.unit()); else f.completeExceptionally(error); });
+							_mutable_drain_waiters.clear();
+						}
+					}
+				}
+			}
 		}
-		else if (_crud_storage_service!= null){ // (super slow)
-			mutable_written = true;
-			_crud_storage_service.storeObject(obj_json);
-		}		
 		
-		return mutable_written;
+		/** Returns a future that completes once everything queued so far has been written
+		 *  (exceptionally if any writes errored since the last call)
+		 * @return
+		 */
+		protected synchronized CompletableFuture<Unit> drained() {
+			if (0 == _pending.get()) {
+				final Throwable error = _unreported_error.getAndSet(null);
+				if (null != error) {
+					final CompletableFuture<Unit> f = new CompletableFuture<>();
+					f.completeExceptionally(error);
+					return f;
+				}
+				return CompletableFuture.completedFuture(Unit.unit());
+			}
+			else {
+				final CompletableFuture<Unit> f = new CompletableFuture<>();
+				_mutable_drain_waiters.add(f);
+				return f;
+			}
+		}
 	}
 	
 	/** Handy utility
@@ -347,7 +584,7 @@ public class MultiDataService {
 														maybe_get_buffer_name.<String>flatMap(f -> f.apply(s))))
 											.orElse(null)
 				)
-				.flatMap(IDataWriteService::getBatchWriteSubservice)
+				.map(crud -> crud.getBatchWriteSubservice().orElseGet(() -> new MicroBatchingWriteSubservice<>(crud, Optional.empty()))) // (services without native batching get micro-batched storeObjects calls)
 				.orElse(null)
 				;
 		
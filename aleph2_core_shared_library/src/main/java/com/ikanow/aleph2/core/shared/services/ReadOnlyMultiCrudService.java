@@ -15,20 +15,31 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.services;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
@@ -41,6 +52,7 @@ import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.CrudServiceUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.JsonUtils;
 import com.ikanow.aleph2.data_model.utils.MultiBucketUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
@@ -57,7 +69,7 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	// INITIALIZATION FOR THIS
 	
 	/** Returns a multi bucket crud wrapper 
-	 *  DOESN'T CURRENTLY SUPPORT LIMITS OR SORTBY PROPERLY
+	 *  (limits and sort orders are applied by each bucket's service, and the sorted results then merged - see getObjectsBySpec)
 	 * @param buckets - a list of bucket paths
 	 * @param maybe_extra_query_builder - for each bucket lets the user specify an additional query to be applied to all queries
 	 * @return
@@ -77,7 +89,7 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 					.with(DataBucketBean::multi_bucket_children, buckets)
 				.done().get();
 		
-		final List<ICrudService<O>> services =
+		final List<Tuple2<String, ICrudService<O>>> services =
 			MultiBucketUtils.expandMultiBuckets(Arrays.asList(dummy_bucket), bucket_store, service_context)
 					.values()
 					.stream()
@@ -86,18 +98,20 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 					)
 					.filter(bucket_crud -> bucket_crud._2().isPresent())
 					.map(bucket_crud -> Tuples._2T(bucket_crud._1(), bucket_crud._2().get())) // because of above filter)
-					.map(bucket_crud -> 
+					.map(bucket_crud -> Tuples._2T(bucket_crud._1().full_name(),
 						maybe_extra_query_builder
 							.flatMap(qb -> qb.apply(bucket_crud._1()))
 							.map(extra_query -> CrudServiceUtils.intercept(clazz, bucket_crud._2(), Optional.of(extra_query), Optional.empty(), Collections.emptyMap(), Optional.empty()))
-							.orElse(bucket_crud._2())
+							.orElse(bucket_crud._2()))
 					)
 					.collect(Collectors.toList())
 					;
 		
 		return services.isEmpty()
 				? Optional.empty()
-				: Optional.of(new ReadOnlyMultiCrudService<O>(services))
+				: Optional.of(new ReadOnlyMultiCrudService<O>(
+						services.stream().map(name_crud -> name_crud._2()).collect(Collectors.toList()),
+						services.stream().map(name_crud -> name_crud._1()).collect(Collectors.toList())))
 				;
 	}
 
@@ -115,14 +129,48 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	 * @param services
 	 */
 	protected ReadOnlyMultiCrudService(final List<ICrudService<T>> services) {
+		this(services, IntStream.range(0, services.size()).mapToObj(i -> "store_" + i).collect(Collectors.toList()));
+	}
+	
+	/** User c'tor (internal only - others use the static builders above)
+	 * @param services
+	 * @param store_names - a name for each service (eg the bucket path), for error reporting
+	 */
+	protected ReadOnlyMultiCrudService(final List<ICrudService<T>> services, final List<String> store_names) {
 		_services = services;
+		_store_names = store_names;
+	}
+	
+	/** Controls what happens when some of the stores are slow or fail (by default, the query waits up to DEFAULT_STORE_TIMEOUT for each store, and fails with any of the stores)
+	 * @param store_timeout - if present, the max time to wait for each store's results - stores that take longer are treated as failed (with a TimeoutException)
+	 *                        (if not present, waits indefinitely)
+	 * @param partial_results_handler - if present, the results from failed stores are left out, and the handler is called with the store name and error
+	 *                                  (if not present, any failed store fails the query)
+	 * @return this service (to chain)
+	 */
+	public ReadOnlyMultiCrudService<T> setStoreOptions(final Optional<Duration> store_timeout, final Optional<BiConsumer<String, Throwable>> partial_results_handler) {
+		_store_timeout = store_timeout;
+		_partial_results_handler = partial_results_handler;
+		return this;
 	}
 	
 	//////////////////////////////////////////////////////////////////////////////////////////////////
 	
 	// STATE
 	
+	public static final Duration DEFAULT_STORE_TIMEOUT = Duration.ofSeconds(60L);
+	
+	// (shared across all the services, only ever completes futures)
+	protected static final ScheduledExecutorService _timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "ReadOnlyMultiCrudService-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	final List<ICrudService<T>> _services;
+	final List<String> _store_names;
+	protected volatile Optional<Duration> _store_timeout = Optional.of(DEFAULT_STORE_TIMEOUT);
+	protected volatile Optional<BiConsumer<String, Throwable>> _partial_results_handler = Optional.empty();
 	
 	//////////////////////////////////////////////////////////////////////////////////////////////////
 	
@@ -213,10 +261,10 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	public CompletableFuture<Optional<T>> getObjectBySpec(
 			QueryComponent<T> unique_spec, List<String> field_list,
 			boolean include) {
-		final Stream<CompletableFuture<Optional<T>>> intermed_res1 = _services.stream().map(s -> s.getObjectBySpec(unique_spec, field_list, include));
+		final List<CompletableFuture<Optional<T>>> intermed_res1 = queryAll(s -> s.getObjectBySpec(unique_spec, field_list, include), Optional.empty());
 		
 		@SuppressWarnings("unchecked")
-		CompletableFuture<Optional<T>>[] intermed_res2 = (CompletableFuture<Optional<T>>[]) intermed_res1.toArray(CompletableFuture[]::new);
+		CompletableFuture<Optional<T>>[] intermed_res2 = (CompletableFuture<Optional<T>>[]) intermed_res1.stream().toArray(CompletableFuture[]::new);
 		
 		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
 			return Arrays.stream(intermed_res2).map(res -> res.join()).filter(maybe -> maybe.isPresent()).map(maybe -> maybe.get()).findFirst();
@@ -240,10 +288,10 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	public CompletableFuture<Optional<T>> getObjectById(Object id,
 			List<String> field_list, boolean include) {
 		
-		final Stream<CompletableFuture<Optional<T>>> intermed_res1 = _services.stream().map(s -> s.getObjectById(id, field_list, include));
+		final List<CompletableFuture<Optional<T>>> intermed_res1 = queryAll(s -> s.getObjectById(id, field_list, include), Optional.empty());
 		
 		@SuppressWarnings("unchecked")
-		CompletableFuture<Optional<T>>[] intermed_res2 = (CompletableFuture<Optional<T>>[]) intermed_res1.toArray(CompletableFuture[]::new);
+		CompletableFuture<Optional<T>>[] intermed_res2 = (CompletableFuture<Optional<T>>[]) intermed_res1.stream().toArray(CompletableFuture[]::new);
 		
 		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
 			return Arrays.stream(intermed_res2).map(res -> res.join()).filter(maybe -> maybe.isPresent()).map(maybe -> maybe.get()).findFirst();
@@ -258,7 +306,9 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 			QueryComponent<T> spec) {
 		return this.getObjectsBySpec(spec, Collections.emptyList(), false);
 	}
-	/**
+	/** The spec's sort order and limit are passed to each service, and their (sorted) results are merged, stopping once the limit is reached
+	 *  If no sort order is specified, the cursor is returned as soon as the first store's results are ready, and the results are returned from each store 
+	 *  in the order in which they become ready (a store failing after that - unless partial results are enabled, see setStoreOptions - is thrown from the iterator)
 	 * @param spec
 	 * @param field_list
 	 * @param include
@@ -268,14 +318,22 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	public CompletableFuture<ICrudService.Cursor<T>> getObjectsBySpec(
 			QueryComponent<T> spec, List<String> field_list, boolean include) {
 		
-		final Stream<CompletableFuture<ICrudService.Cursor<T>>> intermed_res1 = _services.stream().map(s -> s.getObjectsBySpec(spec, field_list, include));
+		final List<CompletableFuture<ICrudService.Cursor<T>>> intermed_res1 = queryAll(s -> s.getObjectsBySpec(spec, field_list, include), null); // (null: failed store)
 		
 		@SuppressWarnings("unchecked")
-		CompletableFuture<ICrudService.Cursor<T>>[] intermed_res2 = (CompletableFuture<ICrudService.Cursor<T>>[]) intermed_res1.toArray(CompletableFuture[]::new);
+		CompletableFuture<ICrudService.Cursor<T>>[] intermed_res2 = (CompletableFuture<ICrudService.Cursor<T>>[]) intermed_res1.stream().toArray(CompletableFuture[]::new);
 		
-		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
-			return new MultiCursor<T>(Arrays.stream(intermed_res2).map(res -> res.join()).collect(Collectors.toList()));
-		});
+		final List<Tuple2<String, Integer>> order_by = Optional.ofNullable(spec.getOrderBy()).orElse(Collections.emptyList());
+		
+		if (order_by.isEmpty() && (intermed_res2.length > 0)) { // stream the results from each store as it becomes ready
+			return CompletableFuture.anyOf(intermed_res2).thenApply(__ -> new StreamingMultiCursor<T>(intermed_res1, Optional.ofNullable(spec.getLimit())));
+		}
+		else { // (need the first object from all the stores to merge them)
+			return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
+				return new MultiCursor<T>(Arrays.stream(intermed_res2).map(res -> res.join()).filter(cursor -> null != cursor).collect(Collectors.toList()), 
+						order_by, Optional.ofNullable(spec.getLimit()));
+			});
+		}
 	}
 	/**
 	 * @param spec
@@ -283,10 +341,10 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
 	 */
 	public CompletableFuture<Long> countObjectsBySpec(QueryComponent<T> spec) {		
-		final Stream<CompletableFuture<Long>> intermed_res1 = _services.stream().map(s -> s.countObjectsBySpec(spec));
+		final List<CompletableFuture<Long>> intermed_res1 = queryAll(s -> s.countObjectsBySpec(spec), 0L);
 		
 		@SuppressWarnings("unchecked")
-		CompletableFuture<Long>[] intermed_res2 = (CompletableFuture<Long>[]) intermed_res1.toArray(CompletableFuture[]::new);
+		CompletableFuture<Long>[] intermed_res2 = (CompletableFuture<Long>[]) intermed_res1.stream().toArray(CompletableFuture[]::new);
 		
 		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
 			return Arrays.stream(intermed_res2).map(res -> res.join()).reduce((a, b) -> a + b).orElse(0L);
@@ -297,10 +355,10 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjects()
 	 */
 	public CompletableFuture<Long> countObjects() {
-		final Stream<CompletableFuture<Long>> intermed_res1 = _services.stream().map(s -> s.countObjects());
+		final List<CompletableFuture<Long>> intermed_res1 = queryAll(s -> s.countObjects(), 0L);
 		
 		@SuppressWarnings("unchecked")
-		CompletableFuture<Long>[] intermed_res2 = (CompletableFuture<Long>[]) intermed_res1.toArray(CompletableFuture[]::new);
+		CompletableFuture<Long>[] intermed_res2 = (CompletableFuture<Long>[]) intermed_res1.stream().toArray(CompletableFuture[]::new);
 		
 		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
 			return Arrays.stream(intermed_res2).map(res -> res.join()).reduce((a, b) -> a + b).orElse(0L);
@@ -394,7 +452,8 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getRawService()
 	 */
 	public ICrudService<JsonNode> getRawService() {
-		return new ReadOnlyMultiCrudService<JsonNode>(_services.stream().map(s -> s.getRawService()).collect(Collectors.toList()));
+		return new ReadOnlyMultiCrudService<JsonNode>(_services.stream().map(s -> s.getRawService()).collect(Collectors.toList()), _store_names)
+					.setStoreOptions(_store_timeout, _partial_results_handler);
 	}
 	/**
 	 * @return
@@ -425,20 +484,230 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	
 	// UTILITY
 	
+	/** Issues a query against all the stores at once, applying the store options (see setStoreOptions) to each
+	 * @param query - the query to run against each store
+	 * @param on_error - with partial results enabled, what a failed store returns
+	 * @return a future per store, in store order
+	 */
+	protected <R> List<CompletableFuture<R>> queryAll(final Function<ICrudService<T>, CompletableFuture<R>> query, final R on_error) {
+		final Optional<Duration> store_timeout = _store_timeout;
+		final Optional<BiConsumer<String, Throwable>> partial_results_handler = _partial_results_handler;
+		
+		return IntStream.range(0, _services.size()).mapToObj(i -> {
+			final String store_name = _store_names.get(i);
+			final CompletableFuture<R> res = Lambdas.get(() -> {
+				try {
+					return query.apply(_services.get(i));
+				}
+				catch (Throwable t) { // (errors thrown before the query was even made)
+					final CompletableFuture<R> error = new CompletableFuture<>();
+					error.completeExceptionally(t);
+					return error;
+				}
+			});
+			final CompletableFuture<R> timed_res = store_timeout.map(timeout -> withTimeout(store_name, res, timeout.toMillis())).orElse(res);
+			
+			return partial_results_handler.map(handler -> timed_res.exceptionally(err -> {
+				handler.accept(store_name, (err instanceof CompletionException) && (null != err.getCause()) ? err.getCause() : err);
+				return on_error;
+			}))
+			.orElse(timed_res);
+		})
+		.collect(Collectors.toList());
+	}
+	
+	/** Fails a future if it hasn't completed within the timeout
+	 * @param store_name - for the error message
+	 * @param future
+	 * @param timeout_ms
+	 * @return a future that completes with the original, or fails with a TimeoutException
+	 */
+	protected static <R> CompletableFuture<R> withTimeout(final String store_name, final CompletableFuture<R> future, final long timeout_ms) {
+		final CompletableFuture<R> ret_val = new CompletableFuture<>();
+		final ScheduledFuture<?> timeout = _timeouts.schedule(() ->
+			ret_val.completeExceptionally(new TimeoutException(ErrorUtils.get("Query against {0} timed out after {1}ms", store_name, Long.toString(timeout_ms))))
+			, timeout_ms, TimeUnit.MILLISECONDS);
+		
+		future.whenComplete((res, err) -> {
+			timeout.cancel(false);
+			if (null == err) ret_val.complete(res);
+			else ret_val.completeExceptionally(err);
+		});
+		return ret_val;
+	}
+	
+	/** Returns the results from a number of cursors in the order in which they become ready (failed stores - with partial results enabled - are null)
+	 * @author Alex
+	 *
+	 * @param <O>
+	 */
+	public static class StreamingMultiCursor<O> extends ICrudService.Cursor<O> {
+		
+		/** User c'tor
+		 * @param cursors - the (possibly still running) per store queries
+		 * @param limit - the max number of objects to return across all the cursors
+		 */
+		public StreamingMultiCursor(final List<CompletableFuture<Cursor<O>>> cursors, final Optional<Long> limit) {
+			_cursors = cursors;
+			_limit = limit.filter(l -> l > 0);
+		}
+		
+		final protected List<CompletableFuture<Cursor<O>>> _cursors;
+		final protected Optional<Long> _limit;
+		
+		@Override
+		public Iterator<O> iterator() {
+			final LinkedBlockingQueue<CompletableFuture<Cursor<O>>> ready = new LinkedBlockingQueue<>();
+			_cursors.forEach(f -> f.whenComplete((__, ___) -> ready.add(f)));
+			
+			final Iterator<O> streamed = new AbstractIterator<O>() {
+				int _mutable_remaining = _cursors.size();
+				Iterator<O> _mutable_current = Collections.emptyIterator();
+				
+				@Override
+				protected O computeNext() {
+					while (!_mutable_current.hasNext()) {
+						if (0 == _mutable_remaining) {
+							return endOfData();
+						}
+						_mutable_remaining--;
+						final Cursor<O> next = Lambdas.wrap_u(() -> ready.take()).get().join(); // (throws if the store failed)
+						_mutable_current = (null == next) ? Collections.emptyIterator() : next.iterator();
+					}
+					return _mutable_current.next();
+				}
+			};
+			return _limit.map(l -> Iterators.limit(streamed, (int)Math.min(l, Integer.MAX_VALUE))).orElse(streamed);
+		}
+		
+		@Override
+		public void close() {
+			_cursors.forEach(f -> f.thenAccept(Lambdas.wrap_consumer_u(c -> { if (null != c) c.close(); })));
+		}
+		
+		/** (Waits for all the stores)
+		 */
+		@Override
+		public long count() {
+			return _cursors.stream().map(f -> f.join()).filter(c -> null != c).map(c -> c.count()).reduce((a, b) -> a + b).orElse(0L);
+		}
+	}
+	
+	/** Combines the results from a number of cursors - if a sort order is specified then each cursor is assumed to be sorted by it already,
+	 *  and the results are merged (reading one object ahead from each cursor) - otherwise they are returned one cursor at a time
+	 * @author Alex
+	 *
+	 * @param <O>
+	 */
 	public static class MultiCursor<O> extends ICrudService.Cursor<O> {
 
-		/** User c'tor
+		/** User c'tor - returns the cursors' results one after another
 		 * @param cursors
 		 */
 		public MultiCursor(final List<Cursor<O>> cursors) {
+			this(cursors, Collections.emptyList(), Optional.empty());
+		}
+		
+		/** User c'tor - merges the cursors' results in sort order, stopping after the limit
+		 * @param cursors - each cursor must already be sorted by order_by
+		 * @param order_by - list of (field, +1 for ascending/-1 for descending), empty to return the cursors one after another
+		 * @param limit - the max number of objects to return across all the cursors
+		 */
+		public MultiCursor(final List<Cursor<O>> cursors, final List<Tuple2<String, Integer>> order_by, final Optional<Long> limit) {
 			_cursors = cursors;
+			_order_by = order_by;
+			_limit = limit.filter(l -> l > 0);
 		}
 		
 		final protected List<Cursor<O>> _cursors;
+		final protected List<Tuple2<String, Integer>> _order_by;
+		final protected Optional<Long> _limit;
 		
 		@Override
 		public Iterator<O> iterator() {
-			return Iterators.concat(_cursors.stream().map(c -> c.iterator()).iterator());
+			final Iterator<O> merged = (_order_by.isEmpty() || (_cursors.size() < 2))
+					? Iterators.concat(_cursors.stream().map(c -> c.iterator()).iterator())
+					: mergeSorted();
+			
+			return _limit.map(l -> Iterators.limit(merged, (int)Math.min(l, Integer.MAX_VALUE))).orElse(merged);
+		}
+		
+		/** K-way merge of the (sorted) cursors - each object's sort key is extracted once, ties go to the earlier cursor
+		 * @return
+		 */
+		protected Iterator<O> mergeSorted() {
+			final List<Iterator<Tuple2<Tuple2<List<Optional<JsonNode>>, Integer>, O>>> keyed_iterators =
+					IntStream.range(0, _cursors.size()).boxed()
+						.map(i -> Iterators.transform(_cursors.get(i).iterator(), (O o) -> Tuples._2T(Tuples._2T(getSortKey(o), i), o)))
+						.collect(Collectors.toList());
+			
+			final Comparator<Tuple2<Tuple2<List<Optional<JsonNode>>, Integer>, O>> comparator = (a, b) -> {
+				final int cmp = compareSortKeys(a._1()._1(), b._1()._1());
+				return (0 != cmp) ? cmp : Integer.compare(a._1()._2(), b._1()._2());
+			};
+			
+			return Iterators.transform(Iterators.mergeSorted(keyed_iterators, comparator), t -> t._2());
+		}
+		
+		/** Returns the values of the order by fields for an object
+		 * @param o
+		 * @return
+		 */
+		protected List<Optional<JsonNode>> getSortKey(final O o) {
+			final JsonNode json = (o instanceof JsonNode) ? (JsonNode) o : BeanTemplateUtils.toJson(o);
+			return _order_by.stream().map(field_dir -> JsonUtils.getProperty(field_dir._1(), json)).collect(Collectors.toList());
+		}
+		
+		/** Compares two sort keys field by field, in the direction of each order by field
+		 * @param a
+		 * @param b
+		 * @return
+		 */
+		protected int compareSortKeys(final List<Optional<JsonNode>> a, final List<Optional<JsonNode>> b) {
+			for (int i = 0; i < _order_by.size(); ++i) {
+				final int cmp = compareValues(a.get(i), b.get(i));
+				if (0 != cmp) {
+					return (_order_by.get(i)._2() < 0) ? -cmp : cmp;
+				}
+			}
+			return 0;
+		}
+		
+		/** Compares two field values in ascending order: missing < numbers < strings < objects/arrays < booleans
+		 *  (objects and arrays are compared by their JSON string)
+		 * @param a
+		 * @param b
+		 * @return
+		 */
+		protected static int compareValues(final Optional<JsonNode> a, final Optional<JsonNode> b) {
+			final int type_cmp = Integer.compare(getTypeRank(a), getTypeRank(b));
+			if ((0 != type_cmp) || !a.isPresent()) {
+				return type_cmp;
+			}
+			final JsonNode ja = a.get();
+			final JsonNode jb = b.get();
+			if (ja.isNumber()) {
+				return (ja.isIntegralNumber() && jb.isIntegralNumber())
+						? ja.bigIntegerValue().compareTo(jb.bigIntegerValue())
+						: ja.decimalValue().compareTo(jb.decimalValue());
+			}
+			else if (ja.isTextual()) {
+				return ja.asText().compareTo(jb.asText());
+			}
+			else if (ja.isBoolean()) {
+				return Boolean.compare(ja.asBoolean(), jb.asBoolean());
+			}
+			else {
+				return ja.toString().compareTo(jb.toString());
+			}
+		}
+		
+		/** Utility for compareValues
+		 * @param j
+		 * @return
+		 */
+		private static int getTypeRank(final Optional<JsonNode> j) {
+			return j.map(v -> v.isNumber() ? 1 : v.isTextual() ? 2 : v.isBoolean() ? 4 : 3).orElse(0);
 		}
 
 		@Override
@@ -23,7 +23,6 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Optional;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -37,34 +36,33 @@ public class BatchRecordUtils {
 	private static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 
 	/** Simple implementation of IBatchRecord - supports both JSON and content
+	 *  (Serialized as length prefixed byte runs, so the JSON and content can be any size - the JSON is only parsed when first requested)
 	 * @author jfreydank
 	 */
 	public static class BatchRecord implements IBatchRecord, Serializable {
-		private static final long serialVersionUID = -1059865997758583525L;
+		private static final long serialVersionUID = -1059865997758583526L;
 				
 		/** Serialize
 		 * @param oos
 		 * @throws IOException
 		 */
 		private void writeObject(ObjectOutputStream oos) throws IOException {
-			oos.writeUTF(_json.toString());
+			final byte[] json_bytes = _json_bytes; // (read before _json - getJson sets _json before clearing _json_bytes)
+			writeJson(oos, _json, json_bytes);
+			oos.writeInt((null == _content) ? -1 : _content.size());
 			if (null != _content) {
-				oos.write(_content.toByteArray());
+				_content.writeTo(oos);
 			}			
 		}
 		/** Deserialize
 		 * @param ois
-		 * @throws JsonProcessingException
 		 * @throws IOException
 		 */
-		private void readObject(ObjectInputStream ois) throws JsonProcessingException, IOException {
-			_json = _mapper.readTree(ois.readUTF());
-			int remaining = ois.available();
-			if (remaining > 0) {
-				_content = new ByteArrayOutputStream();
-				byte[] b = new byte[remaining];
-				ois.read(b);
-				_content.write(b);
+		private void readObject(ObjectInputStream ois) throws IOException {
+			_json_bytes = readBytes(ois, ois.readInt());
+			final int content_size = ois.readInt();
+			if (content_size >= 0) {
+				_content = wrapBytes(readBytes(ois, content_size));
 			}
 		}
 		
@@ -79,7 +77,19 @@ public class BatchRecordUtils {
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getJson()
 		 */
-		public JsonNode getJson() { return _json; }
+		public JsonNode getJson() { 
+			final JsonNode json = _json;
+			if (null != json) {
+				return json;
+			}
+			synchronized (this) { // (records get handed between threads, so only parse once and publish safely)
+				if (null == _json) {
+					_json = parseJson(_json_bytes);
+					_json_bytes = null;
+				}
+				return _json;
+			}
+		}
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContent()
 		 */
@@ -89,17 +99,18 @@ public class BatchRecordUtils {
 		 * @see java.lang.Object#hashCode()
 		 */
 		@Override
-		public int hashCode() { return _json.hashCode(); }
+		public int hashCode() { return getJson().hashCode(); }
 		
 		/* (non-Javadoc)
 		 * @see java.lang.Object#equals(java.lang.Object)
 		 */
 		@Override
 		public boolean equals(Object other) {
-			return isEquals(_json, _content, other);
+			return isEquals(getJson(), _content, other);
 		}
 		
-		protected JsonNode _json; 
+		protected volatile JsonNode _json; 
+		protected volatile byte[] _json_bytes; // (the serialized JSON of a deserialized record, until it's parsed - see getJson)
 		protected ByteArrayOutputStream _content;
 	}
 	
@@ -117,25 +128,26 @@ public class BatchRecordUtils {
 	}
 	
 	/** Simple implementation of IBatchRecord - supports JSON only
+	 *  (Serialized as a length prefixed byte run, so the JSON can be any size - it's only parsed when first requested)
 	 * @author jfreydank
 	 */
 	public static class JsonBatchRecord implements IBatchRecord, Serializable {
-		private static final long serialVersionUID = 4202750376887312365L;
+		private static final long serialVersionUID = 4202750376887312366L;
 		
 		/** Serialize
 		 * @param oos
 		 * @throws IOException
 		 */
 		private void writeObject(ObjectOutputStream oos) throws IOException {
-			oos.writeUTF(_json.toString());
+			final byte[] json_bytes = _json_bytes; // (read before _json - getJson sets _json before clearing _json_bytes)
+			writeJson(oos, _json, json_bytes);
 		}
 		/** Deserialize
 		 * @param ois
-		 * @throws JsonProcessingException
 		 * @throws IOException
 		 */
-		private void readObject(ObjectInputStream ois) throws JsonProcessingException, IOException {
-			_json = _mapper.readTree(ois.readUTF());
+		private void readObject(ObjectInputStream ois) throws IOException {
+			_json_bytes = readBytes(ois, ois.readInt());
 		}
 		
 		/** USer c'tor
@@ -148,7 +160,19 @@ public class BatchRecordUtils {
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getJson()
 		 */
-		public JsonNode getJson() { return _json; }
+		public JsonNode getJson() { 
+			final JsonNode json = _json;
+			if (null != json) {
+				return json;
+			}
+			synchronized (this) { // (records get handed between threads, so only parse once and publish safely)
+				if (null == _json) {
+					_json = parseJson(_json_bytes);
+					_json_bytes = null;
+				}
+				return _json;
+			}
+		}
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContent()
 		 */
@@ -158,17 +182,18 @@ public class BatchRecordUtils {
 		 * @see java.lang.Object#hashCode()
 		 */
 		@Override
-		public int hashCode() { return _json.hashCode(); }
+		public int hashCode() { return getJson().hashCode(); }
 		
 		/* (non-Javadoc)
 		 * @see java.lang.Object#equals(java.lang.Object)
 		 */
 		@Override
 		public boolean equals(Object other) {
-			return isEquals(_json, null, other);
+			return isEquals(getJson(), null, other);
 		}
 		
-		protected JsonNode _json; 
+		protected volatile JsonNode _json; 
+		protected volatile byte[] _json_bytes; // (the serialized JSON of a deserialized record, until it's parsed - see getJson)
 	}
 	
 	/** Injected version
@@ -197,10 +222,58 @@ public class BatchRecordUtils {
 	protected static boolean isEquals(JsonNode json, ByteArrayOutputStream content, Object o2) {
 		return Patterns.match(o2).<Boolean>andReturn()
 				.when(j -> null == j, __ -> false)
-				.when(BatchRecord.class, j -> json.equals(j._json) && (null == content) && (null == j._content))
-				.when(JsonBatchRecord.class, j -> json.equals(j._json) && (null == content))
+				.when(BatchRecord.class, j -> json.equals(j.getJson()) && (null == content) && (null == j._content))
+				.when(JsonBatchRecord.class, j -> json.equals(j.getJson()) && (null == content))
 				.otherwise(() -> false);
 		
 	}
 	
+	/** Writes a record's JSON as a length prefixed byte run - if the record was deserialized and its JSON never parsed, the original bytes are written as is
+	 * @param oos
+	 * @param json - the JSON, if parsed
+	 * @param json_bytes - else the serialized JSON
+	 * @throws IOException
+	 */
+	protected static void writeJson(final ObjectOutputStream oos, final JsonNode json, final byte[] json_bytes) throws IOException {
+		final byte[] bytes = (null != json) ? _mapper.writeValueAsBytes(json) : json_bytes;
+		oos.writeInt(bytes.length);
+		oos.write(bytes);
+	}
+	
+	/** Reads a byte run written by writeJson/writeObject
+	 * @param ois
+	 * @param size - the length prefix
+	 * @return
+	 * @throws IOException
+	 */
+	protected static byte[] readBytes(final ObjectInputStream ois, final int size) throws IOException {
+		final byte[] bytes = new byte[size];
+		ois.readFully(bytes);
+		return bytes;
+	}
+	
+	/** Parses serialized JSON (on the first call to getJson of a deserialized record)
+	 * @param json_bytes
+	 * @return
+	 */
+	protected static JsonNode parseJson(final byte[] json_bytes) {
+		try {
+			return _mapper.readTree(json_bytes);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** Wraps deserialized content in an output stream without copying it
+	 * @param bytes
+	 * @return
+	 */
+	protected static ByteArrayOutputStream wrapBytes(final byte[] bytes) {
+		return new ByteArrayOutputStream(0) {{
+			buf = bytes;
+			count = bytes.length;
+		}};
+	}
+	
 }
@@ -15,10 +15,15 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.utils;
 
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -31,8 +36,6 @@ import org.xeustechnologies.jcl.exception.JclException;
 import scala.Tuple2;
 
 import com.codepoetics.protonpack.StreamUtils;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
@@ -41,12 +44,59 @@ import com.ikanow.aleph2.data_model.utils.Tuples;
 import fj.data.Validation;
 
 public class ClassloaderUtils {
-	protected final static Cache<String, JarClassLoader> _classloader_cache = CacheBuilder.newBuilder().expireAfterAccess(2, TimeUnit.HOURS).build();
+	public static final long EXPIRE_AFTER_ACCESS_MS = TimeUnit.HOURS.toMillis(2L);
+	
+	// (cache hits don't lock anything, only one thread builds a given classloader, the others wait for it)
+	protected final static ConcurrentHashMap<String, CachedClassloader> _classloader_cache = new ConcurrentHashMap<>();
+	
+	/** A cached classloader, together with the objects created from it - it's only expired once none of those are still in use 
+	 *  (a new classloader would load all the classes again, with their own static state)
+	 * @author Alex
+	 */
+	protected static class CachedClassloader {
+		protected final CompletableFuture<JarClassLoader> _classloader = new CompletableFuture<>();
+		protected volatile long _last_access = System.currentTimeMillis();
+		protected final Set<WeakReference<Object>> _instances = ConcurrentHashMap.newKeySet();
+		
+		/** Records an object created from this classloader
+		 * @param instance
+		 */
+		protected void addInstance(final Object instance) {
+			if (_instances.size() >= MAX_TRACKED_INSTANCES) {
+				_instances.removeIf(ref -> null == ref.get());
+			}
+			_instances.add(new WeakReference<>(instance));
+		}
+		
+		/** Whether any objects created from this classloader are still in use
+		 * @return
+		 */
+		protected boolean isInUse() {
+			_instances.removeIf(ref -> null == ref.get());
+			return !_instances.isEmpty();
+		}
+		
+		/** Whether the classloader can be removed from the cache
+		 * @param now
+		 * @return
+		 */
+		protected boolean isExpired(final long now) {
+			return _classloader.isDone() && ((now - _last_access) > EXPIRE_AFTER_ACCESS_MS) && !isInUse();
+		}
+		private static final int MAX_TRACKED_INSTANCES = 64; // (before clearing out the ones no longer in use)
+	}
 	
 	/** Clear the entire cache
 	 */
-	public static synchronized void clearCache() {
-		_classloader_cache.invalidateAll();
+	public static void clearCache() {
+		_classloader_cache.clear();
+	}
+	
+	/** Clears just the cached classloaders that include the designated library
+	 * @param lib_path - the path of the library (with or without the scheme, eg file:)
+	 */
+	public static void invalidateCache(final String lib_path) {
+		_classloader_cache.keySet().removeIf(cache_signature -> cache_signature.endsWith(lib_path) || cache_signature.contains(lib_path + ":"));
 	}
 	
 	/** Returns an instance of the requested class from the designated classpath (union of the libs below)
@@ -72,7 +122,7 @@ public class ClassloaderUtils {
 	 * @param secondary_libs - optionally a set of other libraries
 	 * @return an instance of the desired function
 	 */
-	public synchronized static <R, M> Validation<BasicMessageBean, Tuple2<R, ClassLoader>> getFromCustomClasspath_withClassloader(
+	public static <R, M> Validation<BasicMessageBean, Tuple2<R, ClassLoader>> getFromCustomClasspath_withClassloader(
 													final Class<R> interface_clazz,
 													final String implementation_classname,
 													final Optional<String> primary_lib, 
@@ -84,18 +134,24 @@ public class ClassloaderUtils {
 		try {
 			final String cache_signature = getCacheSignature(primary_lib, secondary_libs);
 			
-			final JarClassLoader jcl = _classloader_cache.get(cache_signature, 
+			final CachedClassloader cached = getCachedClassloader(cache_signature, 
 						() -> {
 							final JarClassLoader jcl_int = new JarClassLoader();
 							primary_lib.ifPresent(Lambdas.wrap_consumer_u(pl -> jcl_int.add(new URL(pl))));
 							secondary_libs.forEach(Lambdas.wrap_consumer_u(j -> jcl_int.add(new URL(j)))); 
 							return jcl_int;
 						});
+			final JarClassLoader jcl = cached._classloader.join();
 			
 			final JclObjectFactory factory = JclObjectFactory.getInstance();
 		
+			// (JCL isn't safe for concurrent class loading from the same classloader, so lock per cached classloader)
 			@SuppressWarnings("unchecked")		
-			final R ret_val = exceptionWrapper(() -> (R) factory.create(jcl, implementation_classname));
+			final R ret_val = exceptionWrapper(() -> {
+				synchronized (jcl) {
+					return (R) factory.create(jcl, implementation_classname);
+				}
+			});
 			
 			if (null == ret_val) {
 				throw new RuntimeException("Unknown error (possibly concurrent modification exception in 2.4)");
@@ -106,7 +162,16 @@ public class ClassloaderUtils {
 						ErrorUtils.get(SharedErrorUtils.ERROR_CLASS_NOT_SUPERCLASS, implementation_classname, interface_clazz) 
 						));				
 			}
-			else return Validation.success(Tuples._2T(ret_val, jcl));
+			else {
+				cached.addInstance(ret_val);
+				return Validation.success(Tuples._2T(ret_val, jcl));
+			}
+		}
+		catch (CompletionException e) { // (building the classloader failed)
+			return Validation.fail(SharedErrorUtils.buildErrorMessage(handler_for_errors, 
+							msg_for_errors, 
+							ErrorUtils.getLongForm(SharedErrorUtils.ERROR_LOADING_CLASS, Optional.ofNullable(e.getCause()).orElse(e), implementation_classname) 
+							));
 		}
 		catch (Throwable e) {
 			return Validation.fail(SharedErrorUtils.buildErrorMessage(handler_for_errors, 
@@ -116,6 +181,37 @@ public class ClassloaderUtils {
 		}
 	}	
 	
+	/** Returns the cached classloader for the designated classpath, building it if it's not present (if multiple threads request the same
+	 *  missing classloader at once, only one builds it) - classloaders that haven't been used recently (and aren't in use) are removed first
+	 * @param cache_signature - see getCacheSignature
+	 * @param builder - builds the classloader
+	 * @return the cached classloader (completed, or exceptionally if the build failed)
+	 */
+	protected static CachedClassloader getCachedClassloader(final String cache_signature, final Supplier<JarClassLoader> builder) {
+		final long now = System.currentTimeMillis();
+		final CachedClassloader existing = _classloader_cache.get(cache_signature);
+		if (null != existing) {
+			existing._last_access = now;
+			return existing;
+		}
+		_classloader_cache.values().removeIf(cached -> cached.isExpired(now));
+		
+		final CachedClassloader new_cached = new CachedClassloader();
+		final CachedClassloader winner = _classloader_cache.putIfAbsent(cache_signature, new_cached);
+		if (null != winner) {
+			winner._last_access = now;
+			return winner; // (built by another thread)
+		}
+		try {
+			new_cached._classloader.complete(builder.get());
+		}
+		catch (Throwable t) {
+			_classloader_cache.remove(cache_signature, new_cached);
+			new_cached._classloader.completeExceptionally(t);
+		}
+		return new_cached;
+	}
+	
 	/** Workaround for JCL 2.4 bug (can't move to 2.7 because of other issues) 
 	 * @param supplier
 	 * @return
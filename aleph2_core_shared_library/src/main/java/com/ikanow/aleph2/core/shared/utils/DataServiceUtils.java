@@ -17,14 +17,20 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import scala.Tuple2;
 
 import com.codepoetics.protonpack.StreamUtils;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IColumnarService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IDataWarehouseService;
@@ -35,6 +41,7 @@ import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.ITemporalService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.TemplateHelper;
 import com.ikanow.aleph2.data_model.utils.Patterns;
@@ -76,6 +83,57 @@ public class DataServiceUtils {
 		return mutable_output;
 	}
 
+	/** Returns the (cached) routing plan for the bucket's data schema - only rebuilt when the bucket's data schema changes
+	 *  (if the bucket's data schema isn't the same object as the one the plan was built from, the two are compared as JSON - much cheaper than resolving the services)
+	 * @param bucket
+	 * @param context - the context the data services are resolved from
+	 * @return
+	 */
+	public static RoutingPlan getRoutingPlan(final DataBucketBean bucket, final IServiceContext context) {
+		if (null == bucket.full_name()) { // (can't cache it)
+			return new RoutingPlan(bucket, context);
+		}
+		final Map<String, RoutingPlan> plans = _routing_plans.computeIfAbsent(context, __ -> new ConcurrentHashMap<>());
+		return plans.compute(bucket.full_name(), (__, plan) -> ((null != plan) && plan.isValidFor(bucket)) ? plan : new RoutingPlan(bucket, context));
+	}
+	private static final Map<IServiceContext, Map<String, RoutingPlan>> _routing_plans = new MapMaker().weakKeys().makeMap();
+	
+	/** An immutable snapshot of which data services a bucket's data schema routes to, see getRoutingPlan
+	 * @author Alex
+	 */
+	public static class RoutingPlan {
+		protected RoutingPlan(final DataBucketBean bucket, final IServiceContext context) {
+			_data_schema = bucket.data_schema();
+			_data_schema_json = Optional.ofNullable(_data_schema).map(schema -> BeanTemplateUtils.toJson(schema));
+			_services = ImmutableSetMultimap.copyOf(selectDataServices(_data_schema, context));
+			_providers = ImmutableList.copyOf(listDataServiceProviders(_data_schema));
+		}
+		
+		/** As per selectDataServices
+		 * @return
+		 */
+		public Multimap<IDataServiceProvider, String> services() { return _services; }
+		
+		/** As per listDataServiceProviders
+		 * @return
+		 */
+		public List<Tuple2<Class<? extends IDataServiceProvider>, Optional<String>>> providers() { return _providers; }
+		
+		/** Whether this plan was built from the same data schema as the bucket's
+		 * @param bucket
+		 * @return
+		 */
+		protected boolean isValidFor(final DataBucketBean bucket) {
+			return (_data_schema == bucket.data_schema())
+					|| _data_schema_json.equals(Optional.ofNullable(bucket.data_schema()).map(schema -> BeanTemplateUtils.toJson(schema)));
+		}
+		
+		protected final DataSchemaBean _data_schema;
+		protected final Optional<JsonNode> _data_schema_json;
+		protected final Multimap<IDataServiceProvider, String> _services;
+		protected final List<Tuple2<Class<? extends IDataServiceProvider>, Optional<String>>> _providers;
+	}
+	
 	/** Returns a list of interface/optional-non-default-name for the designated data schema
 	 *  (WARNING: considers each use of a given data service to be unique, ie returns 2 elements for search/doc service if both implemented by ES) 
 	 * @param data_schema
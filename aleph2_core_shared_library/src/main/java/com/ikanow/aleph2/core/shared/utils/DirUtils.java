@@ -20,8 +20,29 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -32,6 +53,10 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
 /** 
  * Utility class working on FileContext.
  * @author jfreydank
@@ -40,6 +65,15 @@ import org.apache.logging.log4j.Logger;
 public class DirUtils {
 	private static final Logger logger = LogManager.getLogger(DirUtils.class);
 
+	public static final int DEFAULT_WALK_PARALLELISM = 8;
+	
+	// (shared across all the walks, each of which bounds how many of its listings are in flight at once)
+	protected static final ExecutorService _listing_executor = Executors.newCachedThreadPool(runnable -> {
+		final Thread thread = new Thread(runnable, "DirUtils-listing");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	 /** This method returns the path to the first subdirectory matching the subDirectoryName parameter or null if not found.
 	 * @param fileContext
 	 * @param start
@@ -95,39 +129,151 @@ public class DirUtils {
 		
 	}
 
-	/**
+	/** Adds all the subdirectories whose names contain subDirectoryName (but not the subdirectories under them) to allPaths
+	 *  (the directories are listed in parallel, see walkSubdirectories, so the order of allPaths is not defined)
 	 * @param allPaths
 	 * @param fileContext
 	 * @param start
 	 * @param subDirectoryName
-	 * @param includeMatched
+	 * @param includeMatched - if true adds the matching directories, else their parents
 	 */
 	public static void findAllSubdirectories(List<Path> allPaths, FileContext fileContext, Path start, String subDirectoryName,boolean includeMatched) {		
-		try {
+		try (Stream<Path> matches = walkSubdirectories(fileContext, start, p -> p.getName().contains(subDirectoryName), p -> false, false, Optional.empty(), DEFAULT_WALK_PARALLELISM)) {
 			logger.debug("findAllSubdirectories :"+start.toString());
-			FileStatus[] statuss = fileContext.util().listStatus(start);
-			for (int i = 0; i < statuss.length; i++) {
-				FileStatus dir = statuss[i];
-				logger.debug("FileStatus:" + statuss[i].getPath().toString());
-				if(dir.isDirectory()){
-					if(dir.getPath().getName().contains(subDirectoryName)){
-						logger.debug("findOneSubdirectory match:"+dir.getPath().getName());
-						if(includeMatched){
-							allPaths.add(dir.getPath());
-						}else{
-							allPaths.add(dir.getPath().getParent());
+			matches.forEach(p -> allPaths.add(includeMatched ? p : p.getParent()));
+		} catch (Exception e) {
+			logger.error("findAllSubdirectories Caught Exception", e);
+		}		
+	}
+
+	/** Lazily walks the directory tree under start, listing up to max_parallelism directories at once
+	 *  Stopping early (eg findFirst, limit) avoids listing the rest of the tree - close the stream to cancel any listings still in flight
+	 *  (Directories that can't be listed are logged and skipped)
+	 * @param fileContext
+	 * @param start - the directory to walk under (not itself returned)
+	 * @param matches - the directories to return
+	 * @param prune - directories that are neither returned nor walked under (eg nameMatches("*.tmp"))
+	 * @param descend_into_matches - whether to keep walking under the matching directories
+	 * @param max_depth - if present, the deepest directories to look at (the subdirectories of start are depth 1)
+	 * @param max_parallelism - the max number of directories listed at once
+	 * @return a stream of the matching directories, in the order their parents' listings complete
+	 */
+	public static Stream<Path> walkSubdirectories(final FileContext fileContext, final Path start, 
+			final Predicate<Path> matches, final Predicate<Path> prune, final boolean descend_into_matches, final Optional<Integer> max_depth, final int max_parallelism)
+	{
+		final DirectoryWalker walker = new DirectoryWalker(fileContext, start, matches, prune, descend_into_matches, max_depth.orElse(Integer.MAX_VALUE), Math.max(1, max_parallelism));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker, Spliterator.NONNULL), false).onClose(walker::close);
+	}
+	
+	/** Returns a predicate (eg for walkSubdirectories) matching paths whose names match the glob
+	 * @param glob - eg "bucket_*", "{import,temp}" (see java.nio.file.FileSystem.getPathMatcher)
+	 * @return
+	 */
+	public static Predicate<Path> nameMatches(final String glob) {
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		return p -> matcher.matches(Paths.get(p.getName()));
+	}
+	
+	/** Iterator over the matching directories of a walkSubdirectories - only touched by the consuming thread, other than the listings themselves
+	 */
+	protected static class DirectoryWalker implements Iterator<Path> {
+		protected DirectoryWalker(final FileContext fileContext, final Path start, 
+				final Predicate<Path> matches, final Predicate<Path> prune, final boolean descend_into_matches, final int max_depth, final int max_parallelism)
+		{
+			_file_context = fileContext;
+			_matches = matches;
+			_prune = prune;
+			_descend_into_matches = descend_into_matches;
+			_max_depth = max_depth;
+			_max_parallelism = max_parallelism;
+			if (_max_depth > 0) {
+				_to_list.add(Tuples._2T(start, 0));
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (_ready.isEmpty()) {
+				while (!_to_list.isEmpty() && (_in_flight.size() < _max_parallelism)) {
+					final Tuple2<Path, Integer> dir = _to_list.poll();
+					_in_flight.add(_listings.submit(() -> Tuples._2T(dir._2() + 1, listStatus(dir._1()))));
+				}
+				if (_in_flight.isEmpty()) {
+					return false;
+				}
+				final Tuple2<Integer, FileStatus[]> listing;
+				try {
+					final Future<Tuple2<Integer, FileStatus[]>> next = _listings.take();
+					_in_flight.remove(next);
+					listing = next.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					return false;
+				}
+				catch (ExecutionException e) { // (can't happen, listStatus catches everything)
+					continue;
+				}
+				for (FileStatus child: listing._2()) {
+					if (child.isDirectory() && !_prune.test(child.getPath())) {
+						final boolean matched = _matches.test(child.getPath());
+						if (matched) {
+							_ready.add(child.getPath());
+						}
+						if ((!matched || _descend_into_matches) && (listing._1() < _max_depth)) {
+							_to_list.add(Tuples._2T(child.getPath(), listing._1()));
 						}
-					}else{
-						findAllSubdirectories(allPaths, fileContext, dir.getPath(),  subDirectoryName,includeMatched);
 					}
 				}
 			}
+			return true;
+		}
 
-		} catch (Exception e) {
-			logger.error("findAllSubdirectories Caught Exception", e);
-		}		
+		@Override
+		public Path next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return _ready.poll();
+		}
+		
+		/** Stops the walk, cancelling any listings not yet started
+		 */
+		public void close() {
+			_to_list.clear();
+			_in_flight.forEach(f -> f.cancel(false));
+			_in_flight.clear();
+		}
+		
+		/** 
+		 * @param dir
+		 * @return the contents of dir, or nothing if it couldn't be listed
+		 */
+		protected FileStatus[] listStatus(final Path dir) {
+			try {
+				logger.debug("walkSubdirectories :"+dir.toString());
+				return _file_context.util().listStatus(dir);
+			}
+			catch (Exception e) {
+				logger.error("walkSubdirectories Caught Exception", e);
+				return new FileStatus[0];
+			}
+		}
+		
+		final protected FileContext _file_context;
+		final protected Predicate<Path> _matches;
+		final protected Predicate<Path> _prune;
+		final protected boolean _descend_into_matches;
+		final protected int _max_depth;
+		final protected int _max_parallelism;
+		
+		final protected CompletionService<Tuple2<Integer, FileStatus[]>> _listings = new ExecutorCompletionService<>(_listing_executor);
+		final protected Set<Future<Tuple2<Integer, FileStatus[]>>> _in_flight = new HashSet<>();
+		final protected Deque<Tuple2<Path, Integer>> _to_list = new ArrayDeque<>(); // (directory, its depth)
+		final protected Deque<Path> _ready = new ArrayDeque<>();
 	}
-
+	
 	/** Creates a text file  in the storage service 
 	 * @param fileContext
 	 * @param fileNameString
@@ -15,38 +15,43 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
-
-
-
-
-
-
-
-
-
-
-
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import scala.Tuple2;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 
 /**
@@ -89,47 +94,122 @@ public class JarBuilderUtil {
 	 * 
 	 * Does not merge in any dir paths with names matching something in "dir_names_to_not_merge"
 	 * 
+	 * Entries are copied across still compressed (rather than being decompressed and recompressed), unless
+	 * one of the jars (or the merged jar) needs zip features that the raw copy doesn't support (zip64, encryption),
+	 * in which case the jars are merged again entry by entry
+	 * 
+	 * Jars that can't be opened are skipped, but if copying an entry fails part way through then the merge is abandoned and
+	 * the output jar deleted (since it would be corrupt)
+	 * 
 	 * @param jars_to_merge
 	 * @param output_path
 	 * @throws IOException
 	 */
 	public static void mergeJars(Collection<String> jars_to_merge, String output_path, Set<String> dir_names_to_not_merge) throws IOException {
-		ZipOutputStream outputZip = new ZipOutputStream(new FileOutputStream(output_path));
-        //loop over the zips, the first entry to write a file to zip has precendence (can't be overwritten)        
-        jars_to_merge.stream().forEach(zip_path -> {
-        	
-        	logger.info("copying zip: " + zip_path + " into " + output_path);
-        	try {
-	        	ZipFile currentZip = new ZipFile(zip_path);
-	        	Enumeration<? extends ZipEntry> entries = currentZip.entries();
-	            while (entries.hasMoreElements()) {
-	                ZipEntry e = entries.nextElement();
-	                try {
-	                	//logger.debug("copy: " + e.getName());
-	                	if ( !shouldExclude(e.getName(), dir_names_to_not_merge) ) {
-		                    outputZip.putNextEntry(e);
-		                    if (!e.isDirectory() ) {
-		                    	ByteStreams.copy(currentZip.getInputStream(e), outputZip);
-		                    }	    
-	                	} else {
-	                		//logger.debug("skipping: " + e.getName() + " because it's in our do not merge list");
-	                	}
-	                } catch (ZipException ex) {
-	                	//duplicate file, just skip because we don't allow overwrites	
-	                	//logger.debug("\tcouldn't overwrite: " + e.getName());
-	                } finally {
-	                	outputZip.closeEntry();
-	                }
-	            }
-	            currentZip.close();
-        	} catch (IOException ex) {
-        		logger.error(ErrorUtils.getLongForm("Error during merging zips {0}", ex));
-        	}
-        });
-
-        // close
-        outputZip.close();
-        logger.info("merging jars completed");
+		try {
+			try {
+				mergeJarsRaw(jars_to_merge, output_path, dir_names_to_not_merge);
+			}
+			catch (RawCopyUnsupportedException ex) {
+				logger.info(ErrorUtils.get("Can't copy compressed entries into {0} ({1}), recompressing instead", output_path, ex.getMessage()));
+				mergeJarsRecompressed(jars_to_merge, output_path, dir_names_to_not_merge);
+			}
+		}
+		catch (IOException ex) {
+			logger.error(ErrorUtils.getLongForm("Error during merging zips {0}", ex));
+			new File(output_path).delete();
+			throw ex;
+		}
+		logger.info("merging jars completed");
+	}
+	
+	/**
+	 * Merges the jars (see mergeJars) by copying the compressed bytes of each entry straight into the output jar
+	 * 
+	 * @param jars_to_merge
+	 * @param output_path
+	 * @param dir_names_to_not_merge
+	 * @throws RawCopyUnsupportedException if one of the jars can't be copied this way, the output jar should then be discarded
+	 * @throws IOException
+	 */
+	protected static void mergeJarsRaw(Collection<String> jars_to_merge, String output_path, Set<String> dir_names_to_not_merge) throws IOException {
+		//the first entry to write a file to zip has precendence (can't be overwritten)
+		final Set<String> written = new HashSet<String>();
+		try (RawZipWriter output_zip = new RawZipWriter(new FileOutputStream(output_path))) {
+			for (String zip_path: jars_to_merge) {
+				logger.info("copying zip: " + zip_path + " into " + output_path);
+				final RandomAccessFile current_zip;
+				try {
+					current_zip = new RandomAccessFile(zip_path, "r");
+				}
+				catch (IOException ex) { // (nothing written yet, so just skip this jar)
+					logger.error(ErrorUtils.getLongForm("Error during merging zips {0}", ex));
+					continue;
+				}
+				try {
+					final List<RawZipEntry> entries;
+					try {
+						entries = readCentralDirectory(current_zip);
+					}
+					catch (RawCopyUnsupportedException ex) {
+						throw ex;
+					}
+					catch (IOException ex) { // (nothing written yet, so just skip this jar)
+						logger.error(ErrorUtils.getLongForm("Error during merging zips {0}", ex));
+						continue;
+					}
+					// (any errors from here on would leave a partially written entry, so are thrown)
+					for (RawZipEntry e: entries) {
+						if (!shouldExclude(e.name, dir_names_to_not_merge) && written.add(e.name)) {
+							output_zip.copyEntry(current_zip, e);
+						}
+					}
+				}
+				finally {
+					current_zip.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Merges the jars (see mergeJars) by decompressing each entry and recompressing it into the output jar
+	 * 
+	 * @param jars_to_merge
+	 * @param output_path
+	 * @param dir_names_to_not_merge
+	 * @throws IOException
+	 */
+	protected static void mergeJarsRecompressed(Collection<String> jars_to_merge, String output_path, Set<String> dir_names_to_not_merge) throws IOException {
+		//the first entry to write a file to zip has precendence (can't be overwritten)
+		final Set<String> written = new HashSet<String>();
+		try (ZipOutputStream outputZip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output_path)))) {
+			for (String zip_path: jars_to_merge) {
+				logger.info("copying zip: " + zip_path + " into " + output_path);
+				final ZipFile openedZip;
+				try {
+					openedZip = new ZipFile(zip_path);
+				}
+				catch (IOException ex) { // (nothing written yet, so just skip this jar)
+					logger.error(ErrorUtils.getLongForm("Error during merging zips {0}", ex));
+					continue;
+				}
+				// (any errors from here on would leave a partially written entry, so are thrown)
+				try (ZipFile currentZip = openedZip) {
+					Enumeration<? extends ZipEntry> entries = currentZip.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry e = entries.nextElement();
+						if ( !shouldExclude(e.getName(), dir_names_to_not_merge) && written.add(e.getName()) ) {
+							outputZip.putNextEntry(new ZipEntry(e)); // (copied so the compressed size gets recalculated)
+							if (!e.isDirectory() ) {
+								ByteStreams.copy(currentZip.getInputStream(e), outputZip);
+							}
+							outputZip.closeEntry();
+						}
+					}
+				}
+			}
+		}
 	}
 	
 	/**
@@ -148,21 +228,52 @@ public class JarBuilderUtil {
 	}
     
     /**
-	 * Hashes the jar names together to create a unique hash, then returns a filepath with that
+	 * Hashes the contents of the jars together to create a unique hash, then returns a filepath with that
 	 * hash set to tmpdir/{hash}.jar
 	 * 
 	 * The hash is only guaranteed to be the same if the file order in jars_to_merge is the same,
 	 * this is necessary because of the way we merge the files together to create the jar.
+	 * Jars that don't exist are hashed by name instead. Each jar's hash is remembered until its size or
+	 * modified time changes, so the contents are normally only read once.
 	 * 
 	 * @param jars_to_merge
 	 * @return
 	 */
 	public static String getHashedJarName(final Collection<String> jars_to_merge, String output_folder) {				
-		final String hash = String.valueOf( Objects.hash(jars_to_merge));
+		final Hasher hasher = Hashing.sha256().newHasher();
+		jars_to_merge.stream().forEach(jar_path -> hasher.putBytes(getContentHash(jar_path).asBytes()));
+		final String hash = hasher.hash().toString();
 		final String output_location = output_folder + File.separator + DEFAULT_JAR_NAME_PREFIX + hash + ".jar";
 		return output_location;
 	}
 	
+	/**
+	 * Returns the hash of a jar's contents (or of its name, if it can't be read)
+	 * 
+	 * @param jar_path
+	 * @return
+	 */
+	protected static HashCode getContentHash(final String jar_path) {
+		final File file = new File(jar_path);
+		if (file.isFile()) {
+			final String version = file.length() + ":" + file.lastModified();
+			final Tuple2<String, HashCode> cached = _content_hashes.get(jar_path);
+			if ((null != cached) && version.equals(cached._1())) {
+				return cached._2();
+			}
+			try {
+				final HashCode hash = Files.hash(file, Hashing.sha256());
+				_content_hashes.put(jar_path, Tuples._2T(version, hash));
+				return hash;
+			}
+			catch (IOException ex) {
+				logger.error(ErrorUtils.getLongForm("Error hashing jar {0}", ex));
+			}
+		}
+		return Hashing.sha256().hashString("name:" + jar_path, StandardCharsets.UTF_8);
+	}
+	private static final Map<String, Tuple2<String, HashCode>> _content_hashes = new ConcurrentHashMap<>();
+	
 	/**
 	 * Returns the date of the most recently updated file in the list
 	 * 
@@ -194,4 +305,196 @@ public class JarBuilderUtil {
 			file.setLastModified(System.currentTimeMillis());
 		}
 	}
+
+	////////////////////////////////////////////////////////////////
+	
+	// RAW ZIP COPYING
+	
+	// (zip format constants, all little endian)
+	private static final int LOC_SIG = 0x04034b50;
+	private static final int CEN_SIG = 0x02014b50;
+	private static final int END_SIG = 0x06054b50;
+	private static final int LOC_LENGTH = 30;
+	private static final int CEN_LENGTH = 46;
+	private static final int END_LENGTH = 22;
+	private static final int ENCRYPTED_FLAG = 0x1;
+	private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+	
+	/**
+	 * Thrown when a jar can only be merged by recompressing it
+	 */
+	protected static class RawCopyUnsupportedException extends ZipException {
+		private static final long serialVersionUID = 1L;
+		public RawCopyUnsupportedException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * An entry from a jar's central directory
+	 * (the central header fields from "version needed" to "uncompressed size" are laid out the same as in the local header)
+	 */
+	protected static class RawZipEntry {
+		protected RawZipEntry(final ByteBuffer central_directory, final int pos) {
+			header = ByteBuffer.allocate(CEN_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < CEN_LENGTH; ++i) header.put(i, central_directory.get(pos + i));
+			name_bytes = new byte[header.getShort(28) & 0xFFFF];
+			extra = new byte[header.getShort(30) & 0xFFFF];
+			((ByteBuffer) central_directory.duplicate().position(pos + CEN_LENGTH)).get(name_bytes).get(extra);
+			name = new String(name_bytes, StandardCharsets.UTF_8);
+		}
+		protected int flags() { return header.getShort(8) & 0xFFFF; }
+		protected long compressedSize() { return header.getInt(20) & 0xFFFFFFFFL; }
+		protected long localHeaderOffset() { return header.getInt(42) & 0xFFFFFFFFL; }
+		protected int length() { return CEN_LENGTH + name_bytes.length + extra.length + (header.getShort(32) & 0xFFFF); }
+		
+		protected final ByteBuffer header;
+		protected final byte[] name_bytes;
+		protected final byte[] extra;
+		protected final String name;
+	}
+	
+	/**
+	 * Reads the entries of a jar from its central directory
+	 * 
+	 * @param zip
+	 * @return the entries, in the order they appear in the jar
+	 * @throws RawCopyUnsupportedException if the jar is zip64 or has encrypted entries
+	 * @throws IOException
+	 */
+	protected static List<RawZipEntry> readCentralDirectory(final RandomAccessFile zip) throws IOException {
+		final long length = zip.length();
+		final int tail_length = (int) Math.min(length, END_LENGTH + 0xFFFF); // (the end record can be followed by a comment)
+		final ByteBuffer tail = readFully(zip, length - tail_length, tail_length);
+		int end_pos = tail_length - END_LENGTH;
+		while ((end_pos >= 0) && (END_SIG != tail.getInt(end_pos))) --end_pos;
+		if (end_pos < 0) {
+			throw new ZipException("Couldn't find the end of the central directory");
+		}
+		final int num_entries = tail.getShort(end_pos + 10) & 0xFFFF;
+		final long cen_size = tail.getInt(end_pos + 12) & 0xFFFFFFFFL;
+		final long cen_offset = tail.getInt(end_pos + 16) & 0xFFFFFFFFL;
+		if ((0xFFFF == num_entries) || (0xFFFFFFFFL == cen_size) || (0xFFFFFFFFL == cen_offset)) {
+			throw new RawCopyUnsupportedException("zip64 jar");
+		}
+		final ByteBuffer central_directory = readFully(zip, cen_offset, (int) cen_size);
+		final List<RawZipEntry> entries = new ArrayList<RawZipEntry>(num_entries);
+		for (int i = 0, pos = 0; i < num_entries; ++i) {
+			if ((pos + CEN_LENGTH > cen_size) || (CEN_SIG != central_directory.getInt(pos))) {
+				throw new ZipException("Invalid central directory");
+			}
+			final RawZipEntry e = new RawZipEntry(central_directory, pos);
+			if (0 != (e.flags() & ENCRYPTED_FLAG)) {
+				throw new RawCopyUnsupportedException("encrypted entry " + e.name);
+			}
+			entries.add(e);
+			pos += e.length();
+		}
+		return entries;
+	}
+	
+	/**
+	 * @param zip
+	 * @param offset
+	 * @param length
+	 * @return a little endian buffer containing length bytes of the file starting at offset
+	 * @throws IOException
+	 */
+	private static ByteBuffer readFully(final RandomAccessFile zip, final long offset, final int length) throws IOException {
+		final byte[] bytes = new byte[length];
+		zip.seek(offset);
+		zip.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Writes a jar out of entries copied (still compressed) from other jars
+	 */
+	protected static class RawZipWriter implements Closeable {
+		protected RawZipWriter(final FileOutputStream output) {
+			_output = new CountingOutputStream(new BufferedOutputStream(output));
+		}
+		
+		/**
+		 * Copies an entry's local header and compressed data into the output jar
+		 * 
+		 * @param zip - the jar containing the entry
+		 * @param e
+		 * @throws IOException
+		 */
+		protected void copyEntry(final RandomAccessFile zip, final RawZipEntry e) throws IOException {
+			final ByteBuffer in_local = readFully(zip, e.localHeaderOffset(), LOC_LENGTH);
+			if (LOC_SIG != in_local.getInt(0)) {
+				throw new ZipException("Invalid local header for " + e.name);
+			}
+			final long data_offset = e.localHeaderOffset() + LOC_LENGTH + (in_local.getShort(26) & 0xFFFF) + (in_local.getShort(28) & 0xFFFF);
+			final long local_offset = _output.getCount();
+			if (local_offset > 0xFFFFFFFFL) {
+				throw new RawCopyUnsupportedException("merged jar larger than 4GB");
+			}
+			
+			// Local header, from the central directory (which always has the sizes and crc, so no data descriptor is needed)
+			final int flags = e.flags() & ~DATA_DESCRIPTOR_FLAG;
+			final ByteBuffer local = ByteBuffer.allocate(LOC_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			local.putInt(0, LOC_SIG);
+			for (int i = 0; i < 22; ++i) local.put(4 + i, e.header.get(6 + i));
+			local.putShort(6, (short) flags);
+			local.putShort(26, (short) e.name_bytes.length);
+			local.putShort(28, (short) 0);
+			_output.write(local.array());
+			_output.write(e.name_bytes);
+			
+			// Compressed data
+			final byte[] buffer = new byte[64*1024];
+			zip.seek(data_offset);
+			for (long remaining = e.compressedSize(); remaining > 0; ) {
+				final int n = zip.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n < 0) {
+					throw new ZipException("Truncated data for " + e.name);
+				}
+				_output.write(buffer, 0, n);
+				remaining -= n;
+			}
+			
+			// Central directory record, written out on close
+			final ByteBuffer central = ByteBuffer.allocate(CEN_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			central.put(e.header.array());
+			central.putShort(8, (short) flags);
+			central.putShort(32, (short) 0); // (comment length)
+			central.putShort(34, (short) 0); // (disk number)
+			central.putInt(42, (int) local_offset);
+			_central_directory.write(central.array());
+			_central_directory.write(e.name_bytes);
+			_central_directory.write(e.extra);
+			++_num_entries;
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				final long cen_offset = _output.getCount();
+				if ((_num_entries >= 0xFFFF) || (cen_offset + _central_directory.size() >= 0xFFFFFFFFL)) {
+					throw new RawCopyUnsupportedException("merged jar needs zip64");
+				}
+				_central_directory.writeTo(_output);
+				final ByteBuffer end = ByteBuffer.allocate(END_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+				end.putInt(0, END_SIG);
+				end.putShort(8, (short) _num_entries);
+				end.putShort(10, (short) _num_entries);
+				end.putInt(12, _central_directory.size());
+				end.putInt(16, (int) cen_offset);
+				_output.write(end.array());
+			}
+			finally {
+				_output.close();
+			}
+		}
+		
+		protected final CountingOutputStream _output;
+		protected final ByteArrayOutputStream _central_directory = new ByteArrayOutputStream();
+		protected int _num_entries = 0;
+	}
 }
@@ -15,27 +15,48 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.utils;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 
+import scala.Tuple2;
+
+import com.google.common.io.BaseEncoding;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 import fj.data.Validation;
 
 /** Utilities for retrieving shared JARs to a local spot from where they can easily be used by a classloader
+ *  The JARs are stored once per content (under CONTENT_DIR, named by their checksum/hash) and each library's cached JAR is a hard link to its content 
+ *  - so updating a library to content that's already cached (eg reverting it, or a version shared with another library) doesn't need a copy 
  * @author acp
  */
 public class JarCacheUtils {
-
+	public static final String CONTENT_DIR = ".content_cache";
+	protected static final String VERSION_SUFFIX = ".version";
+	
 	/** Moves a shared JAR into a local spot (if required)
+	 *  The JAR is only refreshed if the shared version is newer than the one cached, and only the classloaders that use it are then invalidated  
 	 * @param library_bean
 	 * @param fs
 	 * @return either a basic message bean containing an error, or the fully qualified path of the cached JAR
@@ -54,25 +75,41 @@ public class JarCacheUtils {
 			
 			final FileStatus file_status = dfs.getFileStatus(original_jar_file); // (this will exception out if it doesn't exist, as it should)
 			
-			try {
-				final FileStatus local_file_status = lfs.getFileStatus(cached_jar_file); // (this will exception in to case 2 if it doesn't exist)
+			final File cached_jar = new File(cached_jar_file.toUri());
+			final File content_dir = new File(cached_jar.getParentFile(), CONTENT_DIR);
+			final File version_file = new File(content_dir, cached_jar.getName() + VERSION_SUFFIX);
+			
+			// 1) If the local version exists and is up to date then nothing to do
+			// (the time of the version last cached if known, else the time of the local file - note that is shared with other libraries with the same content)
+			
+			final Optional<Tuple2<Long, String>> cached_version = readVersion(version_file)
+					.filter(time_content -> isSameFile(cached_jar, new File(content_dir, time_content._2())));
+			
+			final boolean up_to_date = cached_version.isPresent()
+					? (file_status.getModificationTime() <= cached_version.get()._1())
+					: (cached_jar.exists() && (file_status.getModificationTime() <= cached_jar.lastModified()));
+			
+			if (!up_to_date) {
 				
-				// if the local version exists then overwrite it
+				// 2) Otherwise make sure the content is cached, then point the local version at it
 				
-				if (file_status.getModificationTime() > local_file_status.getModificationTime()) {
-					// (it gets kinda complicated here so just invalidate the entire classloader cache..)
-					// TODO (ALEPH-12): add a coverage test for this
-					ClassloaderUtils.clearCache();
-					
-					lfs.util().copy(original_jar_file, cached_jar_file, false, true);
+				Files.createDirectories(content_dir.toPath());
+				final File content_file = getCachedContent(dfs, original_jar_file, content_dir, "." + FilenameUtils.getExtension(cached_jar.getName()));
+				if (content_file.lastModified() < file_status.getModificationTime()) { // (so the old "local version is newer" check still works)
+					content_file.setLastModified(file_status.getModificationTime());
 				}
-			}
-			catch (FileNotFoundException f) {
 				
-				// 2) if the local version doesn't exist then just copy the distributed file across
-				// (note: don't need to do anything with the classloader cache here since the file doesn't exist so can't have a cache key)
-				
-				lfs.util().copy(original_jar_file, cached_jar_file);
+				final boolean existed = cached_jar.exists();
+				if (!isSameFile(cached_jar, content_file)) {
+					linkTo(content_file, cached_jar);
+					
+					// (don't need to do anything with the classloader cache if the file didn't exist, since then it can't have a cache key)
+					if (existed) {
+						ClassloaderUtils.invalidateCache(cached_jar_file.toUri().getPath());
+					}
+					cached_version.map(time_content -> new File(content_dir, time_content._2())).filter(f -> !f.equals(content_file)).ifPresent(JarCacheUtils::deleteIfUnused);
+				}
+				writeVersion(version_file, file_status.getModificationTime(), content_file.getName());
 			}
 			return CompletableFuture.completedFuture(Validation.success(cached_jar_file.toString()));
 			
@@ -85,6 +122,138 @@ public class JarCacheUtils {
 		}
 	}
 	
+	/** Returns the locally cached copy of a shared file's content, copying it across if it's not already there
+	 *  (the content is named by the shared file system's checksum if it has one, else by a hash computed during the copy - in which case if the content
+	 *   turns out to already be cached then the copy is discarded)
+	 * @param dfs - the shared file system
+	 * @param original_jar_file - the shared file
+	 * @param content_dir - the local content directory
+	 * @param extension - the extension of the cached files
+	 * @return the cached content
+	 * @throws IOException
+	 */
+	protected static File getCachedContent(final FileContext dfs, final Path original_jar_file, final File content_dir, final String extension) throws IOException {
+		final Optional<String> checksum_name = getChecksum(dfs, original_jar_file).map(checksum -> checksum + extension);
+		if (checksum_name.isPresent() && new File(content_dir, checksum_name.get()).exists()) {
+			return new File(content_dir, checksum_name.get());
+		}
+		final File tmp_file = new File(content_dir, UUID.randomUUID().toString() + ".tmp");
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			try (InputStream in = new DigestInputStream(dfs.open(original_jar_file), digest)) {
+				Files.copy(in, tmp_file.toPath());
+			}
+			final File content_file = new File(content_dir, checksum_name.orElseGet(() -> "sha256-" + BaseEncoding.base16().lowerCase().encode(digest.digest()) + extension));
+			if (content_file.exists()) {
+				Files.delete(tmp_file.toPath());
+			}
+			else {
+				Files.move(tmp_file.toPath(), content_file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return content_file;
+		}
+		catch (NoSuchAlgorithmException e) { // (can't happen, every JVM supports SHA-256)
+			throw new RuntimeException(e);
+		}
+		finally {
+			tmp_file.delete();
+		}
+	}
+	
+	/** Returns the shared file system's checksum of the file, if it supports them
+	 * @param dfs
+	 * @param original_jar_file
+	 * @return
+	 */
+	protected static Optional<String> getChecksum(final FileContext dfs, final Path original_jar_file) {
+		try {
+			final FileChecksum checksum = dfs.getFileChecksum(original_jar_file);
+			return Optional.ofNullable(checksum)
+					.map(c -> c.getAlgorithmName().replaceAll("[^a-zA-Z0-9]", "").toLowerCase() + "-" + BaseEncoding.base16().lowerCase().encode(c.getBytes()));
+		}
+		catch (IOException | RuntimeException e) { // (eg not supported) 
+			return Optional.empty();
+		}
+	}
+	
+	/** Atomically replaces a library's cached JAR with a hard link to its content (or a copy if hard links aren't supported)
+	 * @param content_file
+	 * @param cached_jar
+	 * @throws IOException
+	 */
+	protected static void linkTo(final File content_file, final File cached_jar) throws IOException {
+		final File tmp_link = new File(cached_jar.getParentFile(), "." + cached_jar.getName() + "." + UUID.randomUUID().toString() + ".tmp");
+		try {
+			try {
+				Files.createLink(tmp_link.toPath(), content_file.toPath());
+			}
+			catch (IOException | UnsupportedOperationException e) {
+				Files.copy(content_file.toPath(), tmp_link.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+			}
+			Files.move(tmp_link.toPath(), cached_jar.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			tmp_link.delete();
+		}
+	}
+	
+	/** Reads the (shared file time, content name) that a library's cached JAR was last refreshed from
+	 * @param version_file
+	 * @return
+	 */
+	protected static Optional<Tuple2<Long, String>> readVersion(final File version_file) {
+		try {
+			final List<String> lines = Files.readAllLines(version_file.toPath(), StandardCharsets.UTF_8);
+			return (2 == lines.size()) ? Optional.of(Tuples._2T(Long.parseLong(lines.get(0)), lines.get(1))) : Optional.empty();
+		}
+		catch (IOException | NumberFormatException e) { // (no version, eg cached before content addressing)
+			return Optional.empty();
+		}
+	}
+	
+	/** Atomically writes the (shared file time, content name) that a library's cached JAR was refreshed from
+	 * @param version_file
+	 * @param modified_time
+	 * @param content_name
+	 * @throws IOException
+	 */
+	protected static void writeVersion(final File version_file, final long modified_time, final String content_name) throws IOException {
+		final File tmp_file = new File(version_file.getParentFile(), UUID.randomUUID().toString() + ".tmp");
+		try {
+			Files.write(tmp_file.toPath(), Arrays.asList(Long.toString(modified_time), content_name), StandardCharsets.UTF_8);
+			Files.move(tmp_file.toPath(), version_file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			tmp_file.delete();
+		}
+	}
+	
+	/** Deletes cached content that no library links to any more (if the file system supports counting links, else it's left)
+	 * @param content_file
+	 */
+	protected static void deleteIfUnused(final File content_file) {
+		try {
+			if (Integer.valueOf(1).equals(Files.getAttribute(content_file.toPath(), "unix:nlink"))) {
+				Files.delete(content_file.toPath());
+			}
+		}
+		catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {} // (just leave it)
+	}
+	
+	/** Whether both files exist and are the same file (eg hard links to the same content)
+	 * @param f1
+	 * @param f2
+	 * @return
+	 */
+	protected static boolean isSameFile(final File f1, final File f2) {
+		try {
+			return f1.exists() && f2.exists() && Files.isSameFile(f1.toPath(), f2.toPath());
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+	
 	/** Just creates a cached name as <lib bean id>.cache.jar
 	 * @param library_bean the library bean to cache
 	 * @return the cache name
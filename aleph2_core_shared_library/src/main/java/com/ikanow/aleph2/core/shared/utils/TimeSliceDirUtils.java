@@ -16,9 +16,16 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang.time.DateUtils;
@@ -26,6 +33,9 @@ import org.apache.commons.lang.time.DateUtils;
 import scala.Tuple2;
 import scala.Tuple3;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean.AnalyticThreadJobInputConfigBean;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
@@ -141,6 +151,108 @@ public class TimeSliceDirUtils {
 				;
 	}
 	
+	/** Returns the (shared) time slice index for a directory, eg a bucket's storage directory - refresh it with the latest listing before selecting from it
+	 *  (indexes that haven't been used for a while are dropped, and rebuilt from the listing if they are needed again)
+	 * @param base_path - the directory containing the time sliced dirs
+	 * @return
+	 */
+	public static TimeSliceIndex getTimeSliceIndex(final String base_path) {
+		return _indexes.getUnchecked(base_path);
+	}
+	public static final long MAX_TIME_SLICE_INDEXES = 1000L;
+	public static final long TIME_SLICE_INDEX_MAX_IDLE_SECS = 3600L;
+	private static final LoadingCache<String, TimeSliceIndex> _indexes = CacheBuilder.newBuilder()
+			.maximumSize(MAX_TIME_SLICE_INDEXES)
+			.expireAfterAccess(TIME_SLICE_INDEX_MAX_IDLE_SECS, TimeUnit.SECONDS)
+			.build(CacheLoader.from(__ -> new TimeSliceIndex()));
+	
+	/** Keeps a listing of time sliced dirs sorted by start time, so that the dirs overlapping a time range can be found by binary search
+	 *  (equivalent to filterTimedDirectories over annotateTimedDirectories, except the dirs are returned in time order)
+	 *  Refreshing with a new listing only parses the names not seen before
+	 * @author alex
+	 */
+	public static class TimeSliceIndex {
+		
+		/** Updates the index from the latest listing of the directory - dirs no longer present are removed
+		 * @param dir_listing
+		 * @return this, for chaining
+		 */
+		public synchronized TimeSliceIndex refresh(final Stream<String> dir_listing) {
+			final Set<String> dirs = dir_listing.collect(Collectors.toSet());
+			final boolean removed = _parsed.keySet().retainAll(dirs);
+			final List<String> added = dirs.stream().filter(dir -> !_parsed.containsKey(dir)).collect(Collectors.toList());
+			added.forEach(dir -> _parsed.put(dir, annotateTimedDirectories(Stream.of(dir)).findFirst()));
+			if (removed || !added.isEmpty()) {
+				final List<Tuple3<String, Date, Date>> sorted = _parsed.values().stream().filter(t3 -> t3.isPresent()).map(t3 -> t3.get())
+																.sorted(Comparator.<Tuple3<String, Date, Date>, Date>comparing(t3 -> t3._2()).thenComparing(t3 -> t3._1()))
+																.collect(Collectors.toList());
+				_slices = new Slices(
+						sorted.stream().map(t3 -> t3._1()).toArray(size -> new String[size]),
+						sorted.stream().mapToLong(t3 -> t3._2().getTime()).toArray(),
+						sorted.stream().mapToLong(t3 -> t3._3().getTime()).toArray());
+			}
+			return this;
+		}
+		
+		/** Returns the dirs whose time ranges overlap the filter (as per filterTimedDirectories)
+		 * @param filter - see getQueryTimeRange
+		 * @return the matching dirs, in order of their start times
+		 */
+		public Stream<String> select(final Tuple2<Optional<Date>, Optional<Date>> filter) {
+			final Slices slices = _slices;
+			// The dirs that start no later than tmax:
+			final int to = filter._2().map(tmax -> firstStartAfter(slices.starts, tmax.getTime())).orElse(slices.dirs.length);
+			// The dirs that end after tmin - only need to check from the ones that might be long enough to reach it:
+			final int from = filter._1().map(tmin -> firstStartAfter(slices.starts, tmin.getTime() - slices.max_length)).orElse(0);
+			
+			return IntStream.range(from, Math.max(from, to))
+					.filter(i -> filter._1().map(tmin -> tmin.getTime() < slices.ends[i]).orElse(true))
+					.mapToObj(i -> slices.dirs[i])
+					;
+		}
+		
+		/** The number of time sliced dirs in the index
+		 * @return
+		 */
+		public int size() {
+			return _slices.dirs.length;
+		}
+		
+		/** Binary search utility
+		 * @param starts - sorted
+		 * @param time
+		 * @return the index of the first start > time (or starts.length if none)
+		 */
+		private static int firstStartAfter(final long[] starts, final long time) {
+			int low = 0;
+			int high = starts.length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (starts[mid] <= time) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+		
+		/** An immutable snapshot of the sorted dirs, so selects don't need to lock
+		 */
+		private static class Slices {
+			Slices(final String[] dirs, final long[] starts, final long[] ends) {
+				this.dirs = dirs;
+				this.starts = starts;
+				this.ends = ends;
+				this.max_length = IntStream.range(0, dirs.length).mapToLong(i -> ends[i] - starts[i]).max().orElse(0L);
+			}
+			final String[] dirs;
+			final long[] starts; // (sorted)
+			final long[] ends;
+			final long max_length; // (the longest time range of any dir)
+		}
+		
+		protected final HashMap<String, Optional<Tuple3<String, Date, Date>>> _parsed = new HashMap<>(); // (empty if untimed)
+		protected volatile Slices _slices = new Slices(new String[0], new long[0], new long[0]);
+	}
+	
 	/** Low level util because java8 time "plus" is odd
 	 * @param to_adjust
 	 * @param increment
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+
+/**
+ * @author Alex
+ *
+ */
+public class TestMicroBatchingWriteSubservice {
+
+	protected List<Tuple2<List<String>, Optional<Boolean>>> _requests = Collections.synchronizedList(new ArrayList<>());
+	protected List<CompletableFuture<Object>> _responses = Collections.synchronizedList(new ArrayList<>());
+
+	@SuppressWarnings("unchecked")
+	protected IDataWriteService<String> getCrudService() {
+		final IDataWriteService<String> crud = (IDataWriteService<String>)Mockito.mock(IDataWriteService.class);
+		final Answer<Object> callback = new Answer<Object>() {
+	        public Object answer(InvocationOnMock invocation) {
+	        	final Object[] args = invocation.getArguments();
+	        	_requests.add(new Tuple2<>(new ArrayList<>((List<String>)args[0]), (args.length > 1) ? Optional.of((Boolean)args[1]) : Optional.empty()));
+	        	final CompletableFuture<Object> response = new CompletableFuture<>();
+	        	_responses.add(response);
+	            return response;
+	        }
+		};
+		Mockito.when(crud.storeObjects(Mockito.anyListOf(String.class))).then(callback);
+		Mockito.when(crud.storeObjects(Mockito.anyListOf(String.class), Mockito.anyBoolean())).then(callback);
+		return crud;
+	}
+
+	@Test
+	public void test_batchesBySizeAndMode() {
+		final MicroBatchingWriteSubservice<String> under_test = new MicroBatchingWriteSubservice<>(getCrudService(), Optional.of(s -> (long)s.length()));
+		under_test.setBatchProperties(Optional.of(3), Optional.of(1L), Optional.of(Duration.ofSeconds(60L)), Optional.of(10));
+
+		// Max objects
+		under_test.storeObjects(Arrays.asList("a", "b", "c", "d"), true);
+		assertEquals(1, _requests.size());
+		assertEquals(Arrays.asList("a", "b", "c"), _requests.get(0)._1());
+		assertEquals(Optional.of(true), _requests.get(0)._2());
+
+		// Change of mode sends the current batch
+		under_test.storeObject("e");
+		assertEquals(2, _requests.size());
+		assertEquals(Arrays.asList("d"), _requests.get(1)._1());
+
+		// Max size (1KB)
+		final char[] big = new char[1024];
+		Arrays.fill(big, 'x');
+		under_test.storeObject(new String(big));
+		assertEquals(3, _requests.size());
+		assertEquals(2, _requests.get(2)._1().size());
+		assertEquals(Optional.empty(), _requests.get(2)._2());
+
+		// Flush sends the rest and completes once all the requests have
+		under_test.storeObject("f", false);
+		final CompletableFuture<?> flush = under_test.flushOutput();
+		assertEquals(4, _requests.size());
+		assertEquals(Arrays.asList("f"), _requests.get(3)._1());
+		assertFalse(flush.isDone());
+		_responses.forEach(f -> f.complete(null));
+		assertTrue(flush.isDone());
+		assertEquals(4L, under_test.getBatchesWritten());
+		assertEquals(0L, under_test.getFailedObjects());
+	}
+
+	@Test
+	public void test_flushInterval() throws InterruptedException {
+		final MicroBatchingWriteSubservice<String> under_test = new MicroBatchingWriteSubservice<>(getCrudService(), Optional.empty());
+		under_test.setBatchProperties(Optional.of(100), Optional.empty(), Optional.of(Duration.ofMillis(100L)), Optional.empty());
+
+		under_test.storeObjects(Arrays.asList("a", "b"));
+		assertEquals(0, _requests.size());
+		for (int i = 0; (i < 50) && _requests.isEmpty(); ++i) Thread.sleep(100L);
+		assertEquals(1, _requests.size());
+		assertEquals(Arrays.asList("a", "b"), _requests.get(0)._1());
+
+		// Errors are counted, and reported (once) by the next flush
+		_responses.get(0).completeExceptionally(new RuntimeException("test"));
+		assertEquals(2L, under_test.getFailedObjects());
+		try {
+			under_test.flushOutput().join();
+			fail("Should have errored");
+		}
+		catch (CompletionException e) {
+			assertEquals("test", e.getCause().getMessage());
+		}
+		assertTrue(under_test.flushOutput().isDone());
+		under_test.flushOutput().join();
+	}
+
+	@Test
+	public void test_boundedRequests() throws Exception {
+		final MicroBatchingWriteSubservice<String> under_test = new MicroBatchingWriteSubservice<>(getCrudService(), Optional.empty());
+		under_test.setBatchProperties(Optional.of(1), Optional.empty(), Optional.empty(), Optional.of(1));
+
+		under_test.storeObject("a");
+		assertEquals(1, _requests.size());
+
+		// The next batch has to wait for the first request to complete
+		final CompletableFuture<?> blocked = CompletableFuture.runAsync(() -> under_test.storeObject("b"));
+		Thread.sleep(100L);
+		assertFalse(blocked.isDone());
+		assertEquals(1, _requests.size());
+
+		// (other callers can still add objects while it's waiting)
+		under_test.setBatchProperties(Optional.of(2), Optional.empty(), Optional.of(Duration.ofSeconds(60L)), Optional.empty());
+		final CompletableFuture<?> not_blocked = CompletableFuture.runAsync(() -> under_test.storeObject("c"));
+		not_blocked.get(5L, TimeUnit.SECONDS);
+		assertFalse(blocked.isDone());
+
+		_responses.get(0).complete(null);
+		blocked.join();
+		assertEquals(2, _requests.size());
+		_responses.get(1).complete(null);
+		final CompletableFuture<?> flush = under_test.flushOutput();
+		assertEquals(3, _requests.size());
+		assertEquals(Arrays.asList("c"), _requests.get(2)._1());
+		_responses.get(2).complete(null);
+		assertTrue(flush.isDone());
+	}
+}
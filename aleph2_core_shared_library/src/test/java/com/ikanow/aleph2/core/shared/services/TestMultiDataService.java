@@ -18,12 +18,19 @@ package com.ikanow.aleph2.core.shared.services;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
@@ -96,8 +103,8 @@ public class TestMultiDataService {
 	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 
 	protected int _apply_count = 0;
-	protected Map<String, Integer> _crud_responses = new HashMap<>();
-	protected Map<String, Integer> _batch_responses = new HashMap<>();		
+	protected Map<String, Integer> _crud_responses = new ConcurrentHashMap<>();
+	protected Map<String, Integer> _batch_responses = new ConcurrentHashMap<>();		
 	
 	@Test
 	public void test_MultiDataService_allDifferent() {
@@ -159,20 +166,24 @@ public class TestMultiDataService {
 			final MultiDataService mds = new MultiDataService(bucket, mock_service_context, Optional.empty(), Optional.empty());
 			
 			assertEquals("All services", 7, mds.getDataServices().size());
-			assertEquals("No batches", 0, mds.getBatchWriters().size());
-			assertEquals("All cruds", 7, mds.getCrudOnlyWriters().size());
+			assertEquals("All micro-batched", 7, mds.getBatchWriters().size());
+			assertTrue("All micro-batched", mds.getBatchWriters().stream().allMatch(batch -> batch instanceof MicroBatchingWriteSubservice));
+			assertEquals("No crud onlys", 0, mds.getCrudOnlyWriters().size());
 			assertEquals("All cruds", 7, mds.getCrudWriters().size());
 			assertEquals(false, mds._doc_write_mode);
 			assertEquals(0, _apply_count);
 			
 			assertEquals("Found data services", true, mds.batchWrite(_mapper.createObjectNode()));
+			mds.drainWriteQueues().join(); // (the writes are queued per data service)
 			
+			// (then batched up until flushed)
 			assertTrue("No batch responses: " + _batch_responses.keySet(), _batch_responses.isEmpty());
-			assertEquals("CRUD responses: " + _crud_responses.keySet(), 7, _crud_responses.size());
-			_crud_responses.clear();
+			assertTrue("No CRUD responses yet: " + _crud_responses.keySet(), _crud_responses.isEmpty());
 			
 			//check that the the flush batch output returns with no errors
 			assertTrue(mds.flushBatchOutput().isDone());
+			assertEquals("CRUD responses: " + _crud_responses.keySet(), 7, _crud_responses.size());
+			_crud_responses.clear();
 		}
 		// All services present, use fast CRUD service
 		{
@@ -188,6 +199,7 @@ public class TestMultiDataService {
 			assertEquals(7, _apply_count);
 			
 			assertEquals("Found data services", true, mds.batchWrite(_mapper.createObjectNode()));
+			mds.drainWriteQueues().join(); // (the writes are queued per data service)
 			
 			assertTrue("No CRUD responses: " + _crud_responses.keySet(), _crud_responses.isEmpty());
 			assertEquals("batch responses: " + _batch_responses.keySet(), 7, _batch_responses.size());			
@@ -197,6 +209,13 @@ public class TestMultiDataService {
 			assertTrue(mds.flushBatchOutput().isDone());
 			assertEquals("batch responses: " + _batch_responses.keySet(), 7, _batch_responses.size());			
 			_batch_responses.clear();
+			
+			// Lists are handed to each service in one call
+			assertEquals("Found data services", true, mds.batchWrite(Arrays.asList(_mapper.createObjectNode(), _mapper.createObjectNode(), _mapper.createObjectNode())));
+			mds.drainWriteQueues().join();
+			assertEquals("batch responses: " + _batch_responses.keySet(), 7, _batch_responses.size());
+			assertTrue("one call per service: " + _batch_responses, _batch_responses.values().stream().allMatch(n -> 1 == n));
+			_batch_responses.clear();
 		}
 	}
 	
@@ -255,13 +274,14 @@ public class TestMultiDataService {
 			
 			assertEquals("All services", 3, mds.getDataServices().size());
 			assertEquals("All services", 6, mds._services.keys().size());
-			assertEquals("No batches", 0, mds.getBatchWriters().size());
-			assertEquals("All cruds", 3, mds.getCrudOnlyWriters().size());
+			assertEquals("All micro-batched", 3, mds.getBatchWriters().size());
+			assertEquals("No crud onlys", 0, mds.getCrudOnlyWriters().size());
 			assertEquals("All cruds", 3, mds.getCrudWriters().size());
 			assertEquals(true, mds._doc_write_mode);
 			assertEquals(0, _apply_count);
 			
 			assertEquals("Found data services", true, mds.batchWrite(_mapper.createObjectNode()));
+			mds.flushBatchOutput().join();
 			
 			assertTrue("No batch responses: " + _batch_responses.keySet(), _batch_responses.isEmpty());
 			assertEquals("CRUD responses: " + _crud_responses.keySet(), 3, _crud_responses.size());
@@ -282,6 +302,7 @@ public class TestMultiDataService {
 			assertEquals(3, _apply_count);
 			
 			assertEquals("Found data services", true, mds.batchWrite(_mapper.createObjectNode()));
+			mds.drainWriteQueues().join(); // (the writes are queued per data service)
 			
 			assertTrue("No CRUD responses: " + _crud_responses.keySet(), _crud_responses.isEmpty());
 			assertEquals("batch responses: " + _batch_responses.keySet(), 3, _batch_responses.size());			
@@ -406,6 +427,94 @@ public class TestMultiDataService {
 	
 	/** Found this more comprehensive test after writing the one above so keeping them both
 	 */
+	protected static MultiDataService.DataWriter getTestWriter(final CountDownLatch started, final CountDownLatch release, final List<JsonNode> written, final AtomicInteger errors) {
+		return new MultiDataService.DataWriter() {
+			public void write(final JsonNode obj_json) {
+				write(Arrays.asList(obj_json));
+			}
+			public void write(final List<JsonNode> obj_jsons) {
+				started.countDown();
+				try { release.await(); } catch (InterruptedException e) { errors.incrementAndGet(); }
+				written.addAll(obj_jsons);
+			}
+		};
+	}
+	
+	@Test
+	public void test_writerQueues() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<JsonNode> written = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger errors = new AtomicInteger();
+		
+		// Shed: once the queue is full, objects are dropped for this writer
+		{
+			final MultiDataService.WriterQueue under_test = new MultiDataService.WriterQueue("test", getTestWriter(started, release, written, errors), 2);
+			under_test._policy = MultiDataService.QueueFullPolicy.shed;
+			
+			under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 1)));
+			started.await(); // (the writer is now stuck on the first object)
+			under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 2)));
+			under_test.add(Arrays.asList(_mapper.createObjectNode().put("id", 3), _mapper.createObjectNode().put("id", 4)));
+			under_test.add(Arrays.asList(_mapper.createObjectNode().put("id", 5), _mapper.createObjectNode().put("id", 6))); // (shed)
+			assertEquals(2L, under_test._shed.get());
+			final CompletableFuture<?> drained = under_test.drained();
+			assertFalse(drained.isDone());
+			
+			release.countDown();
+			drained.join();
+			assertEquals(Arrays.asList(1, 2, 3, 4), written.stream().map(j -> j.get("id").asInt()).collect(Collectors.toList()));
+			assertEquals(0, errors.get());
+			assertTrue(under_test.drained().isDone());
+		}
+		// Block: the caller waits for room in the queue
+		{
+			final CountDownLatch block_started = new CountDownLatch(1);
+			final CountDownLatch block_release = new CountDownLatch(1);
+			written.clear();
+			final MultiDataService.WriterQueue under_test = new MultiDataService.WriterQueue("test", getTestWriter(block_started, block_release, written, errors), 1);
+			
+			under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 1)));
+			block_started.await();
+			under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 2)));
+			final CompletableFuture<?> blocked = CompletableFuture.runAsync(() -> {
+				try { under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 3))); } catch (InterruptedException e) { errors.incrementAndGet(); }
+			});
+			Thread.sleep(100L);
+			assertFalse(blocked.isDone());
+			
+			block_release.countDown();
+			blocked.join();
+			under_test.drained().join();
+			assertEquals(Arrays.asList(1, 2, 3), written.stream().map(j -> j.get("id").asInt()).collect(Collectors.toList()));
+			assertEquals(0L, under_test._shed.get());
+			assertEquals(0, errors.get());
+		}
+		// Errors: counted, and reported (once) by the drained future
+		{
+			final MultiDataService.WriterQueue under_test = new MultiDataService.WriterQueue("test", new MultiDataService.DataWriter() {
+				public void write(final JsonNode obj_json) {
+					throw new RuntimeException("test_error");
+				}
+				public void write(final List<JsonNode> obj_jsons) {
+					throw new RuntimeException("test_error");
+				}
+			}, 10);
+			
+			under_test.add(Collections.singletonList(_mapper.createObjectNode().put("id", 1)));
+			under_test.add(Arrays.asList(_mapper.createObjectNode().put("id", 2), _mapper.createObjectNode().put("id", 3)));
+			try {
+				under_test.drained().join();
+				fail("Should have errored");
+			}
+			catch (CompletionException e) {
+				assertEquals("test_error", e.getCause().getMessage());
+			}
+			assertEquals(2L, under_test._errors.get());
+			under_test.drained().join(); // (already reported)
+		}
+	}
+	
 	@Test
 	public void test_docWriteMode_copiedFromContext() {
 		{
@@ -538,6 +647,8 @@ public class TestMultiDataService {
 					};
 					Mockito.when(dws.storeObject(Mockito.any())).then(callback);
 					Mockito.when(dws.storeObject(Mockito.any(), Mockito.anyBoolean())).then(callback);
+					Mockito.when(dws.storeObjects(Mockito.anyListOf(JsonNode.class))).then(callback);
+					Mockito.when(dws.storeObjects(Mockito.anyListOf(JsonNode.class), Mockito.anyBoolean())).then(callback);
 					
 					final IGenericDataService gds = Mockito.mock(IGenericDataService.class);
 					Mockito.when(gds.getWritableDataService(Mockito.<Class<JsonNode>>any(), Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(Optional.of(dws));
@@ -557,6 +668,8 @@ public class TestMultiDataService {
 					Mockito.doAnswer(callback).when(bss).flushOutput();
 					Mockito.doAnswer(callback).when(bss).storeObject(Mockito.any());
 					Mockito.doAnswer(callback).when(bss).storeObject(Mockito.any(), Mockito.anyBoolean());
+					Mockito.doAnswer(callback).when(bss).storeObjects(Mockito.anyListOf(JsonNode.class));
+					Mockito.doAnswer(callback).when(bss).storeObjects(Mockito.anyListOf(JsonNode.class), Mockito.anyBoolean());
 					
 					@SuppressWarnings("unchecked")
 					final IDataWriteService<JsonNode> dws = (IDataWriteService<JsonNode>)Mockito.mock(IDataWriteService.class);
@@ -15,18 +15,39 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.services;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.MockManagementCrudService;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 public class TestReadOnlyMultiCrudService {
+	protected static final ObjectMapper _mapper = new ObjectMapper();
 
 	//TODO: test interception
 	
@@ -150,4 +171,106 @@ public class TestReadOnlyMultiCrudService {
 		catch (Exception e) {}
 
 	}
+
+	@Test
+	public void test_sortAndLimit() {
+		final MockManagementCrudService<JsonNode> mock_crud1 = new MockManagementCrudService<JsonNode>();
+		final MockManagementCrudService<JsonNode> mock_crud2 = new MockManagementCrudService<JsonNode>();
+		final MockManagementCrudService<JsonNode> mock_crud3 = new MockManagementCrudService<JsonNode>();
+		// (each store returns its results already sorted, as the query is pushed down to them)
+		mock_crud1.setMockValues(Arrays.asList(getTestObject("a", 5L), getTestObject("b", 3L), getTestObject("c", 3L), getTestObject("d", null)));
+		mock_crud2.setMockValues(Arrays.asList(getTestObject("e", 4L), getTestObject("f", 3L), getTestObject("g", 1L)));
+		mock_crud3.setMockValues(Arrays.asList());
+		final ICrudService<JsonNode> ro_crud = ReadOnlyMultiCrudService.from(mock_crud1, mock_crud2, mock_crud3);
+		
+		// Unsorted - one store after another
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g"), getIds(ro_crud.getObjectsBySpec(CrudUtils.allOf()).join()));
+		
+		// Sorted - merged, ties in store order
+		assertEquals(Arrays.asList("a", "e", "b", "c", "f", "g", "d"), 
+				getIds(ro_crud.getObjectsBySpec(CrudUtils.allOf().orderBy(Tuples._2T("num", -1))).join()));
+		
+		// Sorted and limited
+		assertEquals(Arrays.asList("a", "e", "b", "c"), 
+				getIds(ro_crud.getObjectsBySpec(CrudUtils.allOf().orderBy(Tuples._2T("num", -1)).limit(4)).join()));
+		
+		// Unsorted and limited
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"), getIds(ro_crud.getObjectsBySpec(CrudUtils.allOf().limit(5)).join()));
+	}
+	
+	@Test
+	public void test_storeOptions() {
+		final CompletableFuture<Void> slow = new CompletableFuture<>();
+		final CompletableFuture<Void> fast = CompletableFuture.completedFuture(null);
+		final CompletableFuture<Void> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new RuntimeException("test"));
+		
+		// Unsorted - streams from whichever store is ready first
+		{
+			final ReadOnlyMultiCrudService<JsonNode> ro_crud = ReadOnlyMultiCrudService.from(getStore(slow, getTestObject("a", 1L)), getStore(fast, getTestObject("b", 2L)));
+			final CompletableFuture<ICrudService.Cursor<JsonNode>> f = ro_crud.getObjectsBySpec(CrudUtils.allOf());
+			assertTrue(f.isDone());
+			final Iterator<JsonNode> it = f.join().iterator();
+			assertEquals("b", it.next().get("_id").asText());
+			
+			// (whereas sorted has to wait for all the stores)
+			final CompletableFuture<ICrudService.Cursor<JsonNode>> f_sorted = ro_crud.getObjectsBySpec(CrudUtils.allOf().orderBy(Tuples._2T("num", 1)));
+			assertFalse(f_sorted.isDone());
+			
+			slow.complete(null);
+			assertEquals("a", it.next().get("_id").asText());
+			assertFalse(it.hasNext());
+			assertEquals(Arrays.asList("a", "b"), getIds(f_sorted.join()));
+		}
+		// By default, failed stores fail the query (and stuck stores time out)
+		{
+			final ReadOnlyMultiCrudService<JsonNode> ro_crud = ReadOnlyMultiCrudService.from(getStore(failed, getTestObject("a", 1L)), getStore(fast, getTestObject("b", 2L)));
+			assertEquals(Optional.of(ReadOnlyMultiCrudService.DEFAULT_STORE_TIMEOUT), ro_crud._store_timeout);
+			try {
+				ro_crud.countObjectsBySpec(CrudUtils.allOf()).join();
+				fail("Should have errored");
+			}
+			catch (CompletionException e) {}
+		}
+		// Partial results, with a timeout
+		{
+			final ReadOnlyMultiCrudService<JsonNode> ro_crud = ReadOnlyMultiCrudService.from(
+					getStore(new CompletableFuture<>(), getTestObject("a", 1L)), getStore(failed, getTestObject("b", 2L)), getStore(fast, getTestObject("c", 3L), getTestObject("d", 4L)));
+			final Map<String, Throwable> errors = new ConcurrentHashMap<>();
+			ro_crud.setStoreOptions(Optional.of(Duration.ofMillis(100L)), Optional.of((name, err) -> errors.put(name, err)));
+			
+			assertEquals(2L, ro_crud.countObjectsBySpec(CrudUtils.allOf()).join().longValue());
+			assertEquals(2, errors.size());
+			assertTrue(errors.get("store_0") instanceof TimeoutException);
+			assertEquals("test", errors.get("store_1").getMessage());
+			
+			errors.clear();
+			assertEquals(Arrays.asList("c", "d"), getIds(ro_crud.getObjectsBySpec(CrudUtils.allOf()).join()));
+			assertEquals(2, errors.size());
+		}
+	}
+	
+	protected static MockManagementCrudService<JsonNode> getStore(final CompletableFuture<Void> ready, final JsonNode... values) {
+		final MockManagementCrudService<JsonNode> store = new MockManagementCrudService<JsonNode>() {
+			@Override
+			public ManagementFuture<ICrudService.Cursor<JsonNode>> getObjectsBySpec(QueryComponent<JsonNode> spec, List<String> field_list, boolean include) {
+				return FutureUtils.createManagementFuture(ready.thenCompose(__ -> super.getObjectsBySpec(spec, field_list, include)));
+			}
+			@Override
+			public ManagementFuture<Long> countObjectsBySpec(QueryComponent<JsonNode> spec) {
+				return FutureUtils.createManagementFuture(ready.thenCompose(__ -> super.countObjectsBySpec(spec)));
+			}
+		};
+		store.setMockValues(Arrays.asList(values));
+		return store;
+	}
+	
+	protected static JsonNode getTestObject(final String id, final Long num) {
+		final ObjectNode obj = _mapper.createObjectNode().put("_id", id);
+		return (null == num) ? obj : obj.put("num", num);
+	}
+	
+	protected static List<String> getIds(final ICrudService.Cursor<JsonNode> cursor) {
+		return Optionals.streamOf(cursor.iterator(), false).map(j -> j.get("_id").asText()).collect(Collectors.toList());
+	}
 }
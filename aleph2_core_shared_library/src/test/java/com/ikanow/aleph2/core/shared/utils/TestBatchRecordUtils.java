@@ -17,10 +17,12 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Optional;
 
 import org.apache.commons.lang.SerializationUtils;
@@ -90,4 +92,50 @@ public class TestBatchRecordUtils {
 		}
 	}
 	
+	@Test
+	public void check_largeRecordsAndLazyJson() throws IOException {
+		
+		// Larger than the 64KB limit of writeUTF
+		final char[] big = new char[100*1024];
+		Arrays.fill(big, 'x');
+		final ObjectNode test_json = BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode();
+		test_json.put("test", new String(big));
+		
+		final ByteArrayOutputStream test_out = new ByteArrayOutputStream();
+		test_out.write(new String(big).getBytes());
+		test_out.write("test2".getBytes());
+		
+		{
+			final BatchRecordUtils.BatchRecord phase2 = (BatchRecordUtils.BatchRecord)SerializationUtils.deserialize(
+					SerializationUtils.serialize(new BatchRecordUtils.BatchRecord(test_json, test_out)));
+			
+			// (not parsed yet)
+			assertEquals(null, phase2._json);
+			
+			// Re-serializing a record that hasn't been parsed
+			final BatchRecordUtils.BatchRecord phase3 = (BatchRecordUtils.BatchRecord)SerializationUtils.deserialize(SerializationUtils.serialize(phase2));
+			
+			assertEquals(test_json, phase3.getJson());
+			assertEquals(test_out.size(), phase3.getContent().get().size());
+			assertTrue(phase3.getContent().get().toString().endsWith("xtest2"));
+			assertEquals(test_json, phase2.getJson());
+		}
+		{
+			final BatchRecordUtils.JsonBatchRecord phase2 = (BatchRecordUtils.JsonBatchRecord)SerializationUtils.deserialize(
+					SerializationUtils.serialize(new BatchRecordUtils.JsonBatchRecord(test_json)));
+			
+			assertEquals(null, phase2._json);
+			assertEquals(test_json, phase2.getJson());
+			assertEquals(Optional.empty(), phase2.getContent());
+		}
+		{
+			final IBatchRecord phase2 = (IBatchRecord)SerializationUtils.deserialize(
+					SerializationUtils.serialize(new BatchRecordUtils.InjectedBatchRecord(test_json, null)));
+			
+			assertTrue(phase2.injected());
+			assertEquals(test_json, phase2.getJson());
+			assertEquals(Optional.empty(), phase2.getContent());
+		}
+	}
+	
 }
@@ -21,13 +21,22 @@ import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.UnsupportedFileSystemException;
 import org.junit.Test;
+import org.xeustechnologies.jcl.JarClassLoader;
 import org.xeustechnologies.jcl.exception.JclException;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.ikanow.aleph2.data_model.interfaces.data_import.IHarvestTechnologyModule;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
@@ -238,4 +247,53 @@ public class TestClassloaderUtils {
 		
 	}
 	
+
+	@Test
+	public void test_cacheConcurrencyAndExpiry() throws InterruptedException, ExecutionException {
+		ClassloaderUtils.clearCache();
+		
+		// Concurrent misses - only one build
+		{
+			final AtomicInteger builds = new AtomicInteger();
+			final ExecutorService executor = Executors.newFixedThreadPool(8);
+			final List<Future<ClassloaderUtils.CachedClassloader>> results = IntStream.range(0, 8).boxed()
+					.map(i -> executor.submit(() -> ClassloaderUtils.getCachedClassloader("test_concurrent", () -> {
+						builds.incrementAndGet();
+						try { Thread.sleep(100L); } catch (InterruptedException e) {}
+						return new JarClassLoader();
+					})))
+					.collect(Collectors.toList());
+			
+			final JarClassLoader jcl = results.get(0).get()._classloader.join();
+			for (Future<ClassloaderUtils.CachedClassloader> result: results) {
+				assertEquals(jcl, result.get()._classloader.join());
+			}
+			assertEquals(1, builds.get());
+			executor.shutdown();
+		}
+		// Failed builds aren't cached
+		{
+			final ClassloaderUtils.CachedClassloader failed = ClassloaderUtils.getCachedClassloader("test_fails", () -> { throw new RuntimeException("test"); });
+			assertTrue(failed._classloader.isCompletedExceptionally());
+			assertEquals(null, ClassloaderUtils._classloader_cache.get("test_fails"));
+		}
+		// Expiry - only once nothing created from the classloader is in use
+		{
+			final ClassloaderUtils.CachedClassloader in_use = ClassloaderUtils.getCachedClassloader("test_in_use", () -> new JarClassLoader());
+			final Object instance = new Object();
+			in_use.addInstance(instance);
+			in_use._last_access = 0L;
+			
+			final ClassloaderUtils.CachedClassloader not_in_use = ClassloaderUtils.getCachedClassloader("test_not_in_use", () -> new JarClassLoader());
+			not_in_use._last_access = 0L;
+			
+			ClassloaderUtils.getCachedClassloader("test_another", () -> new JarClassLoader()); // (a miss, so checks the others for expiry)
+			
+			assertEquals(in_use, ClassloaderUtils._classloader_cache.get("test_in_use"));
+			assertEquals(null, ClassloaderUtils._classloader_cache.get("test_not_in_use"));
+			assertNotEquals(null, ClassloaderUtils._classloader_cache.get("test_concurrent"));
+			assertTrue(in_use.isInUse() && (null != instance));
+		}
+		ClassloaderUtils.clearCache();
+	}
 }
@@ -40,6 +40,7 @@ import com.ikanow.aleph2.data_model.interfaces.data_services.ITemporalService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.MockServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
@@ -224,4 +225,53 @@ public class TestDataServiceUtils {
 		}
 		
 	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_getRoutingPlan() {
+		final MockServiceContext mock_service_context = new MockServiceContext();
+		Stream.of(
+				ISearchIndexService.class,
+				IStorageService.class
+				)
+				.forEach(s -> mock_service_context.addService((Class<IUnderlyingService>)(Class<?>)s, Optional.empty(), Mockito.mock(s)))					
+				;
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/routing_plan")
+				.with(DataBucketBean::data_schema, BeanTemplateUtils.build(DataSchemaBean.class)
+						.with(DataSchemaBean::search_index_schema, BeanTemplateUtils.build(DataSchemaBean.SearchIndexSchemaBean.class).done().get())
+						.with(DataSchemaBean::storage_schema, BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.class).done().get())
+						.done().get())
+				.done().get();
+		
+		final DataServiceUtils.RoutingPlan plan = DataServiceUtils.getRoutingPlan(bucket, mock_service_context);
+		assertEquals(2, plan.services().size());
+		assertEquals(2, plan.providers().size());
+		assertEquals(DataServiceUtils.selectDataServices(bucket.data_schema(), mock_service_context), plan.services());
+		try {
+			plan.services().put(mock_service_context.getStorageService(), "test");
+			fail("Should be immutable");
+		}
+		catch (UnsupportedOperationException e) {}
+		
+		// Cached, including for a copy of the bucket with the same schema
+		assertSame(plan, DataServiceUtils.getRoutingPlan(bucket, mock_service_context));
+		assertSame(plan, DataServiceUtils.getRoutingPlan(BeanTemplateUtils.clone(bucket)
+															.with(DataBucketBean::data_schema, BeanTemplateUtils.clone(bucket.data_schema()).done())
+															.done(), mock_service_context));
+		
+		// Rebuilt when the schema changes
+		final DataServiceUtils.RoutingPlan plan2 = DataServiceUtils.getRoutingPlan(BeanTemplateUtils.clone(bucket)
+																			.with(DataBucketBean::data_schema, BeanTemplateUtils.clone(bucket.data_schema())
+																					.with(DataSchemaBean::search_index_schema, null)
+																					.done())
+																			.done(), mock_service_context);
+		assertNotSame(plan, plan2);
+		assertEquals(Arrays.asList("storage_service"), plan2.services().values().stream().collect(Collectors.toList()));
+		
+		// Separate per context
+		assertNotSame(plan2, DataServiceUtils.getRoutingPlan(bucket, new MockServiceContext()));
+		assertEquals(0, DataServiceUtils.getRoutingPlan(bucket, new MockServiceContext()).services().size());
+	}
 }
@@ -20,8 +20,11 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.fs.FileContext;
@@ -85,6 +88,38 @@ public class TestDirUtils {
 
 	}
 
+	@Test
+	public void test_walkSubdirectories(){
+		Path start = new Path(_temp_dir+"/data/misc/");
+		
+		// Prune by glob
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, DirUtils.nameMatches("managed_*"), DirUtils.nameMatches("bucket_pa*"), false, Optional.empty(), 2)) {
+			assertEquals(Arrays.asList("bucket1", "bucket2", "bucket3"), s.map(p -> p.getParent().getName()).sorted().collect(Collectors.toList()));
+		}
+		// Depth limit
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, DirUtils.nameMatches("managed_bucket"), p -> false, false, Optional.of(3), 4)) {
+			assertEquals(Arrays.asList("bucket1", "bucket2", "bucket3", "bucket4"), s.map(p -> p.getParent().getName()).sorted().collect(Collectors.toList()));
+		}
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, p -> true, p -> false, true, Optional.of(1), 4)) {
+			assertEquals(Arrays.asList("bucket1", "bucket2", "bucket3", "bucket_parent"), s.map(p -> p.getName()).sorted().collect(Collectors.toList()));
+		}
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, p -> true, p -> false, true, Optional.of(0), 4)) {
+			assertEquals(0L, s.count());
+		}
+		// Descend into matches
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, DirUtils.nameMatches("{managed_bucket,ready}"), p -> false, true, Optional.empty(), 4)) {
+			assertEquals(10L, s.count());
+		}
+		// Stop early
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, start, DirUtils.nameMatches("managed_bucket"), p -> false, false, Optional.empty(), 1)) {
+			assertTrue(s.findFirst().isPresent());
+		}
+		// Missing start
+		try (Stream<Path> s = DirUtils.walkSubdirectories(fileContext, new Path(_temp_dir+"/data/misc/does_not_exist"), p -> true, p -> false, true, Optional.empty(), 4)) {
+			assertEquals(0L, s.count());
+		}
+	}
+
 	@Test
 	public void test_createTextFile() throws IOException {
 		DirUtils.createUTF8File(fileContext, _temp_dir+"/data/misc/test.txt", new StringBuffer("test"));
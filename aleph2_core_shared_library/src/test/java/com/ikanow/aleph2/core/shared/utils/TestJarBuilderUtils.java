@@ -19,13 +19,21 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -35,6 +43,7 @@ import org.junit.Test;
 
 import com.codepoetics.protonpack.StreamUtils;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 
 public class TestJarBuilderUtils {
@@ -68,6 +77,33 @@ public class TestJarBuilderUtils {
 		assertTrue(hash1.equals(hash1_again));
 	}
 	
+	@Test
+	public void test_hashContents() throws IOException, InterruptedException {
+		final String input_jar_location = System.getProperty("java.io.tmpdir");
+		final File file1 = File.createTempFile("hash_contents_test_", null);
+		final File file2 = File.createTempFile("hash_contents_test_", null);
+		Files.write(file1.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+		Files.write(file2.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+		final List<String> files = Arrays.asList(file1.getCanonicalPath(), file2.getCanonicalPath());
+		
+		final String hash1 = JarBuilderUtil.getHashedJarName(files, input_jar_location);
+		assertEquals(hash1, JarBuilderUtil.getHashedJarName(files, input_jar_location));
+		assertNotEquals(hash1, JarBuilderUtil.getHashedJarName(Arrays.asList(files.get(1), files.get(0)), input_jar_location));
+		
+		// Changing the contents changes the hash
+		Thread.sleep(1200L); // (makes the modified time different)
+		Files.write(file2.toPath(), "c".getBytes(StandardCharsets.UTF_8));
+		assertNotEquals(hash1, JarBuilderUtil.getHashedJarName(files, input_jar_location));
+		
+		// Same contents at a different path: same hash
+		Files.write(file2.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+		assertEquals(JarBuilderUtil.getHashedJarName(Arrays.asList(files.get(0)), input_jar_location), JarBuilderUtil.getHashedJarName(Arrays.asList(files.get(1)), input_jar_location));
+		
+		//cleanup
+		file1.delete();
+		file2.delete();
+	}
+	
 	@Test
 	public void test_getMostRecentDate() throws IOException, InterruptedException {
 		//create some fake files				
@@ -139,5 +175,99 @@ public class TestJarBuilderUtils {
 		}		
 		
 	}
-
+	
+	@Test
+	public void test_mergeJarsRaw() throws IOException {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		final String j1 = temp_dir + "test_mergeJarsRaw_1.jar";
+		final String j2 = temp_dir + "test_mergeJarsRaw_2.jar";
+		final String out_file = temp_dir + "test_mergeJarsRaw_out.jar";
+		final byte[] big = new byte[100000];
+		Arrays.fill(big, (byte) 'x');
+		
+		// (deflated entries are written with a data descriptor)
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(j1))) {
+			writeEntry(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+			writeEntry(out, "com/", new byte[0], ZipEntry.STORED);
+			writeEntry(out, "com/big.txt", big, ZipEntry.DEFLATED);
+			writeEntry(out, "com/stored.txt", "stored_1".getBytes(StandardCharsets.UTF_8), ZipEntry.STORED);
+		}
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(j2))) {
+			writeEntry(out, "META-INF/MANIFEST.MF", "Manifest-Version: 2.0\n".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+			writeEntry(out, "com/", new byte[0], ZipEntry.STORED);
+			writeEntry(out, "com/stored.txt", "stored_2".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+			writeEntry(out, "com/other.txt", "other".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+		}
+		
+		JarBuilderUtil.mergeJars(Arrays.asList(j1, "./does_not_exist.jar", j2), out_file, ImmutableSet.of("META-INF/"));
+		
+		try (ZipFile in = new ZipFile(j1); ZipFile out = new ZipFile(out_file)) {
+			assertEquals(Arrays.asList("com/", "com/big.txt", "com/stored.txt", "com/other.txt"), out.stream().map(e -> e.getName()).collect(Collectors.toList()));
+			
+			// Copied still compressed
+			assertEquals(in.getEntry("com/big.txt").getCompressedSize(), out.getEntry("com/big.txt").getCompressedSize());
+			assertEquals(ZipEntry.STORED, out.getEntry("com/stored.txt").getMethod());
+			
+			// First one wins
+			assertEquals("stored_1", new String(ByteStreams.toByteArray(out.getInputStream(out.getEntry("com/stored.txt"))), StandardCharsets.UTF_8));
+			assertArrayEquals(big, ByteStreams.toByteArray(out.getInputStream(out.getEntry("com/big.txt"))));
+			assertEquals("other", new String(ByteStreams.toByteArray(out.getInputStream(out.getEntry("com/other.txt"))), StandardCharsets.UTF_8));
+		}
+		// (also readable as a stream, ie the local headers are valid)
+		try (ZipInputStream out = new ZipInputStream(new FileInputStream(out_file))) {
+			assertEquals(4L, StreamUtils.takeWhile(Stream.generate(Lambdas.wrap_u(() -> out.getNextEntry())), x -> null != x).count());
+		}
+		
+		//cleanup
+		new File(j1).delete();
+		new File(j2).delete();
+		new File(out_file).delete();
+	}
+	
+	@Test
+	public void test_mergeJarsCorrupt() throws IOException {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		final String j1 = temp_dir + "test_mergeJarsCorrupt_1.jar";
+		final String j2 = temp_dir + "test_mergeJarsCorrupt_2.jar";
+		final String out_file = temp_dir + "test_mergeJarsCorrupt_out.jar";
+		
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(j1))) {
+			writeEntry(out, "com/a.txt", "a".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+		}
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(j2))) {
+			writeEntry(out, "com/b.txt", "b".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+		}
+		// (central directory is fine but the first local header isn't, so the merge fails once it's started writing)
+		try (RandomAccessFile corrupt = new RandomAccessFile(j2, "rw")) {
+			corrupt.write(new byte[4]);
+		}
+		
+		try {
+			JarBuilderUtil.mergeJars(Arrays.asList(j1, j2), out_file, ImmutableSet.of());
+			fail("Should have thrown");
+		}
+		catch (IOException e) {
+		}
+		// (no partially merged jar left around)
+		assertFalse(new File(out_file).exists());
+		
+		//cleanup
+		new File(j1).delete();
+		new File(j2).delete();
+	}
+	
+	private static void writeEntry(final ZipOutputStream out, final String name, final byte[] bytes, final int method) throws IOException {
+		final ZipEntry e = new ZipEntry(name);
+		e.setMethod(method);
+		if (ZipEntry.STORED == method) {
+			final CRC32 crc = new CRC32();
+			crc.update(bytes);
+			e.setSize(bytes.length);
+			e.setCompressedSize(bytes.length);
+			e.setCrc(crc.getValue());
+		}
+		out.putNextEntry(e);
+		out.write(bytes);
+		out.closeEntry();
+	}
 }
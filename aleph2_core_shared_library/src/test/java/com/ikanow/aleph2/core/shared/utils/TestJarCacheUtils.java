@@ -20,9 +20,11 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -210,6 +212,82 @@ public class TestJarCacheUtils {
 	}
 
 	
+	@Test
+	public void test_contentAddressedCache() throws InterruptedException, ExecutionException, IOException {
+		
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		final File remote_file_1 = new File(temp_dir + "test_content_1.jar");
+		final File remote_file_2 = new File(temp_dir + "test_content_2.jar");
+		final String test_content = "test_content_" + UUID.randomUUID().toString(); // (so the content isn't already cached)
+		Files.write(remote_file_1.toPath(), test_content.getBytes());
+		Files.write(remote_file_2.toPath(), test_content.getBytes());
+		
+		final File cached_1 = new File(_globals.local_cached_jar_dir(), "testC1.cache.jar");
+		final File cached_2 = new File(_globals.local_cached_jar_dir(), "testC2.cache.jar");
+		cached_1.delete();
+		cached_2.delete();
+		
+		final SharedLibraryBean library_bean_1 = BeanTemplateUtils.build(SharedLibraryBean.class)
+															.with(SharedLibraryBean::path_name, remote_file_1.toString())
+															.with(SharedLibraryBean::_id, "testC1")
+															.done().get();
+		final SharedLibraryBean library_bean_2 = BeanTemplateUtils.build(SharedLibraryBean.class)
+															.with(SharedLibraryBean::path_name, remote_file_2.toString())
+															.with(SharedLibraryBean::_id, "testC2")
+															.done().get();
+		
+		// Two libraries with the same content share the cached copy
+		
+		final String ret_val_1 = JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean_1, _mock_hdfs, "testC1", new TestMessageBean()).get().success();
+		assertTrue(ret_val_1.endsWith("testC1.cache.jar"));
+		final String ret_val_2 = JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean_2, _mock_hdfs, "testC2", new TestMessageBean()).get().success();
+		assertTrue(ret_val_2.endsWith("testC2.cache.jar"));
+		
+		assertEquals(test_content, new String(Files.readAllBytes(cached_1.toPath())));
+		assertTrue("Hard linked to the same content", Files.isSameFile(cached_1.toPath(), cached_2.toPath()));
+		assertEquals(0, new File(_globals.local_cached_jar_dir(), JarCacheUtils.CONTENT_DIR).listFiles((dir, name) -> name.endsWith(".tmp")).length);
+		
+		// Updating one of the libraries only invalidates the classloaders that use it
+		
+		ClassloaderUtils._classloader_cache.put(ret_val_1, new ClassloaderUtils.CachedClassloader());
+		ClassloaderUtils._classloader_cache.put("file:/other.jar:" + ret_val_1, new ClassloaderUtils.CachedClassloader());
+		ClassloaderUtils._classloader_cache.put("file:/other.jar:" + ret_val_2, new ClassloaderUtils.CachedClassloader());
+		
+		Files.write(remote_file_1.toPath(), (test_content + "_v2").getBytes());
+		remote_file_1.setLastModified(cached_1.lastModified() + 10000L);
+		
+		JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean_1, _mock_hdfs, "testC1", new TestMessageBean()).get().success();
+		
+		assertEquals(test_content + "_v2", new String(Files.readAllBytes(cached_1.toPath())));
+		assertEquals(test_content, new String(Files.readAllBytes(cached_2.toPath())));
+		assertFalse(Files.isSameFile(cached_1.toPath(), cached_2.toPath()));
+		assertEquals(null, ClassloaderUtils._classloader_cache.get(ret_val_1));
+		assertEquals(null, ClassloaderUtils._classloader_cache.get("file:/other.jar:" + ret_val_1));
+		assertNotEquals(null, ClassloaderUtils._classloader_cache.get("file:/other.jar:" + ret_val_2));
+		
+		// Reverting it re-uses the cached content without another copy (and the v2 content, now unused, is removed)
+		
+		final long content_files = new File(_globals.local_cached_jar_dir(), JarCacheUtils.CONTENT_DIR).listFiles().length;
+		Files.write(remote_file_1.toPath(), test_content.getBytes());
+		remote_file_1.setLastModified(cached_1.lastModified() + 20000L);
+		
+		JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean_1, _mock_hdfs, "testC1", new TestMessageBean()).get().success();
+		
+		assertTrue("Hard linked to the same content", Files.isSameFile(cached_1.toPath(), cached_2.toPath()));
+		assertNotEquals(null, ClassloaderUtils._classloader_cache.get("file:/other.jar:" + ret_val_2));
+		if (!File.separator.equals("\\")) { // (windows doesn't support link counts)
+			assertEquals(content_files - 1, new File(_globals.local_cached_jar_dir(), JarCacheUtils.CONTENT_DIR).listFiles().length);
+		}
+		
+		// Not changed, so not refreshed
+		
+		final File version_file = new File(new File(_globals.local_cached_jar_dir(), JarCacheUtils.CONTENT_DIR), "testC1.cache.jar.version");
+		assertTrue(version_file.exists());
+		version_file.setLastModified(0L);
+		JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean_1, _mock_hdfs, "testC1", new TestMessageBean()).get().success();
+		assertEquals(0L, version_file.lastModified());
+	}
+	
 	@Test
 	public void test_remoteFileNotPresent() throws InterruptedException, ExecutionException, UnsupportedFileSystemException {
 		
@@ -249,4 +249,51 @@ public class TestTimeSliceDirUtils {
 		
 	}
 	
+	@Test
+	public void test_timeSliceIndex() {
+		
+		final TimeSliceDirUtils.TimeSliceIndex index = TimeSliceDirUtils.getTimeSliceIndex("/test_timeSliceIndex");
+		assertSame(index, TimeSliceDirUtils.getTimeSliceIndex("/test_timeSliceIndex"));
+		assertEquals(0, index.size());
+		
+		index.refresh(Arrays.asList(
+				"fail",
+				"fail_1",
+				"works_2015.06.03",
+				"works_2035.01.01.01",
+				"works_2015.06.01",
+				"works_2015.01.01.01_100"
+				).stream());
+		assertEquals(4, index.size());
+		
+		final Date now = Date.from(LocalDateTime.of(2015, 6, 12, 2, 0).atZone(ZoneOffset.systemDefault()).toInstant());
+		final Date days_12 = Date.from(LocalDateTime.of(2015, 5, 31, 2, 0).atZone(ZoneOffset.systemDefault()).toInstant());
+		final Date days_10 = Date.from(LocalDateTime.of(2015, 6, 2, 2, 0).atZone(ZoneOffset.systemDefault()).toInstant());
+		final Date days_8 = Date.from(LocalDateTime.of(2015, 6, 4, 2, 0).atZone(ZoneOffset.systemDefault()).toInstant());
+		
+		// Same results as filterTimedDirectories, but in time order
+		assertEquals(Arrays.asList("works_2015.01.01.01_100", "works_2015.06.01", "works_2015.06.03", "works_2035.01.01.01"),
+				index.select(Tuples._2T(Optional.empty(), Optional.empty())).collect(Collectors.toList()));
+		assertEquals(Arrays.asList("works_2015.06.03", "works_2035.01.01.01"),
+				index.select(Tuples._2T(Optional.of(days_10), Optional.empty())).collect(Collectors.toList()));
+		assertEquals(Arrays.asList("works_2015.01.01.01_100", "works_2015.06.01"),
+				index.select(Tuples._2T(Optional.empty(), Optional.of(days_10))).collect(Collectors.toList()));
+		assertEquals(Arrays.asList("works_2015.06.01", "works_2015.06.03"),
+				index.select(Tuples._2T(Optional.of(days_12), Optional.of(days_8))).collect(Collectors.toList()));
+		assertEquals(Arrays.asList(),
+				index.select(Tuples._2T(Optional.of(days_8), Optional.of(days_10))).collect(Collectors.toList()));
+		
+		// Incremental refresh, including a long slice that starts well before the range
+		index.refresh(Arrays.asList(
+				"fail",
+				"works_2015",
+				"works_2015.06.03",
+				"works_2015.06.01",
+				"works_2015.01.01.01_100"
+				).stream());
+		assertEquals(4, index.size());
+		assertEquals(Arrays.asList("works_2015", "works_2015.06.03"),
+				index.select(Tuples._2T(Optional.of(days_10), Optional.of(now))).collect(Collectors.toList()));
+	}
+	
 }
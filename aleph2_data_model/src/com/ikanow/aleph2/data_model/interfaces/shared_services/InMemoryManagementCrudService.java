@@ -0,0 +1,1016 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_model.interfaces.shared_services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterators;
+import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.CompiledQuery;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateOperator;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
+import com.ikanow.aleph2.data_model.utils.JsonUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.data_model.utils.UuidUtils;
+
+/** A functional in-memory implementation of management CRUD (and therefore normal CRUD), eg for local/test deployments, small embedded stores,
+ *  or as the backing store of a cache
+ *  Objects are stored as JSON keyed on _id. optimizeQuery builds a hash index (for equality/"any of" terms) and a sorted index (for ranges)
+ *  on each of the fields, which are then used to select the candidate objects for a query - the full query is then evaluated against the candidates
+ *  (Query semantics follow MongoDB, eg a term on an array field matches if any element matches; if an index is used then the "natural" order of the results is not insertion order)
+ * @author Alex
+ *
+ * @param <T> - the bean type (or JsonNode for the raw version)
+ */
+public class InMemoryManagementCrudService<T> implements IManagementCrudService<T> {
+	public static final String DUPLICATE_ID = "Object with _id {0} already exists";
+	public static final String INVALID_UPDATE = "Can't apply {0} to field {1}: {2}";
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.getSharedMapper().mapper();
+
+	final protected Class<T> _clazz;
+	final protected Store _store;
+	final protected Optional<Predicate<JsonNode>> _filter; // (if present, the objects this view can see - see getFilteredRepo)
+
+	/** User c'tor - creates an empty store
+	 * @param clazz - the bean type (or JsonNode.class for a raw JSON store)
+	 */
+	public InMemoryManagementCrudService(final Class<T> clazz) {
+		this(clazz, new Store());
+	}
+
+	/** Internal c'tor, for views (eg the raw service) of the same store
+	 * @param clazz - the bean type
+	 * @param store - the (shared) store
+	 */
+	protected InMemoryManagementCrudService(final Class<T> clazz, final Store store) {
+		this(clazz, store, Optional.empty());
+	}
+
+	/** Internal c'tor, for filtered views of the same store
+	 * @param clazz - the bean type
+	 * @param store - the (shared) store
+	 * @param filter - if present, the objects this view can see
+	 */
+	protected InMemoryManagementCrudService(final Class<T> clazz, final Store store, final Optional<Predicate<JsonNode>> filter) {
+		_clazz = clazz;
+		_store = store;
+		_filter = filter;
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// *C*REATE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#storeObject(java.lang.Object, boolean)
+	 */
+	@Override
+	public ManagementFuture<Supplier<Object>> storeObject(final T new_object, final boolean replace_if_present) {
+		return write(() -> {
+			final Object id = _store.insert(toJson(new_object), replace_if_present);
+			return () -> id;
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public ManagementFuture<Supplier<Object>> storeObject(final T new_object) {
+		return storeObject(new_object, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#storeObjects(java.util.List, boolean)
+	 */
+	@Override
+	public ManagementFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<T> new_objects, final boolean continue_on_error) {
+		return write(() -> {
+			final List<Object> ids = new ArrayList<>(new_objects.size());
+			for (T new_object: new_objects) {
+				try {
+					ids.add(_store.insert(toJson(new_object), false));
+				}
+				catch (RuntimeException e) {
+					if (!continue_on_error) throw e;
+				}
+			}
+			return Tuples._2T(() -> ids, () -> (long)ids.size());
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#storeObjects(java.util.List)
+	 */
+	@Override
+	public ManagementFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<T> new_objects) {
+		return storeObjects(new_objects, false);
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// *R*ETRIEVE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#optimizeQuery(java.util.List)
+	 */
+	@Override
+	public ManagementFuture<Boolean> optimizeQuery(final List<String> ordered_field_list) {
+		return write(() -> {
+			_store.registerIndex(ordered_field_list);
+			return true;
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deregisterOptimizedQuery(java.util.List)
+	 */
+	@Override
+	public boolean deregisterOptimizedQuery(final List<String> ordered_field_list) {
+		final Lock lock = _store._lock.writeLock();
+		lock.lock();
+		try {
+			return _store.deregisterIndex(ordered_field_list);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public ManagementFuture<Optional<T>> getObjectBySpec(final QueryComponent<T> unique_spec) {
+		return getObjectBySpec(unique_spec, Collections.emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public ManagementFuture<Optional<T>> getObjectBySpec(final QueryComponent<T> unique_spec, final List<String> field_list, final boolean include) {
+		return read(() -> _store.find(unique_spec, Optional.of(1L), _filter).stream().findFirst().map(o -> fromJson(project(o, field_list, include))));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectById(java.lang.Object)
+	 */
+	@Override
+	public ManagementFuture<Optional<T>> getObjectById(final Object id) {
+		return getObjectById(id, Collections.emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectById(java.lang.Object, java.util.List, boolean)
+	 */
+	@Override
+	public ManagementFuture<Optional<T>> getObjectById(final Object id, final List<String> field_list, final boolean include) {
+		return read(() -> getById(id).map(o -> fromJson(project(o, field_list, include))));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public ManagementFuture<Cursor<T>> getObjectsBySpec(final QueryComponent<T> spec) {
+		return getObjectsBySpec(spec, Collections.emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public ManagementFuture<Cursor<T>> getObjectsBySpec(final QueryComponent<T> spec, final List<String> field_list, final boolean include) {
+		return read(() -> new ResultsCursor(_store.find(spec, Optional.empty(), _filter), field_list, include));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#countObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public ManagementFuture<Long> countObjectsBySpec(final QueryComponent<T> spec) {
+		return read(() -> _store.candidates(spec).filter(compile(spec)).filter(o -> isVisible(o)).count());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#countObjects()
+	 */
+	@Override
+	public ManagementFuture<Long> countObjects() {
+		return read(() -> _filter.map(filter -> _store._objects.values().stream().filter(filter).count()).orElseGet(() -> (long)_store._objects.size()));
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// *U*PDATE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#updateObjectById(java.lang.Object, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public ManagementFuture<Boolean> updateObjectById(final Object id, final UpdateComponent<T> update) {
+		return write(() -> getById(id)
+							.map(o -> { _store.update(o, update); return true; })
+							.orElse(false));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#updateObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public ManagementFuture<Boolean> updateObjectBySpec(final QueryComponent<T> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<T> update) {
+		return write(() -> _store.updateOrUpsert(unique_spec, Optional.of(1L), upsert, update, _filter).isPresent());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#updateObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public ManagementFuture<Long> updateObjectsBySpec(final QueryComponent<T> spec, final Optional<Boolean> upsert, final UpdateComponent<T> update) {
+		return write(() -> _store.updateOrUpsert(spec, Optional.empty(), upsert, update, _filter).map(before_after -> (long)before_after.size()).orElse(0L));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#updateAndReturnObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent, java.util.Optional, java.util.List, boolean)
+	 */
+	@Override
+	public ManagementFuture<Optional<T>> updateAndReturnObjectBySpec(final QueryComponent<T> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<T> update,
+			final Optional<Boolean> before_updated, final List<String> field_list, final boolean include)
+	{
+		return write(() -> _store.updateOrUpsert(unique_spec, Optional.of(1L), upsert, update, _filter)
+							.flatMap(before_after -> before_after.stream().findFirst())
+							.flatMap(before_after -> (before_updated.orElse(false) || !before_after._2().isPresent()) ? before_after._1() : before_after._2())
+							.map(o -> fromJson(project(o, field_list, include))));
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// *D*ELETE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#deleteObjectById(java.lang.Object)
+	 */
+	@Override
+	public ManagementFuture<Boolean> deleteObjectById(final Object id) {
+		return write(() -> getById(id)
+							.map(o -> { _store.remove(o); return true; })
+							.orElse(false));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#deleteObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public ManagementFuture<Boolean> deleteObjectBySpec(final QueryComponent<T> unique_spec) {
+		return write(() -> {
+			final List<ObjectNode> matches = _store.find(unique_spec, Optional.of(1L), _filter);
+			matches.forEach(_store::remove);
+			return !matches.isEmpty();
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#deleteObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public ManagementFuture<Long> deleteObjectsBySpec(final QueryComponent<T> spec) {
+		return write(() -> {
+			final List<ObjectNode> matches = _store.find(spec, Optional.empty(), _filter);
+			matches.forEach(_store::remove);
+			return (long)matches.size();
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#deleteDatastore()
+	 */
+	@Override
+	public ManagementFuture<Boolean> deleteDatastore() {
+		return write(() -> {
+			_store.clear();
+			return true;
+		});
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// OTHER
+
+	/** Returns a read only view of the objects whose authorization field matches (or, for arrays, contains) the client's principal name
+	 *  (the project has no access rights to check yet, so isn't used; with no client, the view can see the same objects as this one)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getFilteredRepo(java.lang.String, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public IManagementCrudService<T> getFilteredRepo(final String authorization_fieldname, final Optional<AuthorizationBean> client_auth, final Optional<ProjectBean> project_auth) {
+		final Optional<Predicate<JsonNode>> filter = client_auth
+				.map(auth -> compile(CrudUtils.allOf().when(authorization_fieldname, auth.getPrincipalName())))
+				.map(client_filter -> _filter.map(f -> f.and(client_filter)).orElse(client_filter));
+		return new InMemoryManagementCrudService<T>(_clazz, _store, filter.isPresent() ? filter : _filter).readOnlyVersion();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getRawService()
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public IManagementCrudService<JsonNode> getRawService() {
+		return JsonNode.class.isAssignableFrom(_clazz)
+				? (IManagementCrudService<JsonNode>)this
+				: new InMemoryManagementCrudService<JsonNode>(JsonNode.class, _store, _filter);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getSearchService()
+	 */
+	@Override
+	public Optional<IBasicSearchService<T>> getSearchService() {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<T>> getCrudService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <X> Optional<X> getUnderlyingPlatformDriver(final Class<X> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS - SERVICE
+
+	/** Runs a read operation under the store's read lock
+	 * @param op - the operation (must not return anything backed by the store's mutable state)
+	 * @return a completed (or failed) future
+	 */
+	protected <R> ManagementFuture<R> read(final Supplier<R> op) {
+		return run(_store._lock.readLock(), op);
+	}
+
+	/** Runs a mutating operation under the store's write lock
+	 * @param op - the operation
+	 * @return a completed (or failed) future
+	 */
+	protected <R> ManagementFuture<R> write(final Supplier<R> op) {
+		return run(_store._lock.writeLock(), op);
+	}
+
+	/** Runs an operation under a lock, converting errors into a failed future
+	 * @param lock
+	 * @param op
+	 * @return a completed (or failed) future
+	 */
+	protected static <R> ManagementFuture<R> run(final Lock lock, final Supplier<R> op) {
+		lock.lock();
+		try {
+			return FutureUtils.createManagementFuture(CompletableFuture.completedFuture(op.get()));
+		}
+		catch (Exception e) {
+			return FutureUtils.createManagementFuture(FutureUtils.returnError(e));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the stored object with the given _id, if this view can see it (must hold the store's lock)
+	 * @param id
+	 * @return
+	 */
+	protected Optional<ObjectNode> getById(final Object id) {
+		return Optional.ofNullable(_store._objects.get(CompiledQuery.normalizeValue(CompiledQuery.toJson(id)))).filter(o -> isVisible(o));
+	}
+
+	/** Whether this view can see a stored object
+	 * @param stored
+	 * @return
+	 */
+	protected boolean isVisible(final JsonNode stored) {
+		return _filter.map(filter -> filter.test(stored)).orElse(true);
+	}
+
+	/** Converts a bean (or JSON object) into a stored object (never shares state with the input)
+	 * @param new_object
+	 * @return
+	 */
+	protected ObjectNode toJson(final T new_object) {
+		final JsonNode json = (new_object instanceof JsonNode) ? ((JsonNode)new_object).deepCopy() : BeanTemplateUtils.toJson(new_object);
+		if (!json.isObject()) {
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.INVALID_CONFIG_ERROR, "storeObject", json.getNodeType()));
+		}
+		return (ObjectNode)json;
+	}
+
+	/** Converts a stored object into a bean (or JSON object), which never shares state with the store
+	 *  (stored objects are never modified in place, so this can happen outside the lock)
+	 * @param stored
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected T fromJson(final JsonNode stored) {
+		return JsonNode.class.isAssignableFrom(_clazz)
+				? (T)stored.deepCopy()
+				: BeanTemplateUtils.from(stored, _clazz).get();
+	}
+
+	/** Cursor over a snapshot of the matching objects, converted on access
+	 * @author Alex
+	 */
+	protected class ResultsCursor extends Cursor<T> {
+		final protected List<ObjectNode> _results;
+		final protected List<String> _field_list;
+		final protected boolean _include;
+
+		protected ResultsCursor(final List<ObjectNode> results, final List<String> field_list, final boolean include) {
+			_results = results;
+			_field_list = field_list;
+			_include = include;
+		}
+		@Override
+		public Iterator<T> iterator() {
+			return Iterators.transform(_results.iterator(), o -> fromJson(project(o, _field_list, _include)));
+		}
+		@Override
+		public long count() {
+			return _results.size();
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS - STORE
+
+	/** The objects and indexes, shared between the bean and raw views of the store
+	 *  (all access is under _lock - stored objects are never modified in place, updates replace them)
+	 * @author Alex
+	 */
+	protected static class Store {
+		final protected ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+		final protected LinkedHashMap<JsonNode, ObjectNode> _objects = new LinkedHashMap<>();
+		final protected HashMap<List<String>, Integer> _registrations = new HashMap<>();
+		final protected HashMap<String, FieldIndex> _indexes = new HashMap<>();
+
+		/** Adds an object, filling in its _id if not present
+		 * @param to_insert - (is stored, so must not be shared)
+		 * @param replace_if_present - if false, errors if the _id is already present
+		 * @return the _id of the object
+		 */
+		protected Object insert(final ObjectNode to_insert, final boolean replace_if_present) {
+			if (!to_insert.has(JsonUtils._ID)) {
+				to_insert.put(JsonUtils._ID, UuidUtils.get().getRandomUuid());
+			}
+			final JsonNode id = to_insert.get(JsonUtils._ID);
+			final ObjectNode existing = _objects.get(CompiledQuery.normalizeValue(id));
+			if (null != existing) {
+				if (!replace_if_present) {
+					throw new RuntimeException(ErrorUtils.get(DUPLICATE_ID, id));
+				}
+				remove(existing);
+			}
+			_objects.put(CompiledQuery.normalizeValue(id), to_insert);
+			_indexes.values().forEach(index -> index.add(to_insert));
+			return JsonUtils.jacksonToJava(id);
+		}
+
+		/** Removes an object
+		 * @param stored
+		 */
+		protected void remove(final ObjectNode stored) {
+			_objects.remove(CompiledQuery.normalizeValue(stored.get(JsonUtils._ID)));
+			_indexes.values().forEach(index -> index.remove(stored));
+		}
+
+		/** Removes all the objects (but not the registered indexes)
+		 */
+		protected void clear() {
+			_objects.clear();
+			_indexes.values().forEach(index -> index.clear());
+		}
+
+		/** Applies an update to an object, replacing (or deleting) it
+		 * @param stored
+		 * @param update
+		 * @return the new version of the object (empty if deleted)
+		 */
+		protected Optional<ObjectNode> update(final ObjectNode stored, final UpdateComponent<?> update) {
+			final Optional<ObjectNode> updated = applyUpdate(stored, update);
+			remove(stored);
+			updated.ifPresent(o -> {
+				_objects.put(CompiledQuery.normalizeValue(o.get(JsonUtils._ID)), o);
+				_indexes.values().forEach(index -> index.add(o));
+			});
+			return updated;
+		}
+
+		/** Updates the matching objects, or inserts a new one if there aren't any and upsert is set
+		 * @param spec
+		 * @param limit - (1 for the single object versions)
+		 * @param upsert
+		 * @param update
+		 * @param filter - if present, only objects that pass it can be updated (see getFilteredRepo)
+		 * @return empty if nothing was updated, else (before - empty if upserted, after - empty if deleted) for each object
+		 */
+		protected Optional<List<Tuple2<Optional<ObjectNode>, Optional<ObjectNode>>>> updateOrUpsert(final QueryComponent<?> spec, final Optional<Long> limit, final Optional<Boolean> upsert, final UpdateComponent<?> update, final Optional<Predicate<JsonNode>> filter) {
+			final List<ObjectNode> matches = find(spec, limit, filter);
+			if (!matches.isEmpty()) {
+				return Optional.of(matches.stream().map(o -> Tuples._2T(Optional.of(o), update(o, update))).collect(Collectors.toList()));
+			}
+			else if (upsert.orElse(false)) {
+				final ObjectNode base = upsertBase(spec, _mapper.createObjectNode());
+				final Optional<ObjectNode> upserted = applyUpdate(base, update);
+				upserted.ifPresent(o -> insert(o, false));
+				return Optional.of(Arrays.asList(Tuples._2T(Optional.empty(), upserted)));
+			}
+			else return Optional.empty();
+		}
+
+		/** Returns the objects matching the query, in the query's order and up to its limit
+		 * @param spec
+		 * @param override_limit - if present, overrides the query's limit (eg 1 for the single object versions)
+		 * @param filter - if present, only objects that pass it can match (see getFilteredRepo)
+		 * @return a snapshot of the matching objects
+		 */
+		protected List<ObjectNode> find(final QueryComponent<?> spec, final Optional<Long> override_limit, final Optional<Predicate<JsonNode>> filter) {
+			final Stream<ObjectNode> matches = filter.map(f -> candidates(spec).filter(compile(spec).and(f))).orElseGet(() -> candidates(spec).filter(compile(spec)));
+			final long limit = override_limit.orElseGet(() -> Optional.ofNullable(spec.getLimit()).filter(l -> l > 0).orElse(Long.MAX_VALUE));
+			final List<Tuple2<String, Integer>> order_by = Optional.ofNullable(spec.getOrderBy()).orElse(Collections.emptyList());
+
+			if (order_by.isEmpty()) {
+				return matches.limit(limit).collect(Collectors.toList());
+			}
+			final Comparator<JsonNode> comparator = sortOrder(order_by);
+			if (limit >= _objects.size()) {
+				return matches.sorted(comparator).collect(Collectors.toList());
+			}
+			else { // top N: keep the best N seen so far in a heap whose head is the worst of them
+				final int n = (int)limit;
+				final PriorityQueue<ObjectNode> top_n = new PriorityQueue<>(n + 1, comparator.reversed());
+				matches.forEach(o -> {
+					top_n.add(o);
+					if (top_n.size() > n) top_n.poll();
+				});
+				final List<ObjectNode> ret_val = new ArrayList<>(top_n);
+				ret_val.sort(comparator);
+				return ret_val;
+			}
+		}
+
+		/** Returns the objects that might match the query, using the indexes where possible (else all of them)
+		 * @param spec
+		 * @return
+		 */
+		protected Stream<ObjectNode> candidates(final QueryComponent<?> spec) {
+			return selectIndex(spec)
+					.map(ids -> ids.stream().map(id -> _objects.get(id)).filter(o -> null != o))
+					.orElseGet(() -> _objects.values().stream());
+		}
+
+		/** Works out the smallest set of _ids that must contain all the objects that match the query, using the indexes
+		 * @param spec
+		 * @return the (normalized) _ids, or empty if the query can't use the indexes
+		 */
+		protected Optional<Set<JsonNode>> selectIndex(final QueryComponent<?> spec) {
+			if (spec instanceof MultiQueryComponent) {
+				final Stream<Optional<Set<JsonNode>>> per_element = ((MultiQueryComponent<?>)spec).getElements().stream().map(qc -> selectIndex(qc));
+				return combine(spec.getOp(), per_element);
+			}
+			else if (spec instanceof SingleQueryComponent) {
+				final Stream<Optional<Set<JsonNode>>> per_term = ((SingleQueryComponent<?>)spec).getAll().entries().stream()
+																	.map(kv -> selectIndex(kv.getKey(), kv.getValue()._1(), kv.getValue()._2()));
+				return combine(spec.getOp(), per_term);
+			}
+			else return Optional.empty();
+		}
+
+		/** Combines the candidates from the terms of a query
+		 * @param op - all_of: the smallest set of any term; any_of: the union of all the terms' sets, if they all have one
+		 * @param per_term
+		 * @return
+		 */
+		protected static Optional<Set<JsonNode>> combine(final Operator op, final Stream<Optional<Set<JsonNode>>> per_term) {
+			if (Operator.any_of == op) {
+				final List<Optional<Set<JsonNode>>> terms = per_term.collect(Collectors.toList());
+				return (terms.isEmpty() || terms.stream().anyMatch(t -> !t.isPresent()))
+						? Optional.empty()
+						: Optional.of(terms.stream().flatMap(t -> t.get().stream()).collect(Collectors.toCollection(LinkedHashSet::new)));
+			}
+			else {
+				return per_term.filter(t -> t.isPresent()).map(t -> t.get()).min(Comparator.comparing(t -> t.size()));
+			}
+		}
+
+		/** Returns the candidates for a single term, if it can use an index
+		 * @param field
+		 * @param op
+		 * @param operands
+		 * @return
+		 */
+		protected Optional<Set<JsonNode>> selectIndex(final String field, final Operator op, final Tuple2<Object, Object> operands) {
+			final boolean is_id = JsonUtils._ID.equals(field);
+			final FieldIndex index = _indexes.get(field);
+			if (!is_id && (null == index)) {
+				return Optional.empty();
+			}
+			final Function<JsonNode, Set<JsonNode>> lookup = is_id
+					? key -> _objects.containsKey(key) ? Collections.singleton(key) : Collections.emptySet()
+					: key -> index.get(key);
+			switch (op) {
+				case equals:
+					return Optional.ofNullable(operands._1()).map(v -> lookup.apply(CompiledQuery.normalizeValue(CompiledQuery.toJson(v))));
+				case any_of:
+					return Optional.of(toNodes(operands._1()).stream().flatMap(v -> lookup.apply(CompiledQuery.normalizeValue(v)).stream()).collect(Collectors.toCollection(LinkedHashSet::new)));
+				case range_open_open: case range_open_closed: case range_closed_open: case range_closed_closed:
+					return is_id ? Optional.empty() : Optional.of(index.range(Optional.ofNullable(operands._1()).map(v -> CompiledQuery.toJson(v)), Optional.ofNullable(operands._2()).map(v -> CompiledQuery.toJson(v))));
+				default:
+					return Optional.empty();
+			}
+		}
+
+		/** Registers an optimized query, building the indexes for any of its fields that aren't already indexed
+		 * @param ordered_field_list
+		 */
+		protected void registerIndex(final List<String> ordered_field_list) {
+			final List<String> key = new ArrayList<>(ordered_field_list);
+			if (1 == _registrations.merge(key, 1, (a, b) -> a + b)) {
+				key.stream().filter(f -> !JsonUtils._ID.equals(f)).distinct().forEach(field -> {
+					_indexes.computeIfAbsent(field, f -> {
+						final FieldIndex index = new FieldIndex(f);
+						_objects.values().forEach(o -> index.add(o));
+						return index;
+					})._refs++;
+				});
+			}
+		}
+
+		/** Deregisters an optimized query, dropping the indexes that are no longer in use
+		 * @param ordered_field_list
+		 * @return whether the query was registered
+		 */
+		protected boolean deregisterIndex(final List<String> ordered_field_list) {
+			final List<String> key = new ArrayList<>(ordered_field_list);
+			final Integer refs = _registrations.get(key);
+			if (null == refs) {
+				return false;
+			}
+			else if (refs > 1) {
+				_registrations.put(key, refs - 1);
+			}
+			else {
+				_registrations.remove(key);
+				key.stream().filter(f -> !JsonUtils._ID.equals(f)).distinct().forEach(field -> {
+					final FieldIndex index = _indexes.get(field);
+					if ((null != index) && (--index._refs <= 0)) {
+						_indexes.remove(field);
+					}
+				});
+			}
+			return true;
+		}
+	}
+
+	/** A hash index (for equality) and sorted index (for ranges) of the values of a single field - array fields are indexed on each element (as well as the whole array)
+	 * @author Alex
+	 */
+	protected static class FieldIndex {
+		final protected String[] _path;
+		final protected HashMap<JsonNode, Set<JsonNode>> _hash = new HashMap<>();
+		final protected TreeMap<JsonNode, Set<JsonNode>> _sorted = new TreeMap<>(CompiledQuery::compareValues);
+		protected int _refs = 0;
+
+		protected FieldIndex(final String field) {
+			_path = field.split("[.]");
+		}
+
+		protected void add(final ObjectNode o) {
+			final JsonNode id = CompiledQuery.normalizeValue(o.get(JsonUtils._ID));
+			keys(o).forEach(key -> {
+				final Set<JsonNode> ids = _hash.computeIfAbsent(key, k -> new LinkedHashSet<>());
+				if (ids.isEmpty()) _sorted.put(key, ids); // (same set in both indexes)
+				ids.add(id);
+			});
+		}
+
+		protected void remove(final ObjectNode o) {
+			final JsonNode id = CompiledQuery.normalizeValue(o.get(JsonUtils._ID));
+			keys(o).forEach(key -> {
+				final Set<JsonNode> ids = _hash.get(key);
+				if ((null != ids) && ids.remove(id) && ids.isEmpty()) {
+					_hash.remove(key);
+					_sorted.remove(key);
+				}
+			});
+		}
+
+		protected void clear() {
+			_hash.clear();
+			_sorted.clear();
+		}
+
+		protected Set<JsonNode> get(final JsonNode key) {
+			return _hash.getOrDefault(key, Collections.emptySet());
+		}
+
+		/** Returns the _ids of the objects with a value between the bounds (inclusive - the query itself handles exclusive bounds and type mismatches)
+		 * @param lower
+		 * @param upper
+		 * @return
+		 */
+		protected Set<JsonNode> range(final Optional<JsonNode> lower, final Optional<JsonNode> upper) {
+			final Map<JsonNode, Set<JsonNode>> sub_map = lower.isPresent() && upper.isPresent()
+					? (CompiledQuery.compareValues(lower.get(), upper.get()) > 0 ? Collections.emptyMap() : _sorted.subMap(lower.get(), true, upper.get(), true))
+					: lower.isPresent()
+						? _sorted.tailMap(lower.get(), true)
+						: upper.map(u -> (Map<JsonNode, Set<JsonNode>>)_sorted.headMap(u, true)).orElse(_sorted);
+
+			return sub_map.values().stream().flatMap(ids -> ids.stream()).collect(Collectors.toCollection(LinkedHashSet::new));
+		}
+
+		protected Set<JsonNode> keys(final ObjectNode o) {
+			final List<JsonNode> values = new ArrayList<>();
+			CompiledQuery.collectValues(o, _path, values);
+			return values.stream().map(v -> CompiledQuery.normalizeValue(v)).collect(Collectors.toSet());
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS - QUERIES
+
+	/** Converts a query into a predicate over stored objects (compiled on each call, since query components are mutable builders)
+	 * @param spec
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Predicate<JsonNode> compile(final QueryComponent<?> spec) {
+		final CompiledQuery<Object> compiled = CrudUtils.compile((QueryComponent<Object>)spec);
+		return o -> compiled.test(o);
+	}
+
+	/** Builds the object to insert on an upsert, from the query's (top level "all of") equality terms
+	 * @param spec
+	 * @param base - the object to fill in
+	 * @return base
+	 */
+	protected static ObjectNode upsertBase(final QueryComponent<?> spec, final ObjectNode base) {
+		if (Operator.all_of == spec.getOp()) {
+			if (spec instanceof MultiQueryComponent) {
+				((MultiQueryComponent<?>)spec).getElements().forEach(qc -> upsertBase(qc, base));
+			}
+			else if (spec instanceof SingleQueryComponent) {
+				((SingleQueryComponent<?>)spec).getAll().entries().stream()
+					.filter(kv -> (Operator.equals == kv.getValue()._1()) && (null != kv.getValue()._2()._1()))
+					.forEach(kv -> setPath(base, kv.getKey(), CompiledQuery.toJson(kv.getValue()._2()._1())));
+			}
+		}
+		return base;
+	}
+
+	/** Builds a comparator from an orderBy list
+	 * @param order_by - (field, +1 for ascending/-1 for descending)
+	 * @return
+	 */
+	protected static Comparator<JsonNode> sortOrder(final List<Tuple2<String, Integer>> order_by) {
+		return order_by.stream()
+				.<Comparator<JsonNode>>map(field_dir -> {
+					final String[] path = field_dir._1().split("[.]");
+					final Comparator<JsonNode> ascending = (a, b) -> CompiledQuery.compareValues(getPath(a, path), getPath(b, path));
+					return (field_dir._2() < 0) ? ascending.reversed() : ascending;
+				})
+				.reduce((a, b) -> a.thenComparing(b))
+				.orElse((a, b) -> 0);
+	}
+
+	/** Applies the field list to a stored object
+	 * @param stored
+	 * @param field_list - dot notation supported, empty means all fields
+	 * @param include - if true, only the fields in the list (and _id) are returned, else all the fields except them
+	 * @return the projected object (or the stored object if there's no projection)
+	 */
+	protected static JsonNode project(final ObjectNode stored, final List<String> field_list, final boolean include) {
+		if (field_list.isEmpty()) {
+			return stored;
+		}
+		else if (include) {
+			final ObjectNode ret_val = _mapper.createObjectNode();
+			ret_val.set(JsonUtils._ID, stored.get(JsonUtils._ID));
+			field_list.forEach(field -> {
+				final JsonNode value = getPath(stored, field.split("[.]"));
+				if (null != value) setPath(ret_val, field, value);
+			});
+			return ret_val;
+		}
+		else {
+			final ObjectNode ret_val = stored.deepCopy();
+			field_list.forEach(field -> {
+				final String[] path = field.split("[.]");
+				Optional.ofNullable(getParent(ret_val, path, false)).ifPresent(parent -> parent.remove(path[path.length - 1]));
+			});
+			return ret_val;
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS - UPDATES
+
+	/** Applies an update to (a copy of) an object
+	 * @param stored - (not modified)
+	 * @param update
+	 * @return the updated object, or empty if the update deletes the object
+	 */
+	protected static Optional<ObjectNode> applyUpdate(final ObjectNode stored, final UpdateComponent<?> update) {
+		final ObjectNode updated = stored.deepCopy();
+		for (Map.Entry<String, Tuple2<UpdateOperator, Object>> kv: update.getAll().entries()) {
+			final String field = kv.getKey();
+			final UpdateOperator op = kv.getValue()._1();
+			if (field.isEmpty() && (UpdateOperator.unset == op)) {
+				return Optional.empty();
+			}
+			if (JsonUtils._ID.equals(field) && stored.has(JsonUtils._ID) && ((UpdateOperator.set != op) || (0 != CompiledQuery.compareValues(stored.get(JsonUtils._ID), CompiledQuery.toJson(kv.getValue()._2()))))) {
+				throw new RuntimeException(ErrorUtils.get(INVALID_UPDATE, op, field, "_id is immutable"));
+			}
+			final String[] path = field.split("[.]");
+			final String last = path[path.length - 1];
+			final ObjectNode parent = getParent(updated, path, UpdateOperator.unset != op);
+			if (null == parent) {
+				if (UpdateOperator.unset == op) continue; // (nothing to do)
+				throw new RuntimeException(ErrorUtils.get(INVALID_UPDATE, op, field, "parent is not an object"));
+			}
+			final JsonNode current = parent.get(last);
+			switch (op) {
+				case set:
+					parent.set(last, CompiledQuery.toJson(kv.getValue()._2()));
+					break;
+				case unset:
+					parent.remove(last);
+					break;
+				case increment:
+					final JsonNode n = CompiledQuery.toJson(kv.getValue()._2());
+					if ((null != current) && !current.isNumber()) {
+						throw new RuntimeException(ErrorUtils.get(INVALID_UPDATE, op, field, current.getNodeType()));
+					}
+					parent.set(last, (null == current)
+										? n
+										: (current.isIntegralNumber() && n.isIntegralNumber())
+											? LongNode.valueOf(current.asLong() + n.asLong())
+											: DoubleNode.valueOf(current.asDouble() + n.asDouble()));
+					break;
+				default: // (add, add_deduplicate, remove)
+					if ((null != current) && !current.isArray()) {
+						throw new RuntimeException(ErrorUtils.get(INVALID_UPDATE, op, field, current.getNodeType()));
+					}
+					final ArrayNode array = (null == current) ? parent.putArray(last) : (ArrayNode)current;
+					final List<JsonNode> values = (kv.getValue()._2() instanceof Collection) ? toNodes(kv.getValue()._2()) : Arrays.asList(CompiledQuery.toJson(kv.getValue()._2()));
+					if (UpdateOperator.remove == op) {
+						for (int i = array.size() - 1; i >= 0; --i) {
+							final JsonNode element = array.get(i);
+							if (values.stream().anyMatch(v -> 0 == CompiledQuery.compareValues(element, v))) array.remove(i);
+						}
+					}
+					else values.stream()
+							.filter(v -> (UpdateOperator.add == op) || !contains(array, v))
+							.forEach(v -> array.add(v));
+					break;
+			}
+		}
+		return Optional.of(updated);
+	}
+
+	/** Whether an array contains an element
+	 * @param array
+	 * @param value
+	 * @return
+	 */
+	protected static boolean contains(final ArrayNode array, final JsonNode value) {
+		for (JsonNode element: array) {
+			if (0 == CompiledQuery.compareValues(element, value)) return true;
+		}
+		return false;
+	}
+
+	////////////////////////////////////////////////////////////
+
+	// UTILS - JSON
+
+	/** Converts a collection operand into JSON
+	 * @param o - a collection (or a single value)
+	 * @return
+	 */
+	protected static List<JsonNode> toNodes(final Object o) {
+		return (o instanceof Collection)
+				? ((Collection<?>)o).stream().map(v -> CompiledQuery.toJson(v)).collect(Collectors.toList())
+				: Arrays.asList(CompiledQuery.toJson(o));
+	}
+
+	/** Returns the single value at a path (no array traversal)
+	 * @param o
+	 * @param path
+	 * @return the value, or null if not present
+	 */
+	protected static JsonNode getPath(final JsonNode o, final String[] path) {
+		JsonNode node = o;
+		for (String field: path) {
+			if ((null == node) || !node.isObject()) return null;
+			node = node.get(field);
+		}
+		return node;
+	}
+
+	/** Returns the object containing the last field of a path
+	 * @param o
+	 * @param path
+	 * @param create - if true, missing objects are created on the way
+	 * @return the parent object, or null if it doesn't exist (or isn't an object)
+	 */
+	protected static ObjectNode getParent(final ObjectNode o, final String[] path, final boolean create) {
+		ObjectNode node = o;
+		for (int i = 0; i < path.length - 1; ++i) {
+			final JsonNode child = node.get(path[i]);
+			if (null == child) {
+				if (!create) return null;
+				node = node.putObject(path[i]);
+			}
+			else if (child.isObject()) {
+				node = (ObjectNode)child;
+			}
+			else return null;
+		}
+		return node;
+	}
+
+	/** Sets the value at a path, creating objects on the way as needed
+	 * @param o
+	 * @param field - dot notation supported
+	 * @param value
+	 */
+	protected static void setPath(final ObjectNode o, final String field, final JsonNode value) {
+		final String[] path = field.split("[.]");
+		Optional.ofNullable(getParent(o, path, true)).ifPresent(parent -> parent.set(path[path.length - 1], value));
+	}
+}
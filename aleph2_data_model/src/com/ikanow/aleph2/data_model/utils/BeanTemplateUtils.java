@@ -25,6 +25,7 @@ import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -42,8 +43,11 @@ import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigRenderOptions;
 
@@ -68,42 +72,37 @@ public class BeanTemplateUtils {
 	 */
 	static public <T> T from(final Config bean_root, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
 		if (null != bean_root) {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return object_mapper.readValue(bean_root.root().render(ConfigRenderOptions.concise()), bean_clazz);
+			return _shared_mapper.reader(bean_clazz).readValue(bean_root.root().render(ConfigRenderOptions.concise()));
 		}
 		else {
 			return BeanTemplateUtils.build(bean_clazz).done().get();
 		}
 	}
 	
-	/** Converts a bean to its JsonNode representation (not high performance)
+	/** Converts a bean to its JsonNode representation
 	 * @param bean - the bean to convert to JSON
 	 * @return - the JSON
 	 */
 	static public <T> JsonNode toJson(final T bean) {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return object_mapper.valueToTree(bean);		
+		return _shared_mapper.toJson(bean);
 	}
 	
-	/** Converts a bean to its Map<String, Object> representation (not high performance)
+	/** Converts a bean to its Map<String, Object> representation
 	 * @param bean - the bean to convert to JSON
 	 * @return - the JSON
 	 */
 	@SuppressWarnings("unchecked")
 	static public <T> Map<String, Object> toMap(final T bean) {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return object_mapper.convertValue(bean, Map.class);		
+		return _shared_mapper.mapper().convertValue(bean, Map.class);
 	}
 	
 	/** Converts a JsonNode to a bean template of the specified type
-	 * (note: not very high performance, should only be used for management-type operations)
 	 * @param map_json - the bean to convert to JSON
 	 * @return - the bean template
 	 */
 	static public <T> BeanTemplate<T> from(final Map<String, Object> map_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.convertValue(map_json, clazz));
+			return BeanTemplate.of(_shared_mapper.mapper().convertValue(map_json, clazz));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -111,14 +110,12 @@ public class BeanTemplateUtils {
 	}
 
 	/** Converts a JsonNode to a bean template of the specified type
-	 * (note: not very high performance, should only be used for management-type operations)
 	 * @param bean - the JSON string to convert to a bean 
 	 * @return - the bean template
 	 */
 	static public <T> BeanTemplate<T> from(final String string_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.readValue(string_json, clazz));
+			return BeanTemplate.of(_shared_mapper.from(string_json, clazz));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -126,14 +123,12 @@ public class BeanTemplateUtils {
 	}
 
 	/** Converts a JsonNode to a bean template of the specified type
-	 * (note: not very high performance, should only be used for management-type operations)
 	 * @param bean - the JSON node to convert to a bean 
 	 * @return - the bean template
 	 */
 	static public <T> BeanTemplate<T> from(final JsonNode bean_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.treeToValue(bean_json, clazz));
+			return BeanTemplate.of(_shared_mapper.from(bean_json, clazz));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -180,8 +175,7 @@ public class BeanTemplateUtils {
 	 * @throws IOException
 	 */
 	static public <T> TemplateHelper<T> build(final JsonNode json, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return build(object_mapper.treeToValue(json, bean_clazz));		
+		return build(_shared_mapper.from(json, bean_clazz));
 	}	
 	
 	/** Returns a template builder of the designated type from the JSON (note: not very high performance, should only be used for management-type operations)
@@ -193,8 +187,7 @@ public class BeanTemplateUtils {
 	 * @throws IOException
 	 */
 	static public <T> TemplateHelper<T> build(final String json_str, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return build(object_mapper.treeToValue(object_mapper.readTree(json_str.getBytes()), bean_clazz));		
+		return build(_shared_mapper.from(_shared_mapper.mapper().readTree(json_str.getBytes()), bean_clazz));
 	}	
 	
 	/**
@@ -520,6 +513,119 @@ public class BeanTemplateUtils {
 		}
 	}
 	
+	////////////////////////////////////////////////////////////////////////
+	
+	// SHARED MAPPERS
+	
+	protected static final SharedMapper _shared_mapper = new SharedMapper(configureMapper(Optional.empty()));
+	protected static final ConcurrentHashMap<String, SharedMapper> _keyed_mappers = new ConcurrentHashMap<>();
+	
+	/** Returns the mapper (configured as per configureMapper) used by toJson/from/toMap, together with its per-class readers and writers
+	 *  (the mapper is shared, so must not be reconfigured - use configureMapper to get a mapper that can be)
+	 * @return the shared mapper
+	 */
+	public static SharedMapper getSharedMapper() {
+		return _shared_mapper;
+	}
+	
+	/** Returns a shared mapper with a custom configuration, which is created (from a mapper configured as per configureMapper) the first time its key is used
+	 * @param key - identifies the configuration
+	 * @param configure - applied to the new mapper the first time the key is used (ignored after that)
+	 * @return the shared mapper for this key
+	 */
+	public static SharedMapper getSharedMapper(final String key, final Function<ObjectMapper, ObjectMapper> configure) {
+		return _keyed_mappers.computeIfAbsent(key, __ -> new SharedMapper(configure.apply(configureMapper(Optional.empty()))));
+	}
+	
+	/** A thread-safe, pre-configured mapper, with cached readers and writers for each class it converts
+	 * @author Alex
+	 */
+	public static class SharedMapper {
+		
+		/** The underlying mapper (shared, so must not be reconfigured)
+		 * @return
+		 */
+		public ObjectMapper mapper() {
+			return _mapper;
+		}
+		
+		/** The (cached) reader for a class
+		 * @param clazz
+		 * @return
+		 */
+		public ObjectReader reader(final Class<?> clazz) {
+			return _readers.get(clazz);
+		}
+		
+		/** The (cached) writer for a class
+		 * @param clazz
+		 * @return
+		 */
+		public ObjectWriter writer(final Class<?> clazz) {
+			return _writers.get(clazz);
+		}
+		
+		/** Converts a bean to its JsonNode representation
+		 * @param bean
+		 * @return the JSON (null if the bean is null)
+		 */
+		public <T> JsonNode toJson(final T bean) {
+			if (null == bean) {
+				return null;
+			}
+			else if (bean instanceof JsonNode) {
+				return _mapper.valueToTree(bean);
+			}
+			try {
+				final TokenBuffer buffer = new TokenBuffer(_mapper, false);
+				writer(bean.getClass()).writeValue(buffer, bean);
+				return _mapper.readTree(buffer.asParser());
+			}
+			catch (IOException e) { // (can't happen writing to a buffer, other than as for valueToTree)
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+		}
+		
+		/** Converts JSON to a bean of the specified type
+		 * @param bean_json
+		 * @param clazz
+		 * @return
+		 * @throws IOException
+		 */
+		public <T> T from(final JsonNode bean_json, final Class<T> clazz) throws IOException {
+			return reader(clazz).readValue(bean_json);
+		}
+		
+		/** Converts a JSON string to a bean of the specified type
+		 * @param string_json
+		 * @param clazz
+		 * @return
+		 * @throws IOException
+		 */
+		public <T> T from(final String string_json, final Class<T> clazz) throws IOException {
+			return reader(clazz).readValue(string_json);
+		}
+		
+		protected SharedMapper(final ObjectMapper mapper) {
+			_mapper = mapper;
+		}
+		protected final ObjectMapper _mapper;
+		
+		// (per class, so a class - eg from a library's classloader - isn't kept alive just because it's been converted)
+		protected final ClassValue<ObjectReader> _readers = new ClassValue<ObjectReader>() {
+			@Override
+			protected ObjectReader computeValue(final Class<?> clazz) {
+				return _mapper.readerFor(clazz);
+			}
+		};
+		protected final ClassValue<ObjectWriter> _writers = new ClassValue<ObjectWriter>() {
+			@Override
+			protected ObjectWriter computeValue(final Class<?> clazz) {
+				return _mapper.writerFor(clazz);
+			}
+		};
+	}
+	
 	/** Configures a mapper with the desired properties for use in Aleph2
 	 * @param configure_me - leave this empty to create a new mapper, or add one to configure an existing mapper
 	 * @return
@@ -15,8 +15,10 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_model.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
@@ -25,10 +27,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import scala.Tuple2;
 
@@ -581,6 +584,7 @@ public class CrudServiceUtils {
 	}
 
 	/** CRUD service proxy that optionally adds an extra term and allows the user to modify the results after they've run (eg to apply security service settings) 
+	 *  (the dispatch for each interface method is worked out the first time it's called, see MethodDispatch, so calls cost little more than a direct call)
 	 * @author Alex
 	 */
 	@SuppressWarnings("unchecked")
@@ -591,95 +595,64 @@ public class CrudServiceUtils {
 												final Map<String, BiFunction<Object, Object[], Object>> interceptors,
 												final Optional<BiFunction<Object, Object[], Object>> default_interceptor)
 	{		
+		final BiFunction<Object, Object[], Object> fallback_interceptor = default_interceptor.orElse(CrudServiceUtils::identityInterceptor);
+		final boolean modifies_queries = query_transform.isPresent() || extra_query.isPresent();
+		
 		InvocationHandler handler = new InvocationHandler() {
 			@Override
 			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-				final Method m = delegate.getClass().getMethod(method.getName(), method.getParameterTypes());
+				final MethodDispatch dispatch = _dispatch.computeIfAbsent(method, MethodDispatch::new);
 				
-				// First off, apply the extra term to any relevant args:
-				final Object[] args_with_extra_query_pretransform = 						
-						query_transform
-							.map(q -> {
-								return (null != args)
-										? Arrays.stream(args)
-											.map(o -> 
-												(null != o) && QueryComponent.class.isAssignableFrom(o.getClass())
-													? q.apply((QueryComponent<T>)o)
-													: o
-											)
-											.collect(Collectors.toList())
-											.toArray()
-										: args;
-							})
-							.orElse(args);
-
-				final Object[] args_with_extra_query = 						
-						extra_query
-							.map(q -> {
-								return (null != args_with_extra_query_pretransform)
-										? Arrays.stream(args_with_extra_query_pretransform)
-											.map(o -> 
-												(null != o) && QueryComponent.class.isAssignableFrom(o.getClass())
-													? CrudUtils.allOf((QueryComponent<T>)o, q)
-													: o
-											)
-											.collect(Collectors.toList())
-											.toArray()
-										: args_with_extra_query_pretransform;
-							})
-							.orElse(args_with_extra_query_pretransform);
-				
-				// Special cases for: readOnlyVersion, getFilterdRepo / countObjects / getRawService / *byId
-				final Object o = Lambdas.get(() -> {
-					final SingleQueryComponent<T> base_query = JsonNode.class.equals(clazz)
-							? (SingleQueryComponent<T>) CrudUtils.allOf()
-							: CrudUtils.allOf(clazz);
-					
-					try {
-						if (extra_query.isPresent() && m.getName().equals("countObjects")) { // special case....change method and apply spec
-							return delegate.countObjectsBySpec(extra_query.get());
-						}
-						else if (extra_query.isPresent() && m.getName().equals("getObjectById")) { // convert from id to spec and append extra_query
-							if (1 == args.length) {
-								return delegate.getObjectBySpec(CrudUtils.allOf(extra_query.get(), base_query.when(JsonUtils._ID, args[0])));
-							}
-							else {
-								return delegate.getObjectBySpec(CrudUtils.allOf(extra_query.get(), base_query.when(JsonUtils._ID, args[0])), (List<String>)args[1], (Boolean)args[2]);							
+				// First off, apply the query transform and then the extra term to any relevant args (copying the args only if there are any):
+				Object[] args_with_extra_query = args;
+				if (modifies_queries) {
+					for (int i: dispatch._query_args) {
+						if (args[i] instanceof QueryComponent) {
+							if (args_with_extra_query == args) {
+								args_with_extra_query = args.clone();
 							}
-						}
-						else if (extra_query.isPresent() && m.getName().equals("deleteDatastore")) {
-							CompletableFuture<Long> l = delegate.deleteObjectsBySpec(extra_query.get());
-							return l.thenApply(ll -> ll > 0);
-						}
-						else if (extra_query.isPresent() && m.getName().equals("deleteObjectById")) { // convert from id to spec and append extra_query
-							return delegate.deleteObjectBySpec(CrudUtils.allOf(extra_query.get(), base_query.when(JsonUtils._ID, args[0])));
-						}
-						else if (extra_query.isPresent() && m.getName().equals("updateObjectById")) { // convert from id to spec and append extra_query
-							return delegate.updateObjectBySpec(CrudUtils.allOf(extra_query.get(), base_query.when(JsonUtils._ID, args[0])), Optional.empty(), (UpdateComponent<T>)args[1]);
-						}
-						else if (m.getName().equals("getRawService")) { // special case....convert the default query to JSON, if present
-							Object o_internal = m.invoke(delegate, args_with_extra_query);
-							Optional<QueryComponent<JsonNode>> json_extra_query = extra_query.map(qc -> qc.toJson());
-							return intercept(JsonNode.class, (ICrudService<JsonNode>)o_internal, json_extra_query, Optional.empty(), interceptors, default_interceptor);
-						}
-						else { // wrap any CrudService types
-							Object o_internal = m.invoke(delegate, args_with_extra_query);
-							return (null != o_internal) && ICrudService.class.isAssignableFrom(o_internal.getClass())
-									? intercept(clazz, (ICrudService<T>)o_internal, extra_query, Optional.empty(), interceptors, default_interceptor)
-									: o_internal;
+							final QueryComponent<T> transformed = query_transform.map(q -> q.apply((QueryComponent<T>)args[i])).orElse((QueryComponent<T>)args[i]);
+							args_with_extra_query[i] = extra_query.map(q -> withExtraQuery(transformed, q)).orElse(transformed);
 						}
 					}
-					catch (IllegalAccessException ee) {
-						throw new RuntimeException(ee);
+				}
+				
+				// Special cases for: readOnlyVersion, getFilterdRepo / countObjects / getRawService / *byId
+				final Object o;
+				if (extra_query.isPresent() && (MethodDispatch.Special.countObjects == dispatch._special)) { // special case....change method and apply spec
+					o = delegate.countObjectsBySpec(extra_query.get());
+				}
+				else if (extra_query.isPresent() && (MethodDispatch.Special.getObjectById == dispatch._special)) { // convert from id to spec and append extra_query
+					if (1 == args.length) {
+						o = delegate.getObjectBySpec(CrudUtils.allOf(extra_query.get(), idQuery(clazz, args[0])));
 					}
-					catch (InvocationTargetException e) {
-						throw new RuntimeException(e.getCause().getMessage(), e);
+					else {
+						o = delegate.getObjectBySpec(CrudUtils.allOf(extra_query.get(), idQuery(clazz, args[0])), (List<String>)args[1], (Boolean)args[2]);							
 					}
-				});				
+				}
+				else if (extra_query.isPresent() && (MethodDispatch.Special.deleteDatastore == dispatch._special)) {
+					CompletableFuture<Long> l = delegate.deleteObjectsBySpec(extra_query.get());
+					o = l.thenApply(ll -> ll > 0);
+				}
+				else if (extra_query.isPresent() && (MethodDispatch.Special.deleteObjectById == dispatch._special)) { // convert from id to spec and append extra_query
+					o = delegate.deleteObjectBySpec(CrudUtils.allOf(extra_query.get(), idQuery(clazz, args[0])));
+				}
+				else if (extra_query.isPresent() && (MethodDispatch.Special.updateObjectById == dispatch._special)) { // convert from id to spec and append extra_query
+					o = delegate.updateObjectBySpec(CrudUtils.allOf(extra_query.get(), idQuery(clazz, args[0])), Optional.empty(), (UpdateComponent<T>)args[1]);
+				}
+				else if (MethodDispatch.Special.getRawService == dispatch._special) { // special case....convert the default query to JSON, if present
+					Object o_internal = dispatch.invoke(delegate, args_with_extra_query);
+					Optional<QueryComponent<JsonNode>> json_extra_query = extra_query.map(qc -> qc.toJson());
+					o = intercept(JsonNode.class, (ICrudService<JsonNode>)o_internal, json_extra_query, Optional.empty(), interceptors, default_interceptor);
+				}
+				else { // wrap any CrudService types
+					Object o_internal = dispatch.invoke(delegate, args_with_extra_query);
+					o = (o_internal instanceof ICrudService)
+							? intercept(clazz, (ICrudService<T>)o_internal, extra_query, Optional.empty(), interceptors, default_interceptor)
+							: o_internal;
+				}
 				
-				return interceptors.getOrDefault(m.getName(), 
-										default_interceptor.orElse(CrudServiceUtils::identityInterceptor))
-									.apply(o, args_with_extra_query);
+				return interceptors.getOrDefault(dispatch._name, fallback_interceptor).apply(o, args_with_extra_query);
 			}
 		};
 
@@ -693,6 +666,68 @@ public class CrudServiceUtils {
 				;
 	}
 	
+	/** The part of an intercepted CRUD service's dispatch that depends only on the interface method - built the first time the method is called 
+	 *  and then shared by all the proxies
+	 * @author Alex
+	 */
+	protected static class MethodDispatch {
+		/** The methods that intercept handles specially */
+		protected enum Special { countObjects, getObjectById, deleteDatastore, deleteObjectById, updateObjectById, getRawService, none };
+		
+		protected MethodDispatch(final Method method) {
+			final Class<?>[] params = method.getParameterTypes();
+			_name = method.getName();
+			_special = Arrays.stream(Special.values()).filter(s -> s.name().equals(_name)).findFirst().orElse(Special.none);
+			_query_args = IntStream.range(0, params.length)
+							.filter(i -> QueryComponent.class.isAssignableFrom(params[i]) || params[i].isAssignableFrom(QueryComponent.class)) // (ie could be passed a query)
+							.toArray();
+			try {
+				_invoker = MethodHandles.publicLookup().unreflect(method)
+							.asType(MethodType.genericMethodType(1 + params.length))
+							.asSpreader(Object[].class, params.length);
+			}
+			catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/** Calls the method on the delegate
+		 * @param delegate
+		 * @param args - (null if the method has no args)
+		 * @return
+		 */
+		protected Object invoke(final Object delegate, final Object[] args) {
+			final Object[] call_args = (null == args) ? NO_ARGS : args; // (invokeExact needs the exact static types)
+			try {
+				return (Object) _invoker.invokeExact(delegate, call_args);
+			}
+			catch (Throwable t) {
+				throw new RuntimeException(t.getMessage(), t);
+			}
+		}
+		
+		protected final String _name;
+		protected final Special _special;
+		protected final int[] _query_args; // (the indexes of the args that might be queries)
+		protected final MethodHandle _invoker; // (delegate, args[]) -> result
+		
+		private static final Object[] NO_ARGS = new Object[0];
+	}
+	private static final ConcurrentHashMap<Method, MethodDispatch> _dispatch = new ConcurrentHashMap<>();
+	
+	/** Utility function - a query on _id, for the *ById special cases
+	 * @param clazz
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> SingleQueryComponent<T> idQuery(final Class<T> clazz, final Object id) {
+		final SingleQueryComponent<T> base_query = JsonNode.class.equals(clazz)
+				? (SingleQueryComponent<T>) CrudUtils.allOf()
+				: CrudUtils.allOf(clazz);
+		return base_query.when(JsonUtils._ID, id);
+	}
+	
 	/** Utility function - just returns ret_val
 	 * @param ret_val
 	 * @param ignore
@@ -702,4 +737,17 @@ public class CrudServiceUtils {
 		return ret_val;
 	}
 	
+	/** Utility function - combines a query with the extra query, keeping the original query's sort order and limit 
+	 *  (which would otherwise be lost inside the combined query, so couldn't be pushed down to the delegate)
+	 * @param query - the user query
+	 * @param extra_query - the query to apply to all queries
+	 * @return
+	 */
+	protected static <T> QueryComponent<T> withExtraQuery(final QueryComponent<T> query, final QueryComponent<T> extra_query) {
+		final CrudUtils.MultiQueryComponent<T> combined = CrudUtils.allOf(query, extra_query);
+		Optional.ofNullable(query.getOrderBy()).ifPresent(order_by -> order_by.forEach(field_order -> combined.orderBy(field_order))); // (orderBy appends)
+		Optional.ofNullable(query.getLimit()).ifPresent(limit -> combined.limit(limit));
+		return combined;
+	}
+	
 }
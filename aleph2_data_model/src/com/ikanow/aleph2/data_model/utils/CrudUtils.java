@@ -15,20 +15,35 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_model.utils;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.LinkedHashMultimap;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.BeanTemplate;
@@ -1269,4 +1284,330 @@ public class CrudUtils {
 		return ret_val.entries().stream().map(e -> Tuples._2T(parent_field + "." + e.getKey(), e.getValue()._2()._1()));
 	}
 
+
+	///////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////
+	
+	// COMPILED QUERIES
+	
+	/** Compiles a query into a predicate that can be applied in memory to beans or JsonNode, with MongoDB semantics (eg a term on a collection field 
+	 *  matches if any element matches, a "whenNot" term matches if the field is missing)
+	 *  The predicate is a snapshot of the query's terms (query components are mutable builders, so nothing is cached against them) - 
+	 *  callers that apply the same query many times should keep hold of the compiled query
+	 * @param query - the query to compile
+	 * @return a thread-safe predicate, over beans of the query's type or their JSON representations
+	 */
+	public static <T> CompiledQuery<T> compile(final QueryComponent<T> query) {
+		return new CompiledQuery<T>(query);
+	}
+	
+	/** A query compiled into a predicate - field paths are split and operands converted to JSON once, and bean fields are looked up via a per-class cache
+	 * @author Alex
+	 *
+	 * @param <T> - the bean type (or JsonNode)
+	 */
+	public static class CompiledQuery<T> implements Predicate<T> {
+		
+		/* (non-Javadoc)
+		 * @see java.util.function.Predicate#test(java.lang.Object)
+		 */
+		@Override
+		public boolean test(final T bean_or_json) {
+			return _predicate.test(bean_or_json);
+		}
+		
+		// Public utilities - values
+		// THIS IS FOR CRUD INTERFACE IMPLEMENTERS ONLY
+		
+		/** Collects the values at a (split) path, MongoDB-style: collections on the way are traversed element by element, 
+		 *  and a collection at the end of the path contributes both itself and each of its elements
+		 * @param bean_or_json - a JsonNode, bean, map or collection
+		 * @param path - the field path, split on "."
+		 * @param values - the list to fill in
+		 */
+		public static void collectValues(final Object bean_or_json, final String[] path, final List<JsonNode> values) {
+			collectValues(bean_or_json, path, 0, values);
+		}
+		
+		/** Converts a query operand (or bean field value) to JSON, in the same form as BeanTemplateUtils.toJson
+		 * @param o - a JsonNode, BeanTemplate, bean or primitive
+		 * @return the JSON representation of o
+		 */
+		public static JsonNode toJson(final Object o) {
+			if (null == o) return NullNode.getInstance();
+			else if (o instanceof JsonNode) return (JsonNode) o;
+			else if (o instanceof String) return TextNode.valueOf((String) o);
+			else if ((o instanceof Long) || (o instanceof Integer) || (o instanceof Short) || (o instanceof Byte)) return LongNode.valueOf(((Number) o).longValue());
+			else if ((o instanceof Double) || (o instanceof Float)) return DoubleNode.valueOf(((Number) o).doubleValue());
+			else if (o instanceof Boolean) return BooleanNode.valueOf((Boolean) o);
+			else if (o instanceof BeanTemplate) return toJson(((BeanTemplate<?>) o).get());
+			else return BeanTemplateUtils.getSharedMapper().toJson(o);
+		}
+		
+		/** The order of the different JSON types when comparing values of different types (null/missing first)
+		 * @param v
+		 * @return the rank of v's type
+		 */
+		public static int typeRank(final JsonNode v) {
+			if ((null == v) || v.isNull() || v.isMissingNode()) return 0;
+			else if (v.isNumber()) return 1;
+			else if (v.isTextual()) return 2;
+			else if (v.isObject()) return 3;
+			else if (v.isArray()) return 4;
+			else if (v.isBinary()) return 5;
+			else if (v.isBoolean()) return 6;
+			else return 7;
+		}
+		
+		/** Total order over JSON values (numbers compare by value whatever their representation, objects field by field regardless of order, 
+		 *  arrays element by element), consistent with normalizeValue: compareValues(a, b) == 0 iff normalizeValue(a).equals(normalizeValue(b))
+		 * @param a
+		 * @param b
+		 * @return <0, 0, >0
+		 */
+		public static int compareValues(final JsonNode a, final JsonNode b) {
+			final int rank_a = typeRank(a);
+			final int rank_b = typeRank(b);
+			if (rank_a != rank_b) {
+				return Integer.compare(rank_a, rank_b);
+			}
+			switch (rank_a) {
+				case 0:
+					return 0;
+				case 1:
+					return (a.isIntegralNumber() && b.isIntegralNumber() && a.canConvertToLong() && b.canConvertToLong())
+							? Long.compare(a.longValue(), b.longValue())
+							: Double.compare(a.doubleValue() + 0.0, b.doubleValue() + 0.0); // (+0.0 so that -0.0 == 0.0)
+				case 3:
+					final Iterator<String> it_a = new TreeSet<String>(ImmutableList.copyOf(a.fieldNames())).iterator();
+					final Iterator<String> it_b = new TreeSet<String>(ImmutableList.copyOf(b.fieldNames())).iterator();
+					while (it_a.hasNext() && it_b.hasNext()) {
+						final String field_a = it_a.next();
+						final String field_b = it_b.next();
+						final int c = field_a.compareTo(field_b);
+						if (0 != c) return c;
+						final int c2 = compareValues(a.get(field_a), b.get(field_b));
+						if (0 != c2) return c2;
+					}
+					return Boolean.compare(it_a.hasNext(), it_b.hasNext());
+				case 4:
+					for (int i = 0; (i < a.size()) && (i < b.size()); ++i) {
+						final int c = compareValues(a.get(i), b.get(i));
+						if (0 != c) return c;
+					}
+					return Integer.compare(a.size(), b.size());
+				case 6:
+					return Boolean.compare(a.booleanValue(), b.booleanValue());
+				default: // (text, binary, other)
+					return a.asText().compareTo(b.asText());
+			}
+		}
+		
+		/** Converts a JSON value into the form used for hash lookups (ie numbers with the same value are equal whatever their representation)
+		 * @param v
+		 * @return the normalized value
+		 */
+		public static JsonNode normalizeValue(final JsonNode v) {
+			if ((null == v) || v.isMissingNode()) {
+				return NullNode.getInstance();
+			}
+			else if (v.isNumber()) {
+				if (v.isIntegralNumber() && v.canConvertToLong()) {
+					return LongNode.valueOf(v.longValue());
+				}
+				final double d = v.doubleValue() + 0.0;
+				return ((d == Math.rint(d)) && (Math.abs(d) < 0x1p63)) ? LongNode.valueOf((long)d) : DoubleNode.valueOf(d);
+			}
+			else if (v.isObject()) {
+				final ObjectNode ret_val = _mapper.createObjectNode();
+				v.fields().forEachRemaining(kv -> ret_val.set(kv.getKey(), normalizeValue(kv.getValue())));
+				return ret_val;
+			}
+			else if (v.isArray()) {
+				final ArrayNode ret_val = _mapper.createArrayNode();
+				v.forEach(element -> ret_val.add(normalizeValue(element)));
+				return ret_val;
+			}
+			else return v;
+		}
+		
+		// Implementation
+		
+		protected static final ObjectMapper _mapper = BeanTemplateUtils.getSharedMapper().mapper();
+		
+		// (per class, the non-static field for each field name, as used in the JSON representation)
+		protected static final ClassValue<ConcurrentHashMap<String, Optional<Field>>> _fields = new ClassValue<ConcurrentHashMap<String, Optional<Field>>>() {
+			@Override
+			protected ConcurrentHashMap<String, Optional<Field>> computeValue(final Class<?> clazz) {
+				return new ConcurrentHashMap<>();
+			}
+		};
+		
+		protected final Predicate<Object> _predicate;
+		
+		protected CompiledQuery(final QueryComponent<T> query) {
+			_predicate = compile(query);
+		}
+		
+		/** Compiles a single or multi query component
+		 * @param query
+		 * @return
+		 */
+		protected static Predicate<Object> compile(final QueryComponent<?> query) {
+			final List<Predicate<Object>> terms = (query instanceof MultiQueryComponent)
+					? ((MultiQueryComponent<?>) query).getElements().stream().map(qc -> compile(qc)).collect(Collectors.toList())
+					: ((SingleQueryComponent<?>) query).getAll().entries().stream().map(kv -> compile(kv.getKey(), kv.getValue()._1(), kv.getValue()._2())).collect(Collectors.toList());
+			
+			if ((Operator.any_of == query.getOp()) && !terms.isEmpty()) {
+				return o -> {
+					for (Predicate<Object> term: terms) if (term.test(o)) return true;
+					return false;
+				};
+			}
+			else {
+				return o -> {
+					for (Predicate<Object> term: terms) if (!term.test(o)) return false;
+					return true;
+				};
+			}
+		}
+		
+		/** Compiles a single query term
+		 * @param field - dot notation supported
+		 * @param op
+		 * @param operands
+		 * @return
+		 */
+		protected static Predicate<Object> compile(final String field, final Operator op, final Tuple2<Object, Object> operands) {
+			final String[] path = field.split("[.]");
+			switch (op) {
+				case equals:
+					if (null != operands._1()) {
+						final JsonNode value = toJson(operands._1());
+						return o -> anyValue(o, path, v -> 0 == compareValues(v, value));
+					}
+					else if (null != operands._2()) {
+						final JsonNode value = toJson(operands._2());
+						return o -> !anyValue(o, path, v -> 0 == compareValues(v, value));
+					}
+					else return o -> !anyValue(o, path, v -> !v.isNull());
+				case exists:
+					final boolean present = Boolean.TRUE.equals(operands._1());
+					return o -> present == anyValue(o, path, v -> true);
+				case any_of:
+					final Set<JsonNode> any_of = toJsonList(operands._1()).stream().map(v -> normalizeValue(v)).collect(Collectors.toSet());
+					return o -> anyValue(o, path, v -> any_of.contains(normalizeValue(v)));
+				case all_of:
+					final List<JsonNode> all_of = toJsonList(operands._1());
+					return o -> {
+						final List<JsonNode> values = new ArrayList<>();
+						collectValues(o, path, 0, values);
+						return all_of.stream().allMatch(a -> values.stream().anyMatch(v -> 0 == compareValues(v, a)));
+					};
+				default: // (ranges)
+					final Optional<JsonNode> lower = Optional.ofNullable(operands._1()).map(v -> toJson(v));
+					final Optional<JsonNode> upper = Optional.ofNullable(operands._2()).map(v -> toJson(v));
+					final boolean lower_inclusive = (Operator.range_closed_open == op) || (Operator.range_closed_closed == op);
+					final boolean upper_inclusive = (Operator.range_open_closed == op) || (Operator.range_closed_closed == op);
+					final Predicate<JsonNode> in_range = v ->
+						lower.map(l -> (typeRank(v) == typeRank(l)) && (lower_inclusive ? compareValues(v, l) >= 0 : compareValues(v, l) > 0)).orElse(true)
+						&&
+						upper.map(u -> (typeRank(v) == typeRank(u)) && (upper_inclusive ? compareValues(v, u) <= 0 : compareValues(v, u) < 0)).orElse(true);
+					return o -> anyValue(o, path, in_range);
+			}
+		}
+		
+		/** Converts a collection operand to JSON
+		 * @param o - a collection (or a single value)
+		 * @return
+		 */
+		protected static List<JsonNode> toJsonList(final Object o) {
+			return (o instanceof Collection)
+					? ((Collection<?>) o).stream().map(v -> toJson(v)).collect(Collectors.toList())
+					: Arrays.asList(toJson(o));
+		}
+		
+		/** Whether any of the values at a path match
+		 * @param o
+		 * @param path
+		 * @param test
+		 * @return
+		 */
+		protected static boolean anyValue(final Object o, final String[] path, final Predicate<JsonNode> test) {
+			final List<JsonNode> values = new ArrayList<>();
+			collectValues(o, path, 0, values);
+			for (JsonNode v: values) {
+				if (test.test(v)) return true;
+			}
+			return false;
+		}
+		
+		/** See collectValues(Object, String[], List)
+		 * @param node
+		 * @param path
+		 * @param index - the current position in the path
+		 * @param values
+		 */
+		protected static void collectValues(final Object node, final String[] path, final int index, final List<JsonNode> values) {
+			if (null == node) {
+				return;
+			}
+			else if (node instanceof JsonNode) {
+				final JsonNode json = (JsonNode) node;
+				if (index == path.length) {
+					values.add(json);
+					if (json.isArray()) json.forEach(values::add);
+				}
+				else if (json.isObject()) {
+					collectValues(json.get(path[index]), path, index + 1, values);
+				}
+				else if (json.isArray()) {
+					json.forEach(element -> collectValues(element, path, index, values));
+				}
+			}
+			else if (index == path.length) {
+				final JsonNode json = toJson(node);
+				values.add(json);
+				if (json.isArray()) json.forEach(values::add);
+			}
+			else if (node instanceof Map) {
+				collectValues(((Map<?, ?>) node).get(path[index]), path, index + 1, values);
+			}
+			else if (node instanceof Collection) {
+				((Collection<?>) node).forEach(element -> collectValues(element, path, index, values));
+			}
+			else if (node instanceof Object[]) {
+				Arrays.stream((Object[]) node).forEach(element -> collectValues(element, path, index, values));
+			}
+			else if (!(node instanceof String) && !(node instanceof Number) && !(node instanceof Boolean)) {
+				getField(node.getClass(), path[index]).ifPresent(field -> {
+					try {
+						collectValues(field.get(node), path, index + 1, values);
+					}
+					catch (IllegalAccessException e) {} // (can't happen, field is accessible)
+				});
+			}
+		}
+		
+		/** Looks up (and caches) a bean field by name, including inherited fields
+		 * @param clazz
+		 * @param name
+		 * @return the (accessible) field, if the bean has one with that name
+		 */
+		protected static Optional<Field> getField(final Class<?> clazz, final String name) {
+			return _fields.get(clazz).computeIfAbsent(name, __ -> {
+				for (Class<?> c = clazz; (null != c) && (Object.class != c); c = c.getSuperclass()) {
+					try {
+						final Field field = c.getDeclaredField(name);
+						if (!Modifier.isStatic(field.getModifiers())) {
+							field.setAccessible(true);
+							return Optional.of(field);
+						}
+					}
+					catch (NoSuchFieldException e) {} // (try the parent)
+				}
+				return Optional.empty();
+			});
+		}
+	}
 }
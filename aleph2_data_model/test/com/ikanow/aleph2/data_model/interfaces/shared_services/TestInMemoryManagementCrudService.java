@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_model.interfaces.shared_services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleBeanQueryComponent;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestInMemoryManagementCrudService {
+
+	public static class TestNestedBean {
+		public String label() { return label; }
+		private String label;
+	}
+
+	public static class TestBean {
+		public String _id() { return _id; }
+		public String name() { return name; }
+		public Long count() { return count; }
+		public List<String> tags() { return tags; }
+		public TestNestedBean nested() { return nested; }
+
+		private String _id;
+		private String name;
+		private Long count;
+		private List<String> tags;
+		private TestNestedBean nested;
+	}
+
+	protected static InMemoryManagementCrudService<TestBean> getStore(final int n) {
+		final InMemoryManagementCrudService<TestBean> store = new InMemoryManagementCrudService<>(TestBean.class);
+		store.storeObjects(IntStream.range(0, n).boxed().map(i ->
+			BeanTemplateUtils.build(TestBean.class)
+				.with(TestBean::_id, "id" + i)
+				.with(TestBean::name, "name" + (i % 10))
+				.with(TestBean::count, (long)i)
+				.with(TestBean::tags, Arrays.asList("tag" + (i % 3), "tag" + (i % 5)))
+				.with(TestBean::nested, BeanTemplateUtils.build(TestNestedBean.class).with(TestNestedBean::label, "label" + (i % 2)).done().get())
+			.done().get())
+			.collect(Collectors.toList())).join();
+		return store;
+	}
+
+	protected static List<String> getIds(final InMemoryManagementCrudService<TestBean> store, final QueryComponent<TestBean> query) {
+		return Optionals.streamOf(store.getObjectsBySpec(query).join().iterator(), false).map(b -> b._id()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_queries() {
+		final InMemoryManagementCrudService<TestBean> store = getStore(100);
+
+		final List<QueryComponent<TestBean>> queries = Arrays.asList(
+				CrudUtils.allOf(TestBean.class).when(TestBean::name, "name3"),
+				CrudUtils.allOf(TestBean.class).when(TestBean::name, "name3").rangeAbove(TestBean::count, 50, true),
+				CrudUtils.allOf(TestBean.class).rangeIn(TestBean::count, 10, false, 20, true),
+				CrudUtils.allOf(TestBean.class).withAny(TestBean::name, Arrays.asList("name1", "name2")).whenNot(TestBean::count, 11L),
+				CrudUtils.allOf(TestBean.class).withAll(TestBean::tags, Arrays.asList("tag1", "tag4")),
+				CrudUtils.allOf(TestBean.class).when(TestBean::tags, "tag2").when("nested.label", "label1"),
+				CrudUtils.allOf(TestBean.class).rangeBelow(TestBean::count, 10, false).nested(TestBean::nested, CrudUtils.allOf(TestNestedBean.class).when(TestNestedBean::label, "label0")),
+				CrudUtils.anyOf(TestBean.class).when(TestBean::_id, "id7").rangeAbove(TestBean::count, 97.5, false),
+				CrudUtils.anyOf(CrudUtils.allOf(TestBean.class).when(TestBean::name, "name4"), CrudUtils.allOf(TestBean.class).when(TestBean::count, 5))
+				);
+		final List<List<String>> expected = Arrays.asList(
+				IntStream.range(0, 100).filter(i -> 3 == (i % 10)).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				Arrays.asList("id53", "id63", "id73", "id83", "id93"),
+				IntStream.range(10, 20).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				IntStream.range(0, 100).filter(i -> (i != 11) && ((1 == (i % 10)) || (2 == (i % 10)))).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				IntStream.range(0, 100).filter(i -> (1 == (i % 3)) && (4 == (i % 5))).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				IntStream.range(0, 100).filter(i -> ((2 == (i % 3)) || (2 == (i % 5))) && (1 == (i % 2))).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				Arrays.asList("id0", "id2", "id4", "id6", "id8", "id10"),
+				Arrays.asList("id7", "id98", "id99"),
+				IntStream.range(0, 100).filter(i -> (5 == i) || (4 == (i % 10))).mapToObj(i -> "id" + i).collect(Collectors.toList())
+				);
+
+		// Full scan
+		IntStream.range(0, queries.size()).forEach(i -> {
+			assertEquals("Query " + i, expected.get(i), getIds(store, queries.get(i)).stream().sorted((a, b) -> Integer.compare(Integer.parseInt(a.substring(2)), Integer.parseInt(b.substring(2)))).collect(Collectors.toList()));
+			assertEquals("Query " + i, expected.get(i).size(), store.countObjectsBySpec(queries.get(i)).join().intValue());
+		});
+		assertFalse(store._store.selectIndex(queries.get(0)).isPresent());
+
+		// Query builders can be modified and reused
+		final SingleBeanQueryComponent<TestBean> reused = CrudUtils.allOf(TestBean.class).when(TestBean::name, "name3");
+		assertEquals(10L, store.countObjectsBySpec(reused).join().longValue());
+		reused.when(TestBean::count, 13L);
+		assertEquals(1L, store.countObjectsBySpec(reused).join().longValue());
+
+		// With indexes, same results but from fewer candidates
+		assertTrue(store.optimizeQuery(Arrays.asList("name", "count")).join());
+		assertTrue(store.optimizeQuery(Arrays.asList("tags")).join());
+		IntStream.range(0, queries.size()).forEach(i -> {
+			assertEquals("Query " + i, expected.get(i), getIds(store, queries.get(i)).stream().sorted((a, b) -> Integer.compare(Integer.parseInt(a.substring(2)), Integer.parseInt(b.substring(2)))).collect(Collectors.toList()));
+		});
+		assertEquals(10, store._store.selectIndex(queries.get(0)).get().size());
+		assertEquals(10, store._store.selectIndex(queries.get(1)).get().size());
+		assertEquals(11, store._store.selectIndex(queries.get(2)).get().size()); // (exclusive bounds are left to the query)
+		assertEquals(20, store._store.selectIndex(queries.get(3)).get().size());
+		assertEquals(3, store._store.selectIndex(queries.get(7)).get().size());
+		assertEquals(11, store._store.selectIndex(queries.get(8)).get().size());
+
+		// Indexes are maintained
+		store.deleteObjectById("id3").join();
+		store.updateObjectById("id13", CrudUtils.update(TestBean.class).set(TestBean::name, "name4")).join();
+		assertEquals(8, store._store.selectIndex(queries.get(0)).get().size());
+		assertEquals(8, getIds(store, queries.get(0)).size());
+
+		assertTrue(store.deregisterOptimizedQuery(Arrays.asList("name", "count")));
+		assertFalse(store.deregisterOptimizedQuery(Arrays.asList("name", "count")));
+		assertFalse(store._store.selectIndex(queries.get(0)).isPresent());
+		assertEquals(8, getIds(store, queries.get(0)).size());
+
+		// Raw view of the same store
+		final ICrudService<JsonNode> raw = store.getRawService();
+		assertEquals(99L, raw.countObjects().join().longValue());
+		assertEquals("name2", raw.getObjectById("id2").join().get().get("name").asText());
+		assertEquals(Arrays.asList("_id", "count"), Optionals.streamOf(raw.getObjectById("id2", Arrays.asList("count"), true).join().get().fieldNames(), false).collect(Collectors.toList()));
+		
+		// Authorization filtering - a read only view of the objects whose authorization field matches (or contains) the principal
+		final List<String> visible = IntStream.range(0, 100).filter(i -> (3 != i) && ((2 == (i % 3)) || (2 == (i % 5)))).mapToObj(i -> "id" + i).collect(Collectors.toList());
+		final IManagementCrudService<TestBean> filtered = store.getFilteredRepo("tags", Optional.of(new AuthorizationBean("tag2")), Optional.empty());
+		assertEquals(visible.size(), filtered.countObjects().join().intValue());
+		assertEquals(visible, Optionals.streamOf(filtered.getObjectsBySpec(CrudUtils.allOf(TestBean.class)).join().iterator(), false).map(b -> b._id()).sorted((a, b) -> Integer.compare(Integer.parseInt(a.substring(2)), Integer.parseInt(b.substring(2)))).collect(Collectors.toList()));
+		assertEquals(visible.stream().filter(id -> id.endsWith("3") && !id.equals("id13")).count(), filtered.countObjectsBySpec(queries.get(0)).join().longValue());
+		assertTrue(filtered.getObjectById("id2").join().isPresent());
+		assertFalse(filtered.getObjectById("id0").join().isPresent());
+		assertFalse(filtered.getObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::_id, "id0")).join().isPresent());
+		assertEquals(visible.size(), filtered.getRawService().countObjects().join().intValue());
+		assertEquals(3L, filtered.getFilteredRepo("name", Optional.of(new AuthorizationBean("name4")), Optional.empty()).countObjects().join().longValue()); // (id14, id44, id74)
+		assertEquals(99L, store.getFilteredRepo("tags", Optional.empty(), Optional.empty()).countObjects().join().longValue());
+		try {
+			filtered.deleteObjectById("id2");
+			fail("Should have errored");
+		}
+		catch (RuntimeException e) {}
+		assertEquals(99L, store.countObjects().join().longValue());
+	}
+
+	@Test
+	public void test_sortAndLimit() {
+		final InMemoryManagementCrudService<TestBean> store = getStore(50);
+
+		assertEquals(Arrays.asList("id49", "id39", "id29"),
+				getIds(store, CrudUtils.allOf(TestBean.class).when(TestBean::name, "name9").orderBy(Tuples._2T("count", -1)).limit(3)));
+		assertEquals(Arrays.asList("id1", "id3", "id5", "id7"),
+				getIds(store, CrudUtils.allOf(TestBean.class).rangeBelow(TestBean::count, 11, false).orderBy(Tuples._2T("nested.label", -1), Tuples._2T("count", 1)).limit(4)));
+		assertEquals(50, getIds(store, CrudUtils.allOf(TestBean.class).orderBy(Tuples._2T("count", 1))).size());
+		assertEquals(5, getIds(store, CrudUtils.allOf(TestBean.class).limit(5)).size());
+
+		assertEquals("id40", store.getObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::name, "name0").orderBy(Tuples._2T("count", -1))).join().get()._id());
+	}
+
+	@Test
+	public void test_updates() {
+		final InMemoryManagementCrudService<TestBean> store = getStore(10);
+
+		assertTrue(store.updateObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::_id, "id1"), Optional.empty(),
+				CrudUtils.update(TestBean.class).increment(TestBean::count, 10).add(TestBean::tags, Arrays.asList("tag1", "tagX"), true).set("nested.label", "test")).join());
+		final TestBean updated = store.getObjectById("id1").join().get();
+		assertEquals(11L, updated.count().longValue());
+		assertEquals(Arrays.asList("tag1", "tag1", "tagX"), updated.tags());
+		assertEquals("test", updated.nested().label());
+
+		assertEquals(4L, store.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).rangeBelow(TestBean::count, 5, true), Optional.empty(),
+				CrudUtils.update(TestBean.class).remove(TestBean::tags, "tag0").unset(TestBean::nested)).join().longValue());
+		assertEquals(Arrays.asList("tag3"), store.getObjectById("id3").join().get().tags());
+		assertEquals(null, store.getObjectById("id3").join().get().nested());
+
+		// Return before/after
+		assertEquals(2L, store.updateAndReturnObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::_id, "id2"), Optional.empty(),
+				CrudUtils.update(TestBean.class).increment(TestBean::count, 1), Optional.of(true), Collections.emptyList(), false).join().get().count().longValue());
+		assertEquals(4L, store.updateAndReturnObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::_id, "id2"), Optional.empty(),
+				CrudUtils.update(TestBean.class).increment(TestBean::count, 1), Optional.of(false), Collections.emptyList(), false).join().get().count().longValue());
+
+		// Upsert
+		assertFalse(store.updateObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::name, "new"), Optional.empty(), CrudUtils.update(TestBean.class).set(TestBean::count, 100L)).join());
+		assertTrue(store.updateObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::name, "new"), Optional.of(true), CrudUtils.update(TestBean.class).set(TestBean::count, 100L)).join());
+		final TestBean upserted = store.getObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::name, "new")).join().get();
+		assertEquals(100L, upserted.count().longValue());
+		assertNotNull(upserted._id());
+		assertEquals(11L, store.countObjects().join().longValue());
+
+		// Delete via update
+		assertTrue(store.updateObjectById("id5", CrudUtils.update(TestBean.class).deleteObject()).join());
+		assertFalse(store.getObjectById("id5").join().isPresent());
+
+		// Errors
+		try {
+			store.updateObjectById("id6", CrudUtils.update(TestBean.class).set(TestBean::_id, "other")).join();
+			fail("Should have errored");
+		}
+		catch (CompletionException e) {}
+		try {
+			store.updateObjectById("id6", CrudUtils.update(TestBean.class).add(TestBean::name, "x", false)).join();
+			fail("Should have errored");
+		}
+		catch (CompletionException e) {}
+		assertEquals("name6", store.getObjectById("id6").join().get().name());
+	}
+
+	@Test
+	public void test_storeAndDelete() {
+		final InMemoryManagementCrudService<TestBean> store = getStore(10);
+
+		// Duplicates
+		try {
+			store.storeObject(BeanTemplateUtils.build(TestBean.class).with(TestBean::_id, "id1").done().get()).join();
+			fail("Should have errored");
+		}
+		catch (CompletionException e) {}
+		assertEquals("id1", store.storeObject(BeanTemplateUtils.build(TestBean.class).with(TestBean::_id, "id1").with(TestBean::name, "replaced").done().get(), true).join().get());
+		assertEquals("replaced", store.getObjectById("id1").join().get().name());
+		assertEquals(Arrays.asList("id20"), store.storeObjects(Arrays.asList(
+				BeanTemplateUtils.build(TestBean.class).with(TestBean::_id, "id2").done().get(),
+				BeanTemplateUtils.build(TestBean.class).with(TestBean::_id, "id20").done().get()
+				), true).join()._1().get());
+		assertEquals(11L, store.countObjects().join().longValue());
+
+		// Generated _ids
+		final Object id = store.storeObject(BeanTemplateUtils.build(TestBean.class).with(TestBean::name, "no_id").done().get()).join().get();
+		assertEquals("no_id", store.getObjectById(id).join().get().name());
+
+		// Deletes
+		assertTrue(store.deleteObjectBySpec(CrudUtils.allOf(TestBean.class).when(TestBean::name, "no_id")).join());
+		assertFalse(store.deleteObjectById(id).join());
+		assertEquals(4L, store.deleteObjectsBySpec(CrudUtils.allOf(TestBean.class).rangeIn(TestBean::count, 3, false, 6, false)).join().longValue());
+		assertEquals(7L, store.countObjects().join().longValue());
+		assertTrue(store.deleteDatastore().join());
+		assertEquals(0L, store.countObjects().join().longValue());
+	}
+}
@@ -426,6 +426,33 @@ public class TestBeanTemplateUtils {
 	}
 
 
+	@Test
+	public void test_sharedMappers() {
+		// Default mapper, readers and writers are shared
+		final BeanTemplateUtils.SharedMapper shared = BeanTemplateUtils.getSharedMapper();
+		assertSame(shared, BeanTemplateUtils.getSharedMapper());
+		assertSame(shared.reader(FieldTest.class), shared.reader(FieldTest.class));
+		assertSame(shared.writer(FieldTest.class), shared.writer(FieldTest.class));
+		assertNotSame(shared.mapper(), BeanTemplateUtils.configureMapper(Optional.empty()));
+		
+		// Round trips
+		final FieldTest x = BeanTemplateUtils.build(FieldTest.class).with(FieldTest::is_transient, true).done().get();
+		assertEquals("{\"is_transient\":true}", shared.toJson(x).toString());
+		assertEquals(BeanTemplateUtils.configureMapper(Optional.empty()).valueToTree(x), BeanTemplateUtils.toJson(x));
+		assertEquals(true, BeanTemplateUtils.from(BeanTemplateUtils.toJson(x), FieldTest.class).get().is_transient);
+		assertEquals(true, BeanTemplateUtils.from("{\"is_transient\":true}", FieldTest.class).get().is_transient);
+		assertEquals(null, BeanTemplateUtils.toJson(null));
+		
+		// Keyed mappers are configured once
+		final int[] calls = { 0 };
+		final BeanTemplateUtils.SharedMapper indent = BeanTemplateUtils.getSharedMapper("test_sharedMappers", m -> { calls[0]++; return m.enable(SerializationFeature.INDENT_OUTPUT); });
+		assertSame(indent, BeanTemplateUtils.getSharedMapper("test_sharedMappers", m -> { calls[0]++; return m; }));
+		assertEquals(1, calls[0]);
+		assertNotSame(shared, indent);
+		assertTrue(indent.mapper().isEnabled(SerializationFeature.INDENT_OUTPUT));
+		assertFalse(shared.mapper().isEnabled(SerializationFeature.INDENT_OUTPUT));
+	}
+
 	public static class MapStringObjectBean {
 		Map<String, Object> a;
 	}	
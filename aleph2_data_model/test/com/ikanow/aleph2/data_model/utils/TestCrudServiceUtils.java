@@ -17,9 +17,11 @@ package com.ikanow.aleph2.data_model.utils;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.BiFunction;
 
@@ -30,6 +32,8 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.MockManagementCrudService;
 import com.ikanow.aleph2.data_model.utils.CrudServiceUtils.ReadOnlyCrudService;
 import com.ikanow.aleph2.data_model.utils.CrudServiceUtils.ReadOnlyManagementCrudService;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
 
 import fj.Unit;
 
@@ -229,4 +233,61 @@ public class TestCrudServiceUtils {
 		catch (Exception e) {}
 		
 	}
+
+	@Test
+	public void test_interceptDispatch() {
+		final List<QueryComponent<String>> specs = new ArrayList<>();
+		final MockManagementCrudService<String> mock_crud = new MockManagementCrudService<String>() {
+			@Override
+			public ManagementFuture<Long> countObjectsBySpec(QueryComponent<String> spec) {
+				specs.add(spec);
+				return super.countObjectsBySpec(spec);
+			}
+			@Override
+			public ManagementFuture<Boolean> deleteDatastore() {
+				throw new RuntimeException("test_error");
+			}
+		};
+		final List<QueryComponent<String>> transformed = new ArrayList<>();
+		final QueryComponent<String> extra_query = CrudUtils.allOf(String.class).when("c", "y");
+		final ICrudService<String> intercepted_crud = CrudServiceUtils.intercept(String.class, mock_crud, Optional.of(extra_query), 
+				Optional.of(q -> { transformed.add(q); return q; }), Collections.emptyMap(), Optional.empty());
+		
+		// Query args are transformed and then have the extra query added, every call
+		final QueryComponent<String> query = CrudUtils.allOf(String.class).when("a", "x");
+		for (int i = 0; i < 2; ++i) {
+			assertEquals(0L, intercepted_crud.countObjectsBySpec(query).join().longValue());
+		}
+		assertEquals(Arrays.asList(query, query), transformed);
+		assertEquals(2, specs.size());
+		assertEquals(Arrays.asList(query, extra_query), ((CrudUtils.MultiQueryComponent<String>) specs.get(1)).getElements());
+		
+		// Other args are passed straight through, including via the nested proxies
+		mock_crud.setMockValues(Arrays.asList("test1", "test2"));
+		assertEquals(2L, intercepted_crud.getRawService().countObjects().join().longValue());
+		assertEquals(Optional.of("test2"), intercepted_crud.readOnlyVersion().getObjectById("test").join());
+		
+		// Errors from the delegate are passed on
+		try {
+			CrudServiceUtils.intercept(String.class, mock_crud, Optional.empty(), Optional.empty(), Collections.emptyMap(), Optional.empty()).deleteDatastore();
+			fail("Should have thrown");
+		}
+		catch (RuntimeException e) {
+			assertEquals("test_error", e.getMessage());
+		}
+	}
+
+	@Test
+	public void test_withExtraQuery() {
+		final CrudUtils.QueryComponent<JsonNode> query = CrudUtils.allOf().when("a", "x").orderBy(Tuples._2T("b", -1)).limit(10);
+		final CrudUtils.QueryComponent<JsonNode> combined = CrudServiceUtils.withExtraQuery(query, CrudUtils.allOf().when("c", "y"));
+		
+		assertEquals(Arrays.asList(Tuples._2T("b", -1)), combined.getOrderBy());
+		assertEquals((Long)10L, combined.getLimit());
+		
+		// (no sort order or limit stays that way)
+		final CrudUtils.QueryComponent<JsonNode> combined2 = CrudServiceUtils.withExtraQuery(CrudUtils.allOf().when("a", "x"), CrudUtils.allOf().when("c", "y"));
+		assertEquals(null, combined2.getOrderBy());
+		assertEquals(null, combined2.getLimit());
+	}
 }
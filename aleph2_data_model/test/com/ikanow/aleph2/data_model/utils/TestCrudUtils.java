@@ -52,6 +52,7 @@ import com.ikanow.aleph2.data_model.utils.CrudUtils.BeanUpdateComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleBeanQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateOperator;
@@ -1411,6 +1412,53 @@ public class TestCrudUtils {
 		assertEquals("{ \"$set\" : { \"nested_object\" : { \"nested_string_field\" : \"test4a\"}} , \"$push\" : { \"nested_list\" : { \"$each\" : [ { \"nested_string_field\" : \"test4a\"} , { \"nested_string_field\" : \"test4b\"}]}}}", result4.toString());
 	}
 	
+	@Test
+	public void testCompiledQueries() {
+		final TestBean bean = BeanTemplateUtils.build(TestBean.class)
+				.with(TestBean::string_field, "string")
+				.with(TestBean::string_fields, Arrays.asList("a", "b"))
+				.with(TestBean::long_field, 10L)
+				.with(TestBean::map, ImmutableMap.of("key", "value"))
+				.with(TestBean::nested_list, Arrays.asList(
+						BeanTemplateUtils.build(TestBean.NestedTestBean.class).with(TestBean.NestedTestBean::nested_string_field, "x").done().get(),
+						BeanTemplateUtils.build(TestBean.NestedTestBean.class).with(TestBean.NestedTestBean::nested_string_field, "y").done().get()))
+				.with(TestBean::nested_object, BeanTemplateUtils.build(TestBean.NestedTestBean.class)
+						.with(TestBean.NestedTestBean::nested_object, BeanTemplateUtils.build(TestBean.NestedNestedTestBean.class).with(TestBean.NestedNestedTestBean::nested_nested_string_field, "nn").done().get())
+						.done().get())
+				.done().get();
+		final JsonNode json = BeanTemplateUtils.toJson(bean);
+		
+		final List<Tuple2<QueryComponent<TestBean>, Boolean>> queries = Arrays.asList(
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when(TestBean::string_field, "string").when(TestBean::long_field, 10), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when(TestBean::string_field, "string").when(TestBean::long_field, 11), false),
+				Tuples._2T(CrudUtils.anyOf(TestBean.class).when(TestBean::string_field, "other").rangeAbove(TestBean::long_field, 5.5, true), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).rangeIn(TestBean::long_field, 1, false, 10, true), false),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).rangeIn(TestBean::string_field, "a", false, "z", false), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when(TestBean::string_fields, "b").withAll(TestBean::string_fields, Arrays.asList("a", "b")), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).withAny(TestBean::string_fields, Arrays.asList("c", "d")), false),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).withPresent(TestBean::map).withNotPresent(TestBean::bool_field).whenNot(TestBean::string_field, "other"), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when("map.key", "value").when("nested_list.nested_string_field", "y"), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when("nested_object.nested_object.nested_nested_string_field", "nn"), true),
+				Tuples._2T(CrudUtils.allOf(TestBean.class).when("nested_object.nested_string_field", "nn"), false),
+				Tuples._2T(CrudUtils.anyOf(CrudUtils.allOf(TestBean.class).when(TestBean::bool_field, true), CrudUtils.allOf(TestBean.class).when(TestBean::long_field, 10L)), true),
+				Tuples._2T(CrudUtils.allOf(CrudUtils.allOf(TestBean.class).when(TestBean::bool_field, true), CrudUtils.allOf(TestBean.class).when(TestBean::long_field, 10L)), false)
+				);
+		
+		// Same results against the bean and its JSON
+		queries.forEach(q -> {
+			assertEquals(q._1().toString(), q._2(), CrudUtils.compile(q._1()).test(bean));
+			assertEquals(q._1().toString(), q._2(), CrudUtils.compile(q._1().toJson()).test(json));
+		});
+		
+		// Compiled queries are a snapshot, so modifying the query afterwards isn't picked up (but is by a new compile)
+		final SingleBeanQueryComponent<TestBean> query = CrudUtils.allOf(TestBean.class).when(TestBean::string_field, "string");
+		final CrudUtils.CompiledQuery<TestBean> compiled = CrudUtils.compile(query);
+		assertTrue(compiled.test(bean));
+		query.when(TestBean::long_field, 11L);
+		assertTrue(compiled.test(bean));
+		assertFalse(CrudUtils.compile(query).test(bean));
+	}
+	
 	//////////////////////////
 	
 	// Utils
@@ -46,6 +46,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.ikanow.aleph2.core.shared.services.MicroBatchingWriteSubservice;
 import com.ikanow.aleph2.core.shared.services.MultiDataService;
 import com.ikanow.aleph2.core.shared.utils.JarCacheUtils;
 import com.ikanow.aleph2.core.shared.utils.LiveInjector;
@@ -247,13 +248,14 @@ public class HarvestContext implements IHarvestContext {
 			}
 			
 			// Always want intermediate output service:
+			// (if the storage service has no native batching, then micro-batch the intermediate output)
 			_batch_intermed_storage_service = 
 					(_crud_intermed_storage_service = _storage_service.getDataService()
 												.flatMap(s -> 
 															s.getWritableDataService(String.class, retrieve_bucket.get(), 
 																Optional.of(IStorageService.StorageStage.json.toString()), Optional.empty()))
 					)
-					.flatMap(IDataWriteService::getBatchWriteSubservice)
+					.map(crud -> crud.getBatchWriteSubservice().orElseGet(() -> new MicroBatchingWriteSubservice<String>(crud, Optional.of(str -> (long)str.length()))))
 					;			
 			
 			// Only create final output services for buckets that have no streaming enrichment:
@@ -323,9 +325,6 @@ public class HarvestContext implements IHarvestContext {
 			if (_batch_intermed_storage_service.isPresent()) {
 				_batch_intermed_storage_service.get().storeObject(obj_str);
 			}
-			else if (_crud_intermed_storage_service.isPresent()){ // (super slow)
-				_crud_intermed_storage_service.get().storeObject(obj_str);
-			}				
 			_distributed_services.produce(topic, obj_str);
 		}
 	}
@@ -801,7 +800,7 @@ public class HarvestContext implements IHarvestContext {
 		initializeOptionalOutput(bucket);
 		
 		final JsonNode obj_json =  object.either(__->__, map -> (JsonNode) _mapper.convertValue(map, JsonNode.class));
-		_multi_writer.get().batchWrite(obj_json);
+		_multi_writer.get().batchWrite(Collections.singletonList(obj_json)); // (handed straight to the writer, the batch subservices do the buffering)
 	}
 
 	/* (non-Javadoc)
@@ -812,10 +811,11 @@ public class HarvestContext implements IHarvestContext {
 		// Flush data and logger
 		
 		final Stream<CompletableFuture<?>> flush_writer = Stream.of(_multi_writer.get().flushBatchOutput());
+		final Stream<CompletableFuture<?>> flush_intermed = _batch_intermed_storage_service.map(batch -> Stream.<CompletableFuture<?>>of(batch.flushOutput())).orElseGet(Stream::empty);
 		final Stream<CompletableFuture<?>> flush_logger = _mutable_state.bucket_loggers.values().stream().map(l->l.flush());
 		
 		return CompletableFuture.allOf(
-					Stream.concat(flush_writer,  flush_logger).toArray(CompletableFuture[]::new)
+					Stream.of(flush_writer, flush_intermed, flush_logger).flatMap(s -> s).toArray(CompletableFuture[]::new)
 				);
 	}
 }
@@ -19,6 +19,7 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -39,10 +40,12 @@ import org.junit.Test;
 import scala.Tuple2;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Injector;
+import com.ikanow.aleph2.core.shared.services.MultiDataService;
 import com.ikanow.aleph2.data_import.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IHarvestContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -407,6 +410,29 @@ public class TestHarvestContext {
 		
 	public static class TestBean {}
 	
+	@Test
+	public void test_emitObject() throws IOException {
+		_logger.info("running test_emitObject");
+		
+		final HarvestContext test_context = _app_injector.getInstance(HarvestContext.class);
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with("full_name", "/test/emit").done().get();
+		test_context.setBucket(bucket);
+		
+		// A single emit is handed to the writer straight away, ie without a later emit or flush
+		final List<JsonNode> written = new ArrayList<>();
+		test_context._mutable_state.initialized_direct_output.set(true);
+		test_context._multi_writer.set(new MultiDataService(bucket, test_context._service_context, Optional.empty(), Optional.empty()) {
+			@Override
+			public boolean batchWrite(final List<JsonNode> obj_jsons) {
+				written.addAll(obj_jsons);
+				return true;
+			}
+		});
+		final JsonNode obj = BeanTemplateUtils.configureMapper(Optional.empty()).readTree("{\"test\":\"emit\"}");
+		test_context.emitObject(Optional.empty(), Either.left(obj));
+		assertEquals(Arrays.asList(obj), written);
+	}
+	
 	@Test
 	public void test_objectStateRetrieval() throws InterruptedException, ExecutionException {
 		_logger.info("running test_objectStateRetrieval");